@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+// keeps the bytes observable so the serialization cannot be optimized away
+class NopSink implements Sink {
+
+    private int checksum;
+    private long bytesWritten;
+
+    @Override
+    public void write(long captureTime, byte[] bytes, int offset, int length) {
+        if (length > 0) {
+            checksum += bytes[offset + length - 1];
+        }
+        bytesWritten += length;
+    }
+
+    @Override
+    public void close() {}
+
+    int checksum() {
+        return checksum;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+}
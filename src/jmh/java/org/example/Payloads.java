@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace.QueryEntryMessage;
+
+// synthetic payloads shaped like what the agent produces for busy, deep transactions
+class Payloads {
+
+    private static final int MAX_ENTRY_DEPTH = 24;
+    private static final int MAX_PROFILE_DEPTH = 80;
+
+    private final Random random;
+    private final String[] classNames;
+    private final String[] methodNames;
+    private final String[] timerNames =
+            {"http request", "jdbc execute", "jdbc query", "jdbc commit", "hibernate flush",
+                    "hibernate query", "jms send", "http client request", "cache get", "render"};
+
+    Payloads(long seed) {
+        random = new Random(seed);
+        classNames = new String[400];
+        for (int i = 0; i < classNames.length; i++) {
+            classNames[i] = "com.example.service.module" + (i % 20) + ".SomeComponent" + i;
+        }
+        methodNames = new String[200];
+        for (int i = 0; i < methodNames.length; i++) {
+            methodNames[i] = "handleSomething" + i;
+        }
+    }
+
+    List<String> sharedQueryTexts(int count) {
+        List<String> sharedQueryTexts = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder("select ");
+            for (int j = 0; j < 40; j++) {
+                if (j > 0) {
+                    sb.append(", ");
+                }
+                sb.append("t").append(i).append(".column_").append(j);
+            }
+            sb.append(" from some_table_").append(i).append(" t").append(i)
+                    .append(" where t").append(i).append(".id = ? and t").append(i)
+                    .append(".status in (?, ?, ?)");
+            sharedQueryTexts.add(sb.toString());
+        }
+        return sharedQueryTexts;
+    }
+
+    // pre-order depth-first, each entry is at most one level deeper than the one before it
+    List<Trace.Entry> entries(int count, int sharedQueryTextCount) {
+        List<Trace.Entry> entries = new ArrayList<Trace.Entry>(count);
+        int depth = 0;
+        long startOffsetNanos = 0;
+        for (int i = 0; i < count; i++) {
+            Trace.Entry.Builder builder = Trace.Entry.newBuilder()
+                    .setDepth(depth)
+                    .setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(1000 + random.nextInt(1000000));
+            if (random.nextInt(3) == 0) {
+                builder.setQueryEntryMessage(QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(random.nextInt(sharedQueryTextCount))
+                        .setPrefix("jdbc execute: ")
+                        .setSuffix(" [" + random.nextInt() + ", 'a bind var'] => "
+                                + random.nextInt(100) + " rows"));
+            } else {
+                builder.setMessage("calling " + classNames[random.nextInt(classNames.length)]);
+                builder.addAllDetailEntry(detailEntries(3));
+            }
+            if (random.nextInt(50) == 0) {
+                builder.addAllLocationStackTraceElement(stackTraceElements(30));
+            }
+            if (random.nextInt(200) == 0) {
+                builder.setError(error(3));
+            }
+            entries.add(builder.build());
+            startOffsetNanos += random.nextInt(10000);
+            int r = random.nextInt(4);
+            if (r == 0 && depth < MAX_ENTRY_DEPTH) {
+                depth++;
+            } else if (r == 1 && depth > 0) {
+                depth -= 1 + random.nextInt(depth);
+            }
+        }
+        return entries;
+    }
+
+    List<Aggregate.Query> queries(int count) {
+        List<Aggregate.Query> queries = new ArrayList<Aggregate.Query>(count);
+        for (int i = 0; i < count; i++) {
+            queries.add(Aggregate.Query.newBuilder()
+                    .setType("SQL")
+                    .setSharedQueryTextIndex(i)
+                    .setTotalDurationNanos(random.nextInt(100000000))
+                    .setExecutionCount(1 + random.nextInt(1000))
+                    .setTotalRows(Proto.OptionalInt64.newBuilder().setValue(random.nextInt(10000)))
+                    .build());
+        }
+        return queries;
+    }
+
+    // consistent sample counts, i.e. each node's count is at least the sum of its children's
+    Profile profile(int approximateNodeCount) {
+        Profile.Builder builder = Profile.newBuilder();
+        for (String className : classNames) {
+            builder.addClassName(className);
+        }
+        for (String methodName : methodNames) {
+            builder.addMethodName(methodName);
+        }
+        builder.addFileName("");
+        builder.addFileName("SomeComponent.java");
+        int[] remaining = {approximateNodeCount};
+        while (remaining[0] > 0) {
+            addProfileNode(builder, 0, 1000 + random.nextInt(100000), remaining);
+        }
+        return builder.build();
+    }
+
+    Trace.Header header(int detailEntryCount, int exceptionChainLength) {
+        long durationNanos = 1000000000L + random.nextInt(1000000000);
+        return Trace.Header.newBuilder()
+                .setTransactionType("Web")
+                .setTransactionName("/api/orders/{id}")
+                .setHeadline("/api/orders/12345")
+                .setUser("someone")
+                .setStartTime(1546300800000L)
+                .setCaptureTime(1546300800000L + durationNanos / 1000000)
+                .setDurationNanos(durationNanos)
+                .addAllDetailEntry(detailEntries(detailEntryCount))
+                .setError(error(exceptionChainLength))
+                .setMainThreadRootTimer(traceTimer(0))
+                .setAuxThreadRootTimer(traceTimer(0))
+                .addAsyncTimer(traceTimer(4))
+                .setMainThreadStats(Trace.ThreadStats.newBuilder()
+                        .setCpuNanos(durationNanos / 3)
+                        .setBlockedNanos(durationNanos / 10)
+                        .setWaitedNanos(durationNanos / 5)
+                        .setAllocatedBytes(123456789))
+                .setAuxThreadStats(Trace.ThreadStats.newBuilder()
+                        .setCpuNanos(durationNanos / 7)
+                        .setBlockedNanos(durationNanos / 20)
+                        .setWaitedNanos(durationNanos / 9)
+                        .setAllocatedBytes(2345678))
+                .build();
+    }
+
+    Aggregate aggregate(int queryCount, int profileNodeCount) {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(123456789012.0)
+                .setTransactionCount(12345)
+                .setErrorCount(12)
+                .addMainThreadRootTimer(aggregateTimer(0))
+                .setAuxThreadRootTimer(aggregateTimer(0))
+                .addAsyncTimer(aggregateTimer(4))
+                .setMainThreadStats(aggregateThreadStats())
+                .setAuxThreadStats(aggregateThreadStats())
+                .addAllQuery(queries(queryCount))
+                .setMainThreadProfile(profile(profileNodeCount))
+                .setAuxThreadProfile(profile(profileNodeCount / 10));
+        return builder.build();
+    }
+
+    List<GaugeValue> gaugeValues(int gaugeCount, int samplesPerGauge) {
+        List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>(gaugeCount * samplesPerGauge);
+        long captureTime = 1546300800000L;
+        for (int i = 0; i < samplesPerGauge; i++) {
+            for (int j = 0; j < gaugeCount; j++) {
+                gaugeValues.add(GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=MemoryPool,name=Pool " + j + ":Usage.used")
+                        .setCaptureTime(captureTime + random.nextInt(3))
+                        .setValue(random.nextDouble() * 1000000000)
+                        .setWeight(1)
+                        .build());
+            }
+            captureTime += 5000;
+        }
+        return gaugeValues;
+    }
+
+    private void addProfileNode(Profile.Builder builder, int depth, long sampleCount,
+            int[] remaining) {
+        builder.addNode(ProfileNode.newBuilder()
+                .setDepth(depth)
+                .setClassNameIndex(random.nextInt(classNames.length))
+                .setMethodNameIndex(random.nextInt(methodNames.length))
+                .setFileNameIndex(1)
+                .setLineNumber(random.nextInt(1000))
+                .setLeafThreadState(depth > 10 && random.nextInt(5) == 0
+                        ? Profile.LeafThreadState.RUNNABLE : Profile.LeafThreadState.NONE)
+                .setSampleCount(sampleCount));
+        remaining[0]--;
+        if (depth == MAX_PROFILE_DEPTH || sampleCount < 2) {
+            return;
+        }
+        // mostly a single child (long call chains), occasionally fanning out
+        int childCount = random.nextInt(8) == 0 ? 2 + random.nextInt(3) : 1;
+        long childSampleCount = sampleCount / childCount;
+        for (int i = 0; i < childCount && remaining[0] > 0; i++) {
+            addProfileNode(builder, depth + 1, childSampleCount - random.nextInt(2), remaining);
+        }
+    }
+
+    private List<Trace.DetailEntry> detailEntries(int count) {
+        List<Trace.DetailEntry> detailEntries = new ArrayList<Trace.DetailEntry>(count);
+        for (int i = 0; i < count; i++) {
+            Trace.DetailEntry.Builder builder = Trace.DetailEntry.newBuilder()
+                    .setName("Detail " + i);
+            builder.addValueBuilder()
+                    .setString("some value " + random.nextInt());
+            detailEntries.add(builder.build());
+        }
+        return detailEntries;
+    }
+
+    private Trace.Error error(int exceptionChainLength) {
+        return Trace.Error.newBuilder()
+                .setMessage("java.lang.IllegalStateException: something went wrong")
+                .setException(throwable(exceptionChainLength, false))
+                .build();
+    }
+
+    private Proto.Throwable throwable(int chainLength, boolean hasEnclosing) {
+        Proto.Throwable.Builder builder = Proto.Throwable.newBuilder()
+                .setClassName("java.lang.IllegalStateException")
+                .setMessage("something went wrong " + chainLength)
+                .addAllStackTraceElement(stackTraceElements(hasEnclosing ? 20 : 120));
+        if (hasEnclosing) {
+            builder.setFramesInCommonWithEnclosing(100);
+        }
+        if (chainLength > 1) {
+            builder.setCause(throwable(chainLength - 1, true));
+        }
+        return builder.build();
+    }
+
+    private List<Proto.StackTraceElement> stackTraceElements(int count) {
+        List<Proto.StackTraceElement> stackTraceElements =
+                new ArrayList<Proto.StackTraceElement>(count);
+        for (int i = 0; i < count; i++) {
+            int classIndex = random.nextInt(classNames.length);
+            stackTraceElements.add(Proto.StackTraceElement.newBuilder()
+                    .setClassName(classNames[classIndex])
+                    .setMethodName(methodNames[random.nextInt(methodNames.length)])
+                    .setFileName("SomeComponent" + classIndex + ".java")
+                    .setLineNumber(random.nextInt(1000))
+                    .build());
+        }
+        return stackTraceElements;
+    }
+
+    // nested timers including the same name underneath itself, e.g. jdbc query > render > jdbc
+    // query, to exercise timer flattening
+    private Trace.Timer traceTimer(int depth) {
+        Trace.Timer.Builder builder = Trace.Timer.newBuilder()
+                .setName(timerNames[depth % timerNames.length])
+                .setTotalNanos(1000000 + random.nextInt(100000000))
+                .setCount(1 + random.nextInt(100));
+        if (depth < 6) {
+            for (int i = 0; i < 3; i++) {
+                builder.addChildTimer(traceTimer(depth + 1 + i));
+            }
+        }
+        return builder.build();
+    }
+
+    private Aggregate.Timer aggregateTimer(int depth) {
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setName(timerNames[depth % timerNames.length])
+                .setTotalNanos(1000000.0 + random.nextInt(100000000))
+                .setCount(1 + random.nextInt(100));
+        if (depth < 6) {
+            for (int i = 0; i < 3; i++) {
+                builder.addChildTimer(aggregateTimer(depth + 1 + i));
+            }
+        }
+        return builder.build();
+    }
+
+    private Aggregate.ThreadStats aggregateThreadStats() {
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(random.nextInt(1000000000))
+                .setTotalBlockedNanos(random.nextInt(1000000000))
+                .setTotalWaitedNanos(random.nextInt(1000000000))
+                .setTotalAllocatedBytes(random.nextInt(1000000000))
+                .build();
+    }
+}
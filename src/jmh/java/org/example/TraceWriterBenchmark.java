@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceWriterBenchmark {
+
+    @Param({"100", "10000"})
+    private int entryCount;
+
+    @Param({"1000", "20000"})
+    private int profileNodeCount;
+
+    private Trace.Header header;
+    private List<Trace.Entry> entries;
+    private List<Aggregate.Query> queries;
+    private List<String> sharedQueryTexts;
+    private Profile mainThreadProfile;
+    private Profile auxThreadProfile;
+
+    private final StackFrameCache stackFrameCache = new StackFrameCache(20000);
+    private final NopSink sink = new NopSink();
+
+    @Setup
+    public void setup() {
+        Payloads payloads = new Payloads(42);
+        header = payloads.header(20, 8);
+        sharedQueryTexts = payloads.sharedQueryTexts(300);
+        entries = payloads.entries(entryCount, sharedQueryTexts.size());
+        queries = payloads.queries(sharedQueryTexts.size());
+        mainThreadProfile = payloads.profile(profileNodeCount);
+        auxThreadProfile = payloads.profile(profileNodeCount / 10);
+    }
+
+    @Benchmark
+    public NopSink write() throws IOException {
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        JsonGenerator jg = outputBuffer.startJson();
+        new TraceWriter(jg, stackFrameCache, null).write(header, entries, queries,
+                sharedQueryTexts, mainThreadProfile, auxThreadProfile);
+        outputBuffer.writeTo(sink, 0);
+        return sink;
+    }
+
+    @Benchmark
+    public NopSink writeStreaming() throws IOException {
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        JsonGenerator jg = outputBuffer.startJson();
+        TraceWriter traceWriter = new TraceWriter(jg, stackFrameCache, null);
+        traceWriter.writeStreamingStart();
+        for (Trace.Entry entry : entries) {
+            traceWriter.writeStreamingEntry(entry);
+        }
+        traceWriter.writeStreamingEnd(header, queries, sharedQueryTexts, mainThreadProfile,
+                auxThreadProfile);
+        outputBuffer.writeTo(sink, 0);
+        return sink;
+    }
+}
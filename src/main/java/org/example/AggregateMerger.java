@@ -0,0 +1,441 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+
+// merges any number of aggregates into one
+//
+// none of the merged aggregates are retained, and the merged state is bounded: once the limit on
+// distinct queries is reached, queries not already present are dropped, and once the limit on
+// profile nodes is reached, nodes not already present are dropped (along with their descendants,
+// the sample counts of their ancestors are unaffected since node sample counts are inclusive)
+class AggregateMerger {
+
+    private final int maxQueries;
+    private final int maxProfileNodes;
+
+    private double totalDurationNanos;
+    private long transactionCount;
+    private long errorCount;
+    private boolean asyncTransactions;
+    private final List<MergedTimer> mainThreadRootTimers = new ArrayList<MergedTimer>();
+    private final List<MergedTimer> auxThreadRootTimers = new ArrayList<MergedTimer>();
+    private final List<MergedTimer> asyncTimers = new ArrayList<MergedTimer>();
+    private ThreadStatsSum mainThreadStats;
+    private ThreadStatsSum auxThreadStats;
+
+    private final Map<QueryKey, MergedQuery> queries = new LinkedHashMap<QueryKey, MergedQuery>();
+    private final List<String> sharedQueryTexts = new ArrayList<String>();
+    private final Map<String, Integer> sharedQueryTextIndexes = new HashMap<String, Integer>();
+    private long droppedQueryCount;
+
+    private MergedProfile mainThreadProfile;
+    private MergedProfile auxThreadProfile;
+
+    AggregateMerger(int maxQueries, int maxProfileNodes) {
+        this.maxQueries = maxQueries;
+        this.maxProfileNodes = maxProfileNodes;
+    }
+
+    void merge(Aggregate aggregate, List<String> sharedQueryTexts) {
+        totalDurationNanos += aggregate.getTotalDurationNanos();
+        transactionCount += aggregate.getTransactionCount();
+        errorCount += aggregate.getErrorCount();
+        asyncTransactions |= aggregate.getAsyncTransactions();
+        for (Aggregate.Timer rootTimer : aggregate.getMainThreadRootTimerList()) {
+            mergeTimer(rootTimer, mainThreadRootTimers);
+        }
+        if (aggregate.hasAuxThreadRootTimer()) {
+            mergeTimer(aggregate.getAuxThreadRootTimer(), auxThreadRootTimers);
+        }
+        for (Aggregate.Timer asyncTimer : aggregate.getAsyncTimerList()) {
+            mergeTimer(asyncTimer, asyncTimers);
+        }
+        if (aggregate.hasMainThreadStats()) {
+            if (mainThreadStats == null) {
+                mainThreadStats = new ThreadStatsSum();
+            }
+            mainThreadStats.add(aggregate.getMainThreadStats());
+        }
+        if (aggregate.hasAuxThreadStats()) {
+            if (auxThreadStats == null) {
+                auxThreadStats = new ThreadStatsSum();
+            }
+            auxThreadStats.add(aggregate.getAuxThreadStats());
+        }
+        for (Aggregate.Query query : aggregate.getQueryList()) {
+            mergeQuery(query, sharedQueryTexts.get(query.getSharedQueryTextIndex()));
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MergedProfile();
+            }
+            mainThreadProfile.merge(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MergedProfile();
+            }
+            auxThreadProfile.merge(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    Aggregate toAggregate() {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .setAsyncTransactions(asyncTransactions);
+        for (MergedTimer rootTimer : mainThreadRootTimers) {
+            builder.addMainThreadRootTimer(rootTimer.toTimer());
+        }
+        // there is at most one aux thread root timer ("auxiliary thread")
+        if (!auxThreadRootTimers.isEmpty()) {
+            builder.setAuxThreadRootTimer(auxThreadRootTimers.get(0).toTimer());
+        }
+        for (MergedTimer asyncTimer : asyncTimers) {
+            builder.addAsyncTimer(asyncTimer.toTimer());
+        }
+        if (mainThreadStats != null) {
+            builder.setMainThreadStats(mainThreadStats.toThreadStats());
+        }
+        if (auxThreadStats != null) {
+            builder.setAuxThreadStats(auxThreadStats.toThreadStats());
+        }
+        for (Map.Entry<QueryKey, MergedQuery> entry : queries.entrySet()) {
+            builder.addQuery(entry.getValue().toQuery(entry.getKey().type));
+        }
+        if (mainThreadProfile != null) {
+            builder.setMainThreadProfile(mainThreadProfile.toProfile());
+        }
+        if (auxThreadProfile != null) {
+            builder.setAuxThreadProfile(auxThreadProfile.toProfile());
+        }
+        return builder.build();
+    }
+
+    // indexed by the shared query text indexes of the queries in toAggregate()
+    List<String> getSharedQueryTexts() {
+        return sharedQueryTexts;
+    }
+
+    long getDroppedQueryCount() {
+        return droppedQueryCount;
+    }
+
+    long getDroppedProfileNodeCount() {
+        long droppedProfileNodeCount = 0;
+        if (mainThreadProfile != null) {
+            droppedProfileNodeCount += mainThreadProfile.droppedNodeCount;
+        }
+        if (auxThreadProfile != null) {
+            droppedProfileNodeCount += auxThreadProfile.droppedNodeCount;
+        }
+        return droppedProfileNodeCount;
+    }
+
+    private static void mergeTimer(Aggregate.Timer timer, List<MergedTimer> siblings) {
+        MergedTimer mergedTimer = null;
+        for (MergedTimer sibling : siblings) {
+            if (sibling.name.equals(timer.getName())) {
+                mergedTimer = sibling;
+                break;
+            }
+        }
+        if (mergedTimer == null) {
+            mergedTimer = new MergedTimer(timer.getName());
+            siblings.add(mergedTimer);
+        }
+        mergedTimer.extended |= timer.getExtended();
+        mergedTimer.totalNanos += timer.getTotalNanos();
+        mergedTimer.count += timer.getCount();
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            mergeTimer(childTimer, mergedTimer.childTimers);
+        }
+    }
+
+    private void mergeQuery(Aggregate.Query query, String queryText) {
+        QueryKey key = new QueryKey(query.getType(), queryText);
+        MergedQuery mergedQuery = queries.get(key);
+        if (mergedQuery == null) {
+            if (queries.size() >= maxQueries) {
+                droppedQueryCount++;
+                return;
+            }
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(queryText);
+            if (sharedQueryTextIndex == null) {
+                sharedQueryTextIndex = sharedQueryTexts.size();
+                sharedQueryTexts.add(queryText);
+                sharedQueryTextIndexes.put(queryText, sharedQueryTextIndex);
+            }
+            mergedQuery = new MergedQuery(sharedQueryTextIndex);
+            queries.put(key, mergedQuery);
+        }
+        mergedQuery.totalDurationNanos += query.getTotalDurationNanos();
+        mergedQuery.executionCount += query.getExecutionCount();
+        if (query.hasTotalRows()) {
+            mergedQuery.hasTotalRows = true;
+            mergedQuery.totalRows += query.getTotalRows().getValue();
+        }
+        mergedQuery.active |= query.getActive();
+    }
+
+    private static class ThreadStatsSum {
+
+        private double totalCpuNanos;
+        private double totalBlockedNanos;
+        private double totalWaitedNanos;
+        private double totalAllocatedBytes;
+
+        void add(Aggregate.ThreadStats threadStats) {
+            totalCpuNanos += threadStats.getTotalCpuNanos();
+            totalBlockedNanos += threadStats.getTotalBlockedNanos();
+            totalWaitedNanos += threadStats.getTotalWaitedNanos();
+            totalAllocatedBytes += threadStats.getTotalAllocatedBytes();
+        }
+
+        Aggregate.ThreadStats toThreadStats() {
+            return Aggregate.ThreadStats.newBuilder()
+                    .setTotalCpuNanos(totalCpuNanos)
+                    .setTotalBlockedNanos(totalBlockedNanos)
+                    .setTotalWaitedNanos(totalWaitedNanos)
+                    .setTotalAllocatedBytes(totalAllocatedBytes)
+                    .build();
+        }
+    }
+
+    private static class MergedTimer {
+
+        private final String name;
+        private boolean extended;
+        private double totalNanos;
+        private long count;
+        private final List<MergedTimer> childTimers = new ArrayList<MergedTimer>();
+
+        private MergedTimer(String name) {
+            this.name = name;
+        }
+
+        private Aggregate.Timer toTimer() {
+            Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                    .setName(name)
+                    .setExtended(extended)
+                    .setTotalNanos(totalNanos)
+                    .setCount(count);
+            for (MergedTimer childTimer : childTimers) {
+                builder.addChildTimer(childTimer.toTimer());
+            }
+            return builder.build();
+        }
+    }
+
+    private static class QueryKey {
+
+        private final String type;
+        private final String queryText;
+
+        private QueryKey(String type, String queryText) {
+            this.type = type;
+            this.queryText = queryText;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey that = (QueryKey) obj;
+            return type.equals(that.type) && queryText.equals(that.queryText);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + queryText.hashCode();
+        }
+    }
+
+    private static class MergedQuery {
+
+        private final int sharedQueryTextIndex;
+        private double totalDurationNanos;
+        private long executionCount;
+        private boolean hasTotalRows;
+        private long totalRows;
+        private boolean active;
+
+        private MergedQuery(int sharedQueryTextIndex) {
+            this.sharedQueryTextIndex = sharedQueryTextIndex;
+        }
+
+        private Aggregate.Query toQuery(String type) {
+            Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
+                    .setType(type)
+                    .setSharedQueryTextIndex(sharedQueryTextIndex)
+                    .setTotalDurationNanos(totalDurationNanos)
+                    .setExecutionCount(executionCount)
+                    .setActive(active);
+            if (hasTotalRows) {
+                builder.setTotalRows(Proto.OptionalInt64.newBuilder().setValue(totalRows));
+            }
+            return builder.build();
+        }
+    }
+
+    private class MergedProfile {
+
+        private final List<MergedProfileNode> rootNodes = new ArrayList<MergedProfileNode>();
+        private int nodeCount;
+        private long droppedNodeCount;
+
+        // node ordering is pre-order depth-first, so the node at each depth is the parent of the
+        // nodes that follow at the next depth (null if it was dropped)
+        private void merge(Profile profile) {
+            MergedProfileNode[] path = new MergedProfileNode[16];
+            for (ProfileNode node : profile.getNodeList()) {
+                int depth = node.getDepth();
+                if (depth >= path.length) {
+                    MergedProfileNode[] newPath = new MergedProfileNode[Math.max(path.length << 1,
+                            depth + 1)];
+                    System.arraycopy(path, 0, newPath, 0, path.length);
+                    path = newPath;
+                }
+                List<MergedProfileNode> siblings;
+                if (depth == 0) {
+                    siblings = rootNodes;
+                } else if (path[depth - 1] == null) {
+                    path[depth] = null;
+                    continue;
+                } else {
+                    siblings = path[depth - 1].childNodes;
+                }
+                String className = profile.getClassName(node.getClassNameIndex());
+                String methodName = profile.getMethodName(node.getMethodNameIndex());
+                String fileName = profile.getFileName(node.getFileNameIndex());
+                MergedProfileNode mergedNode = null;
+                for (MergedProfileNode sibling : siblings) {
+                    if (sibling.matches(className, methodName, fileName, node.getLineNumber(),
+                            node.getLeafThreadState())) {
+                        mergedNode = sibling;
+                        break;
+                    }
+                }
+                if (mergedNode == null) {
+                    if (nodeCount >= maxProfileNodes) {
+                        droppedNodeCount++;
+                        path[depth] = null;
+                        continue;
+                    }
+                    mergedNode = new MergedProfileNode(className, methodName, fileName,
+                            node.getLineNumber(), node.getLeafThreadState());
+                    siblings.add(mergedNode);
+                    nodeCount++;
+                }
+                mergedNode.sampleCount += node.getSampleCount();
+                path[depth] = mergedNode;
+            }
+        }
+
+        // writes the nodes back out in pre-order depth-first, using an explicit stack since
+        // profiles can be thousands of frames deep
+        private Profile toProfile() {
+            Profile.Builder builder = Profile.newBuilder();
+            StringTable classNames = new StringTable();
+            StringTable methodNames = new StringTable();
+            StringTable fileNames = new StringTable();
+            Deque<MergedProfileNode> stack = new ArrayDeque<MergedProfileNode>();
+            Deque<Integer> depths = new ArrayDeque<Integer>();
+            for (int i = rootNodes.size() - 1; i >= 0; i--) {
+                stack.push(rootNodes.get(i));
+                depths.push(0);
+            }
+            while (!stack.isEmpty()) {
+                MergedProfileNode node = stack.pop();
+                int depth = depths.pop();
+                builder.addNode(ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setClassNameIndex(classNames.index(node.className))
+                        .setMethodNameIndex(methodNames.index(node.methodName))
+                        .setFileNameIndex(fileNames.index(node.fileName))
+                        .setLineNumber(node.lineNumber)
+                        .setLeafThreadState(node.leafThreadState)
+                        .setSampleCount(node.sampleCount));
+                for (int i = node.childNodes.size() - 1; i >= 0; i--) {
+                    stack.push(node.childNodes.get(i));
+                    depths.push(depth + 1);
+                }
+            }
+            return builder.addAllClassName(classNames.values)
+                    .addAllMethodName(methodNames.values)
+                    .addAllFileName(fileNames.values)
+                    .build();
+        }
+    }
+
+    private static class StringTable {
+
+        private final List<String> values = new ArrayList<String>();
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        private int index(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                values.add(value);
+                indexes.put(value, index);
+            }
+            return index;
+        }
+    }
+
+    private static class MergedProfileNode {
+
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+        private final Profile.LeafThreadState leafThreadState;
+        private long sampleCount;
+        private final List<MergedProfileNode> childNodes = new ArrayList<MergedProfileNode>(2);
+
+        private MergedProfileNode(String className, String methodName, String fileName,
+                int lineNumber, Profile.LeafThreadState leafThreadState) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+            this.leafThreadState = leafThreadState;
+        }
+
+        private boolean matches(String className, String methodName, String fileName,
+                int lineNumber, Profile.LeafThreadState leafThreadState) {
+            return this.lineNumber == lineNumber && this.leafThreadState == leafThreadState
+                    && this.className.equals(className) && this.methodName.equals(methodName)
+                    && this.fileName.equals(fileName);
+        }
+    }
+}
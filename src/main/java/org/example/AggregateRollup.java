@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// rolls up the overall aggregate of each transaction type across consecutive intervals into
+// coarser tiers (e.g. 1 minute, 5 minutes, 1 hour), each of which is emitted once it closes
+//
+// tier windows are aligned to multiples of the tier interval (the same as glowroot's own
+// roll-ups), so each window ends at its capture time, and a window closes when the first aggregate
+// past its end arrives (or when the collector shuts down)
+//
+// every tier merges the collected intervals directly, rather than merging the tier below it, so
+// that each window closes as soon as it can instead of waiting on the next window of the tier
+// below
+//
+// an aggregate that arrives late (e.g. out of order across writer threads), after the window it
+// belongs to has already been emitted, is not rolled up into that tier (merging it into the open
+// window would count it against the wrong interval), and is counted instead
+class AggregateRollup {
+
+    private final Tier[] tiers;
+    private final int maxTransactionTypes;
+    private final int maxQueries;
+    private final int maxProfileNodes;
+
+    private long droppedCount;
+    private long lateCount;
+
+    AggregateRollup(long[] intervalsMillis, int maxTransactionTypes, int maxQueries,
+            int maxProfileNodes) {
+        long[] sortedIntervalsMillis = intervalsMillis.clone();
+        Arrays.sort(sortedIntervalsMillis);
+        tiers = new Tier[sortedIntervalsMillis.length];
+        for (int i = 0; i < tiers.length; i++) {
+            if (sortedIntervalsMillis[i] <= 0) {
+                throw new IllegalArgumentException(
+                        "Interval must be positive: " + sortedIntervalsMillis[i]);
+            }
+            tiers[i] = new Tier(sortedIntervalsMillis[i]);
+        }
+        this.maxTransactionTypes = maxTransactionTypes;
+        this.maxQueries = maxQueries;
+        this.maxProfileNodes = maxProfileNodes;
+    }
+
+    // returns the windows that this aggregate closed
+    synchronized List<RolledUpAggregate> add(long captureTime, String transactionType,
+            Aggregate aggregate, List<String> sharedQueryTexts) {
+        List<RolledUpAggregate> closed = new ArrayList<RolledUpAggregate>();
+        for (Tier tier : tiers) {
+            long windowEnd = ceiling(captureTime, tier.intervalMillis);
+            if (windowEnd > tier.windowEnd) {
+                tier.close(closed);
+                tier.windowEnd = windowEnd;
+            } else if (windowEnd < tier.windowEnd) {
+                lateCount++;
+                continue;
+            }
+            tier.merge(transactionType, aggregate, sharedQueryTexts);
+        }
+        return closed;
+    }
+
+    // closes the windows that are still open, e.g. at shutdown
+    synchronized List<RolledUpAggregate> flush() {
+        List<RolledUpAggregate> closed = new ArrayList<RolledUpAggregate>();
+        for (Tier tier : tiers) {
+            tier.close(closed);
+        }
+        return closed;
+    }
+
+    // the number of aggregates not rolled up because the limit on transaction types was reached
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // the number of times an aggregate was not rolled up into a tier because that tier's window for
+    // it had already been emitted
+    synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    private static long ceiling(long captureTime, long intervalMillis) {
+        return (captureTime + intervalMillis - 1) / intervalMillis * intervalMillis;
+    }
+
+    private class Tier {
+
+        private final long intervalMillis;
+        private final Map<String, AggregateMerger> mergers =
+                new LinkedHashMap<String, AggregateMerger>();
+        private long windowEnd;
+
+        private Tier(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        private void merge(String transactionType, Aggregate aggregate,
+                List<String> sharedQueryTexts) {
+            AggregateMerger merger = mergers.get(transactionType);
+            if (merger == null) {
+                if (mergers.size() >= maxTransactionTypes) {
+                    droppedCount++;
+                    return;
+                }
+                merger = new AggregateMerger(maxQueries, maxProfileNodes);
+                mergers.put(transactionType, merger);
+            }
+            merger.merge(aggregate, sharedQueryTexts);
+        }
+
+        private void close(List<RolledUpAggregate> closed) {
+            for (Map.Entry<String, AggregateMerger> entry : mergers.entrySet()) {
+                AggregateMerger merger = entry.getValue();
+                closed.add(new RolledUpAggregate(windowEnd,
+                        new CollectedAggregate(entry.getKey(), null, 0, intervalMillis,
+                                merger.toAggregate(), merger.getSharedQueryTexts())));
+            }
+            mergers.clear();
+        }
+    }
+
+    static class RolledUpAggregate {
+
+        private final long captureTime;
+        private final CollectedAggregate collectedAggregate;
+
+        private RolledUpAggregate(long captureTime, CollectedAggregate collectedAggregate) {
+            this.captureTime = captureTime;
+            this.collectedAggregate = collectedAggregate;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        CollectedAggregate collectedAggregate() {
+            return collectedAggregate;
+        }
+    }
+}
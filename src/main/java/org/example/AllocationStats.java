@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+// bytes allocated by the writer threads while exporting, broken down by kind of export, so the
+// effect of buffer and generator reuse can be confirmed (this relies on the hotspot specific
+// com.sun.management.ThreadMXBean, and records nothing on jvms that do not support it)
+//
+// also used for the agent threads calling into the collector, where the cpu time is recorded too
+//
+// thread allocation (and cpu time) measurement is only used if it is already enabled, since it is
+// jvm wide, and so not for the collector to turn on in the monitored application
+class AllocationStats {
+
+    private static final Logger logger = LoggerFactory.getLogger(AllocationStats.class);
+
+    // null if not supported
+    private final ThreadCosts threadCosts;
+
+    private final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+
+    AllocationStats() {
+        ThreadCosts threadCosts;
+        try {
+            threadCosts = ThreadCosts.create();
+        } catch (LinkageError e) {
+            // com.sun.management is not available on this jvm
+            logger.debug(e.getMessage(), e);
+            threadCosts = null;
+        }
+        this.threadCosts = threadCosts;
+    }
+
+    // returns -1 if not supported
+    long currentThreadAllocatedBytes() {
+        if (threadCosts == null) {
+            return -1;
+        }
+        return threadCosts.currentThreadAllocatedBytes();
+    }
+
+    // returns -1 if not supported
+    long currentThreadCpuNanos() {
+        if (threadCosts == null) {
+            return -1;
+        }
+        return threadCosts.currentThreadCpuNanos();
+    }
+    void record(String name, long startAllocatedBytes) {
+        record(name, startAllocatedBytes, -1);
+    }
+
+    void record(String name, long startAllocatedBytes, long startCpuNanos) {
+        if (startAllocatedBytes == -1) {
+            return;
+        }
+        long allocatedBytes = currentThreadAllocatedBytes() - startAllocatedBytes;
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.count.incrementAndGet();
+        counter.allocatedBytes.addAndGet(allocatedBytes);
+        if (startCpuNanos != -1) {
+            counter.cpuNanos.addAndGet(currentThreadCpuNanos() - startCpuNanos);
+        }
+    }
+
+    long getCount(String name) {
+        Counter counter = counters.get(name);
+        return counter == null ? 0 : counter.count.get();
+    }
+
+    long getAllocatedBytes(String name) {
+        Counter counter = counters.get(name);
+        return counter == null ? 0 : counter.allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            long count = counter.count.get();
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey());
+            sb.append(": ");
+            sb.append(count == 0 ? 0 : counter.allocatedBytes.get() / count);
+            sb.append(" bytes");
+            long cpuNanos = counter.cpuNanos.get();
+            if (cpuNanos > 0) {
+                sb.append(" and ");
+                sb.append(cpuNanos / count);
+                sb.append(" cpu nanos");
+            }
+            sb.append("/export over ");
+            sb.append(count);
+            sb.append(" export(s)");
+        }
+        return sb.toString();
+    }
+
+    private static class Counter {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final AtomicLong cpuNanos = new AtomicLong();
+    }
+
+    // the only reference to com.sun.management, so that on a jvm without it, it is only this class
+    // that fails to load (which the AllocationStats constructor catches) and not AllocationStats
+    private static class ThreadCosts {
+
+        private final com.sun.management.ThreadMXBean threadMXBean;
+
+        private ThreadCosts(com.sun.management.ThreadMXBean threadMXBean) {
+            this.threadMXBean = threadMXBean;
+        }
+
+        // returns null if not supported
+        private static ThreadCosts create() {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean sunThreadMXBean =
+                    (com.sun.management.ThreadMXBean) threadMXBean;
+            if (!sunThreadMXBean.isThreadAllocatedMemorySupported()
+                    || !sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return null;
+            }
+            return new ThreadCosts(sunThreadMXBean);
+        }
+
+        private long currentThreadAllocatedBytes() {
+            return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        // returns -1 if not supported
+        private long currentThreadCpuNanos() {
+            if (!threadMXBean.isCurrentThreadCpuTimeSupported()
+                    || !threadMXBean.isThreadCpuTimeEnabled()) {
+                return -1;
+            }
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.List;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+class CollectedAggregate {
+
+    private final String transactionType;
+    private final String transactionName;
+    private final int otherTransactionNameCount;
+    private final long rollupIntervalMillis;
+    private final Aggregate aggregate;
+    private final List<String> sharedQueryTexts;
+
+    CollectedAggregate(String transactionType, String transactionName,
+            int otherTransactionNameCount, long rollupIntervalMillis, Aggregate aggregate,
+            List<String> sharedQueryTexts) {
+        this.transactionType = transactionType;
+        this.transactionName = transactionName;
+        this.otherTransactionNameCount = otherTransactionNameCount;
+        this.rollupIntervalMillis = rollupIntervalMillis;
+        this.aggregate = aggregate;
+        this.sharedQueryTexts = sharedQueryTexts;
+    }
+
+    String transactionType() {
+        return transactionType;
+    }
+
+    // null for the overall aggregate of the transaction type
+    String transactionName() {
+        return transactionName;
+    }
+
+    // non-zero only for the "other" bucket that holds the transaction names outside of the top N
+    int otherTransactionNameCount() {
+        return otherTransactionNameCount;
+    }
+
+    // non-zero only for aggregates that were rolled up across intervals
+    long rollupIntervalMillis() {
+        return rollupIntervalMillis;
+    }
+
+    Aggregate aggregate() {
+        return aggregate;
+    }
+
+    List<String> sharedQueryTexts() {
+        return sharedQueryTexts;
+    }
+}
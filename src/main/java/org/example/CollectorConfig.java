@@ -0,0 +1,666 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+// all settings are optional and are read from "example.collector.*" properties, either from
+// example-collector.properties in one of the glowroot conf dirs, or from system properties (which
+// take precedence), e.g. -Dexample.collector.queue.capacity=4096
+//
+// relative paths are resolved against the conf dir
+class CollectorConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorConfig.class);
+
+    static final String PREFIX = "example.collector.";
+
+    static final String PROPERTIES_FILE_NAME = "example-collector.properties";
+
+    private final int queueCapacity;
+    private final ExportQueue.OverflowPolicy overflowPolicy;
+    private final int writerThreads;
+    private final int serializerThreads;
+    private final int serializerMinBatchSize;
+    private final long shutdownDeadlineMillis;
+    private final boolean selfTelemetryEnabled;
+    private final boolean traceStreaming;
+    private final long gaugeBatchWindowMillis;
+    private final int gaugeBatchMaxValues;
+    private final List<String> gaugeRollupPatterns;
+    private final long gaugeRollupWindowMillis;
+    private final boolean traceSamplingEnabled;
+    private final boolean traceSamplingKeepErrors;
+    private final TraceSampler.Rule traceSamplingDefaultRule;
+    private final List<TraceSampler.Rule> traceSamplingRules;
+    private final int traceHeaderOnlyAboveEntryCount;
+    private final long traceMaxBytes;
+    private final int traceMaxEntries;
+    private final int traceMaxProfileNodes;
+    private final int traceMaxStringLength;
+    private final int traceMaxExceptionDepth;
+    private final ProfileFormat profileFormat;
+    private final double profilePruneBelowFraction;
+    private final boolean traceUpdateDeltas;
+    private final int traceUpdateMaxSize;
+    private final long traceUpdateExpirationMillis;
+    private final int traceUpdateMaxProfileNodes;
+    private final OutputFormat outputFormat;
+    private final File outputFile;
+    private final File outputDir;
+    private final long segmentSizeBytes;
+    private final long segmentRollIntervalMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final boolean compressionEnabled;
+    private final int compressionLevel;
+    private final int compressionBlockSizeBytes;
+    private final long compressionMaxBlockAgeMillis;
+    private final File compressionDictionaryFile;
+    private final URL httpUrl;
+    private final int httpSenderThreads;
+    private final int httpBatchMaxRecords;
+    private final int httpBatchMaxBytes;
+    private final long httpLingerMillis;
+    private final int httpMaxPendingBatches;
+    private final int httpMaxRetries;
+    private final long httpMaxBackoffMillis;
+    private final File httpSpillDir;
+    private final long httpSpillMaxBytes;
+    private final long httpSpillSegmentSizeBytes;
+    private final int stackFrameCacheMaxSize;
+    private final boolean stackTraceDictionaryEnabled;
+    private final int stackTraceDictionaryMaxSize;
+    private final QueryTextMode queryTextMode;
+    private final int queryTextDictionaryMaxSize;
+    private final int transactionNameTopN;
+    private final TopTransactionNames.RankBy transactionNameRankBy;
+    private final long[] rollupIntervalsMillis;
+    private final int rollupMaxTransactionTypes;
+    private final int rollupMaxQueries;
+    private final int rollupMaxProfileNodes;
+
+    private CollectorConfig(Properties props, File baseDir) {
+        queueCapacity = getInt(props, "queue.capacity", 1024);
+        overflowPolicy = getEnum(props, "queue.overflowPolicy", ExportQueue.OverflowPolicy.class,
+                ExportQueue.OverflowPolicy.DROP_OLDEST);
+        writerThreads = getInt(props, "writer.threads", 1);
+        serializerThreads = getInt(props, "serializer.threads", 0);
+        serializerMinBatchSize = getInt(props, "serializer.minBatchSize", 4);
+        shutdownDeadlineMillis = getLong(props, "shutdown.deadlineMillis", 10000);
+        selfTelemetryEnabled = getBoolean(props, "selfTelemetry.enabled", false);
+        traceStreaming = getBoolean(props, "trace.streaming", false);
+        gaugeBatchWindowMillis = getLong(props, "gauge.batchWindowMillis", 0);
+        gaugeBatchMaxValues = getInt(props, "gauge.batchMaxValues", 10000);
+        gaugeRollupPatterns = getStrings(props, "gauge.rollup.patterns");
+        gaugeRollupWindowMillis = getLong(props, "gauge.rollup.windowMillis", 60000);
+        traceSamplingEnabled = getBoolean(props, "trace.sampling.enabled", false);
+        traceSamplingKeepErrors = getBoolean(props, "trace.sampling.keepErrors", true);
+        traceSamplingDefaultRule = new TraceSampler.Rule(null, null,
+                getLong(props, "trace.sampling.minDurationMillis", 0),
+                getDouble(props, "trace.sampling.sampleRate", 1),
+                getDouble(props, "trace.sampling.maxPerSecond", 0));
+        traceSamplingRules = getTraceSamplingRules(props);
+        traceHeaderOnlyAboveEntryCount = getInt(props, "trace.headerOnlyAboveEntryCount", 0);
+        traceMaxBytes = getLong(props, "trace.maxBytes", 0);
+        traceMaxEntries = getInt(props, "trace.maxEntries", 0);
+        traceMaxProfileNodes = getInt(props, "trace.maxProfileNodes", 0);
+        traceMaxStringLength = getInt(props, "trace.maxStringLength", 0);
+        traceMaxExceptionDepth = getInt(props, "trace.maxExceptionDepth", 0);
+        profileFormat = getEnum(props, "profile.format", ProfileFormat.class, ProfileFormat.NESTED);
+        profilePruneBelowFraction = getDouble(props, "profile.pruneBelowFraction", 0);
+        traceUpdateDeltas = getBoolean(props, "trace.updateDeltas", false);
+        traceUpdateMaxSize = getInt(props, "trace.updateDeltas.maxSize", 1000);
+        traceUpdateExpirationMillis =
+                getLong(props, "trace.updateDeltas.expirationMillis", 600000);
+        traceUpdateMaxProfileNodes = getInt(props, "trace.updateDeltas.maxProfileNodes", 10000);
+        outputFile = getFile(props, "output.file", baseDir);
+        outputDir = getFile(props, "output.dir", baseDir);
+        segmentSizeBytes = getLong(props, "output.segmentSizeBytes", 64 * 1024 * 1024);
+        segmentRollIntervalMillis = getLong(props, "output.segmentRollIntervalMillis", 3600000);
+        fsyncPolicy = getEnum(props, "output.fsync", FsyncPolicy.class, FsyncPolicy.PER_SEGMENT);
+        fsyncIntervalMillis = getLong(props, "output.fsyncIntervalMillis", 1000);
+        compressionEnabled = getBoolean(props, "output.compression.enabled", false);
+        // 1 (fastest) to 9 (smallest), -1 for the deflate default (6)
+        compressionLevel = getInt(props, "output.compression.level", -1);
+        compressionBlockSizeBytes = getInt(props, "output.compression.blockSizeBytes", 262144);
+        compressionMaxBlockAgeMillis =
+                getLong(props, "output.compression.maxBlockAgeMillis", 10000);
+        compressionDictionaryFile = getFile(props, "output.compression.dictionaryFile", baseDir);
+        httpUrl = getUrl(props, "output.http.url");
+        httpSenderThreads = getInt(props, "output.http.senderThreads", 2);
+        httpBatchMaxRecords = getInt(props, "output.http.batchMaxRecords", 500);
+        httpBatchMaxBytes = getInt(props, "output.http.batchMaxBytes", 1024 * 1024);
+        httpLingerMillis = getLong(props, "output.http.lingerMillis", 200);
+        httpMaxPendingBatches = getInt(props, "output.http.maxPendingBatches", 4);
+        httpMaxRetries = getInt(props, "output.http.maxRetries", 5);
+        httpMaxBackoffMillis = getLong(props, "output.http.maxBackoffMillis", 10000);
+        httpSpillDir = getFile(props, "output.http.spill.dir", baseDir);
+        httpSpillMaxBytes = getLong(props, "output.http.spill.maxBytes", 1024 * 1024 * 1024);
+        httpSpillSegmentSizeBytes =
+                getLong(props, "output.http.spill.segmentSizeBytes", 16 * 1024 * 1024);
+        stackFrameCacheMaxSize = getInt(props, "stackFrameCache.maxSize", 20000);
+        stackTraceDictionaryEnabled = getBoolean(props, "stackTraceDictionary.enabled", false);
+        stackTraceDictionaryMaxSize = getInt(props, "stackTraceDictionary.maxSize", 10000);
+        queryTextMode = getEnum(props, "queryText.mode", QueryTextMode.class, QueryTextMode.INLINE);
+        queryTextDictionaryMaxSize = getInt(props, "queryText.dictionary.maxSize", 10000);
+        transactionNameTopN = getInt(props, "aggregate.transactionName.topN", 0);
+        transactionNameRankBy = getEnum(props, "aggregate.transactionName.rankBy",
+                TopTransactionNames.RankBy.class, TopTransactionNames.RankBy.TOTAL_DURATION);
+        rollupIntervalsMillis = getPositiveLongs(props, "rollup.intervalsMillis");
+        rollupMaxTransactionTypes = getInt(props, "rollup.maxTransactionTypes", 100);
+        rollupMaxQueries = getInt(props, "rollup.maxQueries", 500);
+        rollupMaxProfileNodes = getInt(props, "rollup.maxProfileNodes", 10000);
+        OutputFormat outputFormat =
+                getEnum(props, "output.format", OutputFormat.class, OutputFormat.JSON);
+        if (outputFormat == OutputFormat.PROTOBUF && outputFile == null && outputDir == null
+                && httpUrl == null) {
+            logger.warn("{}output.format=protobuf requires {}output.file, {}output.dir or"
+                    + " {}output.http.url, using json instead", PREFIX, PREFIX, PREFIX, PREFIX);
+            outputFormat = OutputFormat.JSON;
+        }
+        this.outputFormat = outputFormat;
+    }
+
+    static CollectorConfig create(List<File> confDirs) {
+        Properties props = new Properties();
+        File baseDir = confDirs.isEmpty() ? null : confDirs.get(0);
+        for (File confDir : confDirs) {
+            File propertiesFile = new File(confDir, PROPERTIES_FILE_NAME);
+            if (propertiesFile.exists()) {
+                loadProperties(propertiesFile, props);
+                baseDir = confDir;
+                break;
+            }
+        }
+        props.putAll(System.getProperties());
+        return new CollectorConfig(props, baseDir);
+    }
+
+    int queueCapacity() {
+        return queueCapacity;
+    }
+
+    ExportQueue.OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    int writerThreads() {
+        return writerThreads;
+    }
+
+    // zero (the default) serializes each batch of aggregates inline on the writer thread
+    int serializerThreads() {
+        return serializerThreads;
+    }
+
+    int serializerMinBatchSize() {
+        return serializerMinBatchSize;
+    }
+
+    long shutdownDeadlineMillis() {
+        return shutdownDeadlineMillis;
+    }
+
+    boolean selfTelemetryEnabled() {
+        return selfTelemetryEnabled;
+    }
+
+    boolean traceStreaming() {
+        return traceStreaming;
+    }
+
+    // zero (the default) writes each collection of gauge values as it arrives
+    long gaugeBatchWindowMillis() {
+        return gaugeBatchWindowMillis;
+    }
+
+    int gaugeBatchMaxValues() {
+        return gaugeBatchMaxValues;
+    }
+
+    // comma separated globs, e.g. java.lang:type=Memory:*,java.lang:type=OperatingSystem:*, empty
+    // (the default) disables the gauge roll-ups
+    List<String> gaugeRollupPatterns() {
+        return gaugeRollupPatterns;
+    }
+
+    long gaugeRollupWindowMillis() {
+        return gaugeRollupWindowMillis;
+    }
+
+    boolean traceSamplingEnabled() {
+        return traceSamplingEnabled;
+    }
+
+    boolean traceSamplingKeepErrors() {
+        return traceSamplingKeepErrors;
+    }
+
+    // from trace.sampling.minDurationMillis, trace.sampling.sampleRate and
+    // trace.sampling.maxPerSecond, used for traces that do not match any of the rules
+    TraceSampler.Rule traceSamplingDefaultRule() {
+        return traceSamplingDefaultRule;
+    }
+
+    // trace.sampling.rule.1.*, trace.sampling.rule.2.*, ... up to the first missing number, each
+    // with optional transactionType and transactionName (glob) to match on, and minDurationMillis,
+    // sampleRate and maxPerSecond, e.g.
+    //
+    // example.collector.trace.sampling.rule.1.transactionType=Web
+    // example.collector.trace.sampling.rule.1.transactionName=/health*
+    // example.collector.trace.sampling.rule.1.minDurationMillis=10000
+    // example.collector.trace.sampling.rule.1.sampleRate=0
+    List<TraceSampler.Rule> traceSamplingRules() {
+        return traceSamplingRules;
+    }
+
+    // traces with more entries than this (according to their header) are written without visiting
+    // them, so with only their header, zero (the default) for no limit
+    int traceHeaderOnlyAboveEntryCount() {
+        return traceHeaderOnlyAboveEntryCount;
+    }
+
+    // the trace.max* budgets are json output only (the protobuf output format writes the trace
+    // messages as is), and zero (the default) for each is no limit
+    //
+    // the output size limit is approximate, it stops further entries and profile nodes from being
+    // written once reached
+    long traceMaxBytes() {
+        return traceMaxBytes;
+    }
+
+    int traceMaxEntries() {
+        return traceMaxEntries;
+    }
+
+    // across the main thread and auxiliary thread profiles
+    int traceMaxProfileNodes() {
+        return traceMaxProfileNodes;
+    }
+
+    // applies to detail values and query texts
+    int traceMaxStringLength() {
+        return traceMaxStringLength;
+    }
+
+    // the number of exceptions written in a chain of causes, including the top level exception
+    int traceMaxExceptionDepth() {
+        return traceMaxExceptionDepth;
+    }
+
+    ProfileFormat profileFormat() {
+        return profileFormat;
+    }
+
+    double profilePruneBelowFraction() {
+        return profilePruneBelowFraction;
+    }
+
+    // json output only, the protobuf output format writes the trace messages as is
+    boolean traceUpdateDeltas() {
+        return traceUpdateDeltas;
+    }
+
+    int traceUpdateMaxSize() {
+        return traceUpdateMaxSize;
+    }
+
+    long traceUpdateExpirationMillis() {
+        return traceUpdateExpirationMillis;
+    }
+
+    // profiles with more nodes are written in full whenever they gained samples, since tracking
+    // the sample count of each node costs memory for as long as the trace is in flight
+    int traceUpdateMaxProfileNodes() {
+        return traceUpdateMaxProfileNodes;
+    }
+
+    OutputFormat outputFormat() {
+        return outputFormat;
+    }
+
+    // null unless output goes to a single file
+    File outputFile() {
+        return outputFile;
+    }
+
+    // null unless output goes to rolling segment files
+    File outputDir() {
+        return outputDir;
+    }
+
+    long segmentSizeBytes() {
+        return segmentSizeBytes;
+    }
+
+    long segmentRollIntervalMillis() {
+        return segmentRollIntervalMillis;
+    }
+
+    FsyncPolicy fsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    long fsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    boolean compressionEnabled() {
+        return compressionEnabled;
+    }
+
+    int compressionLevel() {
+        return compressionLevel;
+    }
+
+    int compressionBlockSizeBytes() {
+        return compressionBlockSizeBytes;
+    }
+
+    long compressionMaxBlockAgeMillis() {
+        return compressionMaxBlockAgeMillis;
+    }
+
+    File compressionDictionaryFile() {
+        return compressionDictionaryFile;
+    }
+
+    URL httpUrl() {
+        return httpUrl;
+    }
+
+    int httpSenderThreads() {
+        return httpSenderThreads;
+    }
+
+    int httpBatchMaxRecords() {
+        return httpBatchMaxRecords;
+    }
+
+    int httpBatchMaxBytes() {
+        return httpBatchMaxBytes;
+    }
+
+    long httpLingerMillis() {
+        return httpLingerMillis;
+    }
+
+    int httpMaxPendingBatches() {
+        return httpMaxPendingBatches;
+    }
+
+    int httpMaxRetries() {
+        return httpMaxRetries;
+    }
+
+    long httpMaxBackoffMillis() {
+        return httpMaxBackoffMillis;
+    }
+
+    File httpSpillDir() {
+        return httpSpillDir;
+    }
+
+    long httpSpillMaxBytes() {
+        return httpSpillMaxBytes;
+    }
+
+    long httpSpillSegmentSizeBytes() {
+        return httpSpillSegmentSizeBytes;
+    }
+
+    int stackFrameCacheMaxSize() {
+        return stackFrameCacheMaxSize;
+    }
+
+    // json output only, the protobuf output format writes the trace messages as is
+    boolean stackTraceDictionaryEnabled() {
+        return stackTraceDictionaryEnabled;
+    }
+
+    int stackTraceDictionaryMaxSize() {
+        return stackTraceDictionaryMaxSize;
+    }
+
+    QueryTextMode queryTextMode() {
+        return queryTextMode;
+    }
+
+    int queryTextDictionaryMaxSize() {
+        return queryTextDictionaryMaxSize;
+    }
+
+    // zero disables the per transaction name aggregates
+    int transactionNameTopN() {
+        return transactionNameTopN;
+    }
+
+    TopTransactionNames.RankBy transactionNameRankBy() {
+        return transactionNameRankBy;
+    }
+
+    // comma separated, e.g. 60000,300000,3600000, empty (the default) disables the roll-ups
+    long[] rollupIntervalsMillis() {
+        return rollupIntervalsMillis.clone();
+    }
+
+    int rollupMaxTransactionTypes() {
+        return rollupMaxTransactionTypes;
+    }
+
+    int rollupMaxQueries() {
+        return rollupMaxQueries;
+    }
+
+    int rollupMaxProfileNodes() {
+        return rollupMaxProfileNodes;
+    }
+
+    private static void loadProperties(File propertiesFile, Properties props) {
+        try {
+            InputStream in = new FileInputStream(propertiesFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.error("could not read {}: {}", propertiesFile.getAbsolutePath(),
+                    e.getMessage(), e);
+        }
+    }
+
+    private static File getFile(Properties props, String name, File baseDir) {
+        String value = getString(props, name);
+        if (value == null) {
+            return null;
+        }
+        File file = new File(value);
+        if (!file.isAbsolute() && baseDir != null) {
+            file = new File(baseDir, value);
+        }
+        return file;
+    }
+
+    private static URL getUrl(Properties props, String name) {
+        String value = getString(props, name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new URL(value);
+        } catch (MalformedURLException e) {
+            logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+            return null;
+        }
+    }
+
+    private static boolean getBoolean(Properties props, String name, boolean defaultValue) {
+        String value = getString(props, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static int getInt(Properties props, String name, int defaultValue) {
+        String value = getString(props, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+            return defaultValue;
+        }
+    }
+
+    private static long getLong(Properties props, String name, long defaultValue) {
+        String value = getString(props, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+            return defaultValue;
+        }
+    }
+
+    private static double getDouble(Properties props, String name, double defaultValue) {
+        String value = getString(props, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+            return defaultValue;
+        }
+    }
+
+    private static long[] getPositiveLongs(Properties props, String name) {
+        String value = getString(props, name);
+        if (value == null) {
+            return new long[0];
+        }
+        String[] parts = value.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                values[i] = Long.parseLong(parts[i].trim());
+            } catch (NumberFormatException e) {
+                values[i] = 0;
+            }
+            if (values[i] <= 0) {
+                logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+                return new long[0];
+            }
+        }
+        return values;
+    }
+
+    private static List<String> getStrings(Properties props, String name) {
+        String value = getString(props, name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<String>();
+        for (String part : value.split(",")) {
+            part = part.trim();
+            if (!part.isEmpty()) {
+                values.add(part);
+            }
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    private static List<TraceSampler.Rule> getTraceSamplingRules(Properties props) {
+        List<TraceSampler.Rule> rules = new ArrayList<TraceSampler.Rule>();
+        for (int i = 1;; i++) {
+            String prefix = "trace.sampling.rule." + i + ".";
+            String transactionType = getString(props, prefix + "transactionType");
+            String transactionName = getString(props, prefix + "transactionName");
+            String minDurationMillis = getString(props, prefix + "minDurationMillis");
+            String sampleRate = getString(props, prefix + "sampleRate");
+            String maxPerSecond = getString(props, prefix + "maxPerSecond");
+            if (transactionType == null && transactionName == null && minDurationMillis == null
+                    && sampleRate == null && maxPerSecond == null) {
+                return Collections.unmodifiableList(rules);
+            }
+            rules.add(new TraceSampler.Rule(transactionType, transactionName,
+                    getLong(props, prefix + "minDurationMillis", 0),
+                    getDouble(props, prefix + "sampleRate", 1),
+                    getDouble(props, prefix + "maxPerSecond", 0)));
+        }
+    }
+
+    private static <T extends Enum<T>> T getEnum(Properties props, String name, Class<T> enumType,
+            T defaultValue) {
+        String value = getString(props, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(enumType, value.replace('-', '_').toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid value for {}{}: {}", PREFIX, name, value);
+            return defaultValue;
+        }
+    }
+
+    private static String getString(Properties props, String name) {
+        String value = props.getProperty(PREFIX + name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    enum OutputFormat {
+        JSON, PROTOBUF
+    }
+
+    enum QueryTextMode {
+        INLINE, DOCUMENT, DICTIONARY
+    }
+
+    enum ProfileFormat {
+        NESTED, FOLDED
+    }
+
+    enum FsyncPolicy {
+        NONE, PER_SEGMENT, INTERVAL
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.example.CollectorConfig.QueryTextMode;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// the serialization that TraceWriter and AggregateWriter have in common (profiles, queries, timers
+// and thread stats), so that it, and any optimization of it, exists only once
+//
+// field names are pre-encoded as SerializedStrings, which hold on to their quoted utf-8 bytes, so
+// each field name is encoded once per jvm instead of once per write, and the writers delegate
+// their own fields here for the same reason
+class CommonJsonWriter {
+
+    private static final SerializedString NAME = new SerializedString("name");
+    private static final SerializedString TOTAL_NANOS = new SerializedString("totalNanos");
+    private static final SerializedString COUNT = new SerializedString("count");
+
+    private static final SerializedString TYPE = new SerializedString("type");
+    private static final SerializedString QUERY_TEXT = new SerializedString("queryText");
+    private static final SerializedString SHARED_QUERY_TEXT_INDEX =
+            new SerializedString("sharedQueryTextIndex");
+    private static final SerializedString QUERY_TEXT_HASH = new SerializedString("queryTextHash");
+    private static final SerializedString SHARED_QUERY_TEXTS =
+            new SerializedString("sharedQueryTexts");
+    private static final SerializedString SHARED_QUERY_TEXT_HASHES =
+            new SerializedString("sharedQueryTextHashes");
+    private static final SerializedString TOTAL_DURATION_NANOS =
+            new SerializedString("totalDurationNanos");
+    private static final SerializedString EXECUTION_COUNT =
+            new SerializedString("executionCount");
+    private static final SerializedString TOTAL_ROWS = new SerializedString("totalRows");
+    private static final SerializedString ACTIVE = new SerializedString("active");
+
+    private static final SerializedString STACK_TRACE_ELEMENT =
+            new SerializedString("stackTraceElement");
+    private static final SerializedString LEAF_THREAD_STATE =
+            new SerializedString("leafThreadState");
+    private static final SerializedString SAMPLE_COUNT = new SerializedString("sampleCount");
+    private static final SerializedString CHILD_NODES = new SerializedString("childNodes");
+
+    private static final SerializedString CPU_NANOS = new SerializedString("cpuNanos");
+    private static final SerializedString BLOCKED_NANOS = new SerializedString("blockedNanos");
+    private static final SerializedString WAITED_NANOS = new SerializedString("waitedNanos");
+    private static final SerializedString ALLOCATED_BYTES = new SerializedString("allocatedBytes");
+    private static final SerializedString TOTAL_CPU_NANOS = new SerializedString("totalCpuNanos");
+    private static final SerializedString TOTAL_BLOCKED_NANOS =
+            new SerializedString("totalBlockedNanos");
+    private static final SerializedString TOTAL_WAITED_NANOS =
+            new SerializedString("totalWaitedNanos");
+    private static final SerializedString TOTAL_ALLOCATED_BYTES =
+            new SerializedString("totalAllocatedBytes");
+
+    // leaf thread state names, indexed by ordinal
+    private static final SerializedString[] LEAF_THREAD_STATE_NAMES;
+
+    static {
+        Profile.LeafThreadState[] leafThreadStates = Profile.LeafThreadState.values();
+        LEAF_THREAD_STATE_NAMES = new SerializedString[leafThreadStates.length];
+        for (int i = 0; i < leafThreadStates.length; i++) {
+            LEAF_THREAD_STATE_NAMES[i] = new SerializedString(leafThreadStates[i].name());
+        }
+    }
+
+    private final JsonGenerator jg;
+    private final StackFrameCache stackFrameCache;
+
+    private QueryTextMode queryTextMode = QueryTextMode.INLINE;
+    // non-null in DICTIONARY mode
+    private QueryTextDictionary queryTextDictionary;
+
+    private boolean foldProfiles;
+    // zero for no pruning
+    private double pruneBelowFraction;
+
+    // reused across the lines of a folded profile
+    private StringBuilder foldedLine;
+    private char[] foldedChars;
+
+    CommonJsonWriter(JsonGenerator jg, StackFrameCache stackFrameCache) {
+        this.jg = jg;
+        this.stackFrameCache = stackFrameCache;
+    }
+
+    // INLINE writes the full query text on every query entry and query row, DOCUMENT writes each
+    // text once per document in a sharedQueryTexts array that they refer to by index, and
+    // DICTIONARY writes each text once per session to the query text dictionary, which they refer
+    // to by hash
+    void setQueryTextEncoding(QueryTextMode queryTextMode,
+            QueryTextDictionary queryTextDictionary) {
+        this.queryTextMode = queryTextMode;
+        this.queryTextDictionary = queryTextDictionary;
+    }
+
+    // whether writeQueryText() refers to the document's sharedQueryTexts array, which then needs
+    // to be written by the caller
+    boolean isQueryTextIndexed() {
+        return queryTextMode == QueryTextMode.DOCUMENT;
+    }
+
+    // budget is null for no limits
+    void writeQueryText(List<String> sharedQueryTexts, int sharedQueryTextIndex,
+            TraceBudget budget) throws IOException {
+        if (queryTextMode == QueryTextMode.DOCUMENT) {
+            writeNumberField(SHARED_QUERY_TEXT_INDEX, sharedQueryTextIndex);
+            return;
+        }
+        String queryText = sharedQueryTexts.get(sharedQueryTextIndex);
+        if (budget != null) {
+            queryText = budget.truncate(queryText);
+        }
+        if (queryTextMode == QueryTextMode.DICTIONARY) {
+            writeStringField(QUERY_TEXT_HASH, queryTextDictionary.reference(queryText));
+        } else {
+            writeStringField(QUERY_TEXT, queryText);
+        }
+    }
+
+    // for the entries that were written with their sharedQueryTextIndex (see isQueryTextIndexed()
+    // and TraceWriter.writeStreamingStart()), in DICTIONARY mode the array holds the hashes
+    //
+    // budget is null for no limits
+    void writeSharedQueryTexts(List<String> sharedQueryTexts, TraceBudget budget)
+            throws IOException {
+        if (sharedQueryTexts.isEmpty()) {
+            return;
+        }
+        boolean dictionary = queryTextMode == QueryTextMode.DICTIONARY;
+        writeArrayFieldStart(dictionary ? SHARED_QUERY_TEXT_HASHES : SHARED_QUERY_TEXTS);
+        for (String sharedQueryText : sharedQueryTexts) {
+            if (budget != null) {
+                sharedQueryText = budget.truncate(sharedQueryText);
+            }
+            jg.writeString(dictionary ? queryTextDictionary.reference(sharedQueryText)
+                    : sharedQueryText);
+        }
+        jg.writeEndArray();
+    }
+
+    // folded profiles are an array of "frame;frame;frame count" strings, one per distinct stack
+    // with samples of its own (root frame first), which is the input format of flamegraph tools
+    //
+    // pruning drops the subtrees of nodes with fewer than this fraction of the profile's samples,
+    // and in the folded form their samples remain counted against their parent frame
+    void setProfileEncoding(boolean foldProfiles, double pruneBelowFraction) {
+        this.foldProfiles = foldProfiles;
+        this.pruneBelowFraction = pruneBelowFraction;
+    }
+
+    void writeStringField(SerializedString name, String value) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeString(value);
+    }
+
+    void writeNumberField(SerializedString name, long value) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeNumber(value);
+    }
+
+    void writeNumberField(SerializedString name, double value) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeNumber(value);
+    }
+
+    void writeBooleanField(SerializedString name, boolean value) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeBoolean(value);
+    }
+
+    void writeArrayFieldStart(SerializedString name) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeStartArray();
+    }
+
+    void writeObjectFieldStart(SerializedString name) throws IOException {
+        jg.writeFieldName(name);
+        jg.writeStartObject();
+    }
+
+    void writeStackTraceElement(Proto.StackTraceElement stackTraceElement) throws IOException {
+        jg.writeString(stackFrameCache.get(stackTraceElement));
+    }
+
+    void writeProfile(Profile profile) throws IOException {
+        writeProfile(profile, null);
+    }
+
+    // budget is null for no limits
+    void writeProfile(Profile profile, TraceBudget budget) throws IOException {
+        writeProfile(profile, budget, null, null);
+    }
+
+    // previous is null unless only the samples gained since an earlier snapshot of the same profile
+    // are written (each node with the number of samples it gained, nodes that gained none are left
+    // out), and current is null unless the sample count of each node is recorded for writing the
+    // next snapshot against
+    //
+    // every node is recorded, including those cut by pruning or the budget, so that what was cut
+    // from one snapshot is not written in a later one either (pruning still goes by the full
+    // sample counts, not by what was gained)
+    void writeProfile(Profile profile, TraceBudget budget,
+            TraceUpdates.ProfileSampleCounts previous, TraceUpdates.ProfileSampleCounts current)
+            throws IOException {
+        long minSampleCount = getMinSampleCount(profile);
+        TraceUpdates.ProfilePaths paths = previous == null && current == null ? null
+                : new TraceUpdates.ProfilePaths(profile);
+        if (foldProfiles) {
+            writeFoldedProfile(profile, minSampleCount, budget, paths, previous, current);
+        } else {
+            writeNestedProfile(profile, minSampleCount, budget, paths, previous, current);
+        }
+    }
+
+    private void writeNestedProfile(Profile profile, long minSampleCount, TraceBudget budget,
+            TraceUpdates.ProfilePaths paths, TraceUpdates.ProfileSampleCounts previous,
+            TraceUpdates.ProfileSampleCounts current) throws IOException {
+        jg.writeStartArray();
+        // node ordering is pre-order depth-first
+        // and there can be multiple "root" nodes (with depth=0)
+        StackFrameCache.ProfileFrames profileFrames = stackFrameCache.newProfileFrames(profile);
+        int priorDepth = -1;
+        // the depth of the pruned node whose descendants are being skipped, or -1
+        int prunedDepth = -1;
+        for (ProfileNode node : profile.getNodeList()) {
+            int currDepth = node.getDepth();
+            long sampleCount = node.getSampleCount();
+            long pathHash = paths == null ? 0 : paths.next(node);
+            if (current != null) {
+                current.put(pathHash, sampleCount);
+            }
+            if (prunedDepth != -1 && currDepth > prunedDepth) {
+                continue;
+            }
+            prunedDepth = -1;
+            if (sampleCount < minSampleCount) {
+                prunedDepth = currDepth;
+                continue;
+            }
+            if (previous != null) {
+                // sample counts include those of descendants, so none of them gained any either
+                sampleCount -= previous.get(pathHash);
+                if (sampleCount <= 0) {
+                    prunedDepth = currDepth;
+                    continue;
+                }
+            }
+            if (budget != null && !budget.allowProfileNode()) {
+                continue;
+            }
+            if (priorDepth != -1) {
+                if (currDepth > priorDepth) {
+                    writeArrayFieldStart(CHILD_NODES);
+                } else if (currDepth < priorDepth) {
+                    for (int i = priorDepth; i > currDepth; i--) {
+                        jg.writeEndObject();
+                        jg.writeEndArray();
+                    }
+                    jg.writeEndObject();
+                } else {
+                    jg.writeEndObject();
+                }
+            }
+            jg.writeStartObject();
+            jg.writeFieldName(STACK_TRACE_ELEMENT);
+            jg.writeString(profileFrames.get(node));
+            Profile.LeafThreadState leafThreadState = node.getLeafThreadState();
+            if (leafThreadState != Profile.LeafThreadState.NONE) {
+                jg.writeFieldName(LEAF_THREAD_STATE);
+                jg.writeString(LEAF_THREAD_STATE_NAMES[leafThreadState.ordinal()]);
+            }
+            writeNumberField(SAMPLE_COUNT, sampleCount);
+            priorDepth = currDepth;
+        }
+        if (priorDepth != -1) {
+            jg.writeEndObject();
+            for (int i = priorDepth; i > 0; i--) {
+                jg.writeEndArray();
+                jg.writeEndObject();
+            }
+        }
+        jg.writeEndArray();
+    }
+
+    // a single pass over the pre-order nodes, keeping the path from the root to the current node
+    // in one StringBuilder along with where each depth's frame ends in it, so that nodes sharing a
+    // prefix share it instead of each building their own, and each node's own sample count (its
+    // sample count less that of its children) is written once all of its children have been seen
+    private void writeFoldedProfile(Profile profile, long minSampleCount, TraceBudget budget,
+            TraceUpdates.ProfilePaths paths, TraceUpdates.ProfileSampleCounts previous,
+            TraceUpdates.ProfileSampleCounts current) throws IOException {
+        jg.writeStartArray();
+        StackFrameCache.ProfileFrames profileFrames = stackFrameCache.newProfileFrames(profile);
+        if (foldedLine == null) {
+            foldedLine = new StringBuilder(256);
+        }
+        StringBuilder line = foldedLine;
+        line.setLength(0);
+        int[] pathEnds = new int[32];
+        long[] selfSampleCounts = new long[32];
+        // the depth of the deepest node whose line has not been written yet, or -1
+        int top = -1;
+        int prunedDepth = -1;
+        for (ProfileNode node : profile.getNodeList()) {
+            int depth = node.getDepth();
+            long sampleCount = node.getSampleCount();
+            long pathHash = paths == null ? 0 : paths.next(node);
+            if (current != null) {
+                current.put(pathHash, sampleCount);
+            }
+            if (prunedDepth != -1 && depth > prunedDepth) {
+                continue;
+            }
+            prunedDepth = -1;
+            if (sampleCount < minSampleCount) {
+                prunedDepth = depth;
+                continue;
+            }
+            if (previous != null) {
+                sampleCount -= previous.get(pathHash);
+                if (sampleCount <= 0) {
+                    prunedDepth = depth;
+                    continue;
+                }
+            }
+            if (budget != null && !budget.allowProfileNode()) {
+                continue;
+            }
+            while (top >= depth) {
+                writeFoldedLine(line, pathEnds[top], selfSampleCounts[top]);
+                top--;
+            }
+            if (depth == pathEnds.length) {
+                pathEnds = Arrays.copyOf(pathEnds, depth * 2);
+                selfSampleCounts = Arrays.copyOf(selfSampleCounts, depth * 2);
+            }
+            if (top == -1) {
+                line.setLength(0);
+            } else {
+                line.setLength(pathEnds[top]);
+                line.append(';');
+                selfSampleCounts[top] -= sampleCount;
+            }
+            line.append(profileFrames.get(node).getValue());
+            pathEnds[depth] = line.length();
+            selfSampleCounts[depth] = sampleCount;
+            top = depth;
+        }
+        while (top >= 0) {
+            writeFoldedLine(line, pathEnds[top], selfSampleCounts[top]);
+            top--;
+        }
+        jg.writeEndArray();
+    }
+
+    private void writeFoldedLine(StringBuilder line, int pathEnd, long selfSampleCount)
+            throws IOException {
+        if (selfSampleCount <= 0) {
+            return;
+        }
+        line.setLength(pathEnd);
+        line.append(' ');
+        line.append(selfSampleCount);
+        int length = line.length();
+        if (foldedChars == null || foldedChars.length < length) {
+            foldedChars = new char[Math.max(length, 256)];
+        }
+        line.getChars(0, length, foldedChars, 0);
+        jg.writeString(foldedChars, 0, length);
+    }
+
+    // the sample count of each root node already includes all of its descendants, but a profile
+    // can have more than one root, and a root's subtree is written before the next root is seen,
+    // so (only when pruning) this is a separate pass over the nodes ahead of writing them
+    private long getMinSampleCount(Profile profile) {
+        if (pruneBelowFraction <= 0) {
+            return 0;
+        }
+        long totalSampleCount = 0;
+        for (ProfileNode node : profile.getNodeList()) {
+            if (node.getDepth() == 0) {
+                totalSampleCount += node.getSampleCount();
+            }
+        }
+        return (long) Math.ceil(totalSampleCount * pruneBelowFraction);
+    }
+
+    void writeQueries(List<Aggregate.Query> queries, List<String> sharedQueryTexts)
+            throws IOException {
+        writeQueries(queries, sharedQueryTexts, null);
+    }
+
+    // budget is null for no limits
+    void writeQueries(List<Aggregate.Query> queries, List<String> sharedQueryTexts,
+            TraceBudget budget) throws IOException {
+        jg.writeStartArray();
+        for (Aggregate.Query query : queries) {
+            jg.writeStartObject();
+            writeStringField(TYPE, query.getType());
+            writeQueryText(sharedQueryTexts, query.getSharedQueryTextIndex(), budget);
+            writeNumberField(TOTAL_DURATION_NANOS, query.getTotalDurationNanos());
+            writeNumberField(EXECUTION_COUNT, query.getExecutionCount());
+            if (query.hasTotalRows()) {
+                writeNumberField(TOTAL_ROWS, query.getTotalRows().getValue());
+            }
+            writeBooleanField(ACTIVE, query.getActive());
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+    }
+
+    void writeFlattenedTimers(Trace.Timer rootTimer) throws IOException {
+        TimerFlattener flattener = TimerFlattener.get();
+        flattener.add(rootTimer);
+        writeFlattenedTimers(flattener);
+    }
+
+    void writeFlattenedTimers(Aggregate.Timer rootTimer) throws IOException {
+        TimerFlattener flattener = TimerFlattener.get();
+        flattener.add(rootTimer);
+        writeFlattenedTimers(flattener);
+    }
+
+    void writeFlattenedTimers(List<Aggregate.Timer> rootTimers) throws IOException {
+        TimerFlattener flattener = TimerFlattener.get();
+        for (Aggregate.Timer rootTimer : rootTimers) {
+            flattener.add(rootTimer);
+        }
+        writeFlattenedTimers(flattener);
+    }
+
+    void writeTraceTimers(List<Trace.Timer> timers) throws IOException {
+        jg.writeStartArray();
+        for (Trace.Timer timer : timers) {
+            writeTimer(timer.getName(), timer.getTotalNanos(), timer.getCount());
+        }
+        jg.writeEndArray();
+    }
+
+    void writeAggregateTimers(List<Aggregate.Timer> timers) throws IOException {
+        jg.writeStartArray();
+        for (Aggregate.Timer timer : timers) {
+            writeTimer(timer.getName(), timer.getTotalNanos(), timer.getCount());
+        }
+        jg.writeEndArray();
+    }
+
+    void writeThreadStats(Trace.ThreadStats threadStats) throws IOException {
+        jg.writeStartObject();
+        writeNumberField(CPU_NANOS, threadStats.getCpuNanos());
+        writeNumberField(BLOCKED_NANOS, threadStats.getBlockedNanos());
+        writeNumberField(WAITED_NANOS, threadStats.getWaitedNanos());
+        writeNumberField(ALLOCATED_BYTES, threadStats.getAllocatedBytes());
+        jg.writeEndObject();
+    }
+
+    void writeThreadStats(Aggregate.ThreadStats threadStats) throws IOException {
+        jg.writeStartObject();
+        writeNumberField(TOTAL_CPU_NANOS, threadStats.getTotalCpuNanos());
+        writeNumberField(TOTAL_BLOCKED_NANOS, threadStats.getTotalBlockedNanos());
+        writeNumberField(TOTAL_WAITED_NANOS, threadStats.getTotalWaitedNanos());
+        writeNumberField(TOTAL_ALLOCATED_BYTES, threadStats.getTotalAllocatedBytes());
+        jg.writeEndObject();
+    }
+
+    private void writeFlattenedTimers(TimerFlattener flattener) throws IOException {
+        jg.writeStartArray();
+        for (int i = 0; i < flattener.size(); i++) {
+            writeTimer(flattener.name(i), flattener.totalNanos(i), flattener.count(i));
+        }
+        jg.writeEndArray();
+    }
+
+    private void writeTimer(String name, long totalNanos, long count) throws IOException {
+        jg.writeStartObject();
+        writeStringField(NAME, name);
+        writeNumberField(TOTAL_NANOS, totalNanos);
+        writeNumberField(COUNT, count);
+        jg.writeEndObject();
+    }
+
+    private void writeTimer(String name, double totalNanos, long count) throws IOException {
+        jg.writeStartObject();
+        writeStringField(NAME, name);
+        writeNumberField(TOTAL_NANOS, totalNanos);
+        writeNumberField(COUNT, count);
+        jg.writeEndObject();
+    }
+}
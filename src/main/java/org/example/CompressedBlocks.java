@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// offline decompression of files written with compression enabled (see CompressingSink) back into
+// the payloads the collector writes without it, e.g.
+//
+// java -cp glowroot.jar:glowroot-example-collector.jar org.example.CompressedBlocks \
+//         -dictionary traces.dict 20190101T000000.000Z_20190101T005959.998Z_000001.json.blocks
+public class CompressedBlocks {
+
+    private final DataInputStream in;
+    // null for none
+    private final byte[] dictionary;
+
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[65536];
+
+    CompressedBlocks(InputStream in, byte[] dictionary) {
+        this.in = new DataInputStream(in);
+        this.dictionary = dictionary;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        byte[] dictionary = null;
+        if (args.length >= 2 && args[0].equals("-dictionary")) {
+            dictionary = CompressionDictionary.load(new File(args[1]));
+            i = 2;
+        }
+        if (i == args.length) {
+            System.err.println("usage: CompressedBlocks [-dictionary <file>] <file>...");
+            System.exit(1);
+        }
+        OutputStream out = new BufferedOutputStream(System.out);
+        for (; i < args.length; i++) {
+            InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            try {
+                CompressedBlocks blocks = new CompressedBlocks(in, dictionary);
+                byte[] block;
+                while ((block = blocks.readBlock()) != null) {
+                    out.write(block);
+                }
+                blocks.close();
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    // returns the uncompressed payloads of the next block (each followed by its delimiter), or
+    // null at the end of the file, or at the zero filled end of a segment that was recovered after
+    // a crash
+    byte[] readBlock() throws IOException {
+        int firstByte = in.read();
+        if (firstByte == -1 || firstByte == 0) {
+            return null;
+        }
+        int magic = (firstByte << 24) | (in.readUnsignedByte() << 16)
+                | (in.readUnsignedShort());
+        if (magic != CompressingSink.MAGIC) {
+            throw new IOException("Not at the start of a compressed block");
+        }
+        int uncompressedLength = in.readInt();
+        int compressedLength = in.readInt();
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        byte[] uncompressed = new byte[uncompressedLength];
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int length = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsDictionary()) {
+                    if (dictionary == null) {
+                        throw new IOException("Block was compressed with a preset dictionary"
+                                + " (adler-32 " + Integer.toHexString(inflater.getAdler())
+                                + "), which was not provided");
+                    }
+                    inflater.setDictionary(dictionary);
+                }
+                int n = inflater.inflate(uncompressed, length, uncompressedLength - length);
+                if (n == 0 && !inflater.finished() && !inflater.needsDictionary()) {
+                    throw new IOException("Truncated compressed block");
+                }
+                length += n;
+            }
+            return length == uncompressedLength ? uncompressed
+                    : Arrays.copyOf(uncompressed, length);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    void close() {
+        inflater.end();
+    }
+
+    // the uncompressed payloads if the input starts with a compressed block, otherwise the input as
+    // it is, so that the offline tools (see ProtobufToJson) can read files written either way
+    static InputStream decompressIfCompressed(InputStream in, byte[] dictionary)
+            throws IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, 4);
+        byte[] start = new byte[4];
+        int length = 0;
+        while (length < start.length) {
+            int n = pushbackIn.read(start, length, start.length - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
+        }
+        pushbackIn.unread(start, 0, length);
+        if (length == start.length && ((start[0] & 0xFF) << 24 | (start[1] & 0xFF) << 16
+                | (start[2] & 0xFF) << 8 | (start[3] & 0xFF)) == CompressingSink.MAGIC) {
+            return new BlocksInputStream(pushbackIn, new CompressedBlocks(pushbackIn, dictionary));
+        }
+        return pushbackIn;
+    }
+
+    private static class BlocksInputStream extends InputStream {
+
+        private final InputStream in;
+        private final CompressedBlocks blocks;
+
+        private byte[] block = new byte[0];
+        private int position;
+        private boolean ended;
+
+        private BlocksInputStream(InputStream in, CompressedBlocks blocks) {
+            this.in = in;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(length, block.length - position);
+            System.arraycopy(block, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            blocks.close();
+            in.close();
+        }
+
+        // returns false at the end of the blocks
+        private boolean fill() throws IOException {
+            while (position == block.length) {
+                if (ended) {
+                    return false;
+                }
+                byte[] next = blocks.readBlock();
+                if (next == null) {
+                    ended = true;
+                    return false;
+                }
+                block = next;
+                position = 0;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// compresses payloads in blocks before handing them to the underlying sink, each block holding as
+// many whole payloads (each followed by the delimiter) as fit in the block size
+//
+// every block is compressed on its own, so a reader can start at any block (e.g. after seeking
+// into the middle of a file, by scanning for the magic number), and every block is written to the
+// underlying sink in a single write, so a block is never split across segment files
+//
+// block framing (big endian): int magic, int uncompressed length, int compressed length, followed
+// by a zlib stream, which names the adler-32 of the preset dictionary it was compressed with (if
+// any), see CompressedBlocks
+//
+// the json (and to a lesser degree the protobuf) output is highly repetitive, and a preset
+// dictionary of field names, frames and transaction names (see CompressionDictionary) lets even
+// small blocks benefit from that
+//
+// only appending to the current block is done under the lock, a full (or old) block is swapped
+// out for an empty one and is compressed by the thread that swapped it out, so writer threads
+// compress in parallel, but blocks are still written to the underlying sink in the order they
+// were swapped out
+class CompressingSink implements Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressingSink.class);
+
+    static final int MAGIC = 0x5A424C4B; // "ZBLK"
+
+    static final String GAUGE_NAME_PREFIX = "example.collector:compression.";
+
+    private static final int HEADER_LENGTH = 12;
+
+    private final Sink sink;
+    private final byte[] delimiter;
+    private final int level;
+    private final int blockSizeBytes;
+    private final long maxBlockAgeMillis;
+    private final byte[] dictionary;
+
+    // null if every payload is written right away
+    private final ScheduledExecutorService scheduledExecutor;
+
+    // all guarded by this
+    private byte[] block;
+    private int blockLength;
+    private long blockStartMillis;
+    private long blockCaptureTime;
+    private long nextTicket;
+    private final Deque<Compressor> idleCompressors = new ArrayDeque<Compressor>();
+    private boolean closed;
+
+    // guarded by writeLock, the ticket of the next block to be written to the underlying sink
+    private final Object writeLock = new Object();
+    private long nextWriteTicket;
+
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong blockCount = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+
+    // guarded by reported, totals as of the last call to getGaugeValues()
+    private final long[] reported = new long[4];
+
+    // dictionary is null for none
+    CompressingSink(Sink sink, byte[] delimiter, int level, int blockSizeBytes,
+            long maxBlockAgeMillis, byte[] dictionary) {
+        this.sink = sink;
+        this.delimiter = delimiter;
+        this.level = level;
+        this.blockSizeBytes = blockSizeBytes;
+        this.maxBlockAgeMillis = maxBlockAgeMillis;
+        this.dictionary = dictionary;
+        block = new byte[blockSizeBytes];
+        if (maxBlockAgeMillis <= 0) {
+            scheduledExecutor = null;
+            return;
+        }
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Example-Collector-Block-Flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // the pending block needs to be written on time even when nothing else is being written,
+        // otherwise it would wait in memory (and be lost on a crash) for the whole quiet period
+        long checkIntervalMillis = Math.max(1, Math.min(maxBlockAgeMillis, 1000));
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushIfExpired();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, checkIntervalMillis, checkIntervalMillis, MILLISECONDS);
+    }
+
+    @Override
+    public void write(long captureTime, byte[] bytes, int offset, int length)
+            throws IOException {
+        int recordLength = length + delimiter.length;
+        Compressor full = null;
+        Compressor own = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Sink is closed");
+            }
+            if (blockLength > 0 && blockLength + recordLength > blockSizeBytes) {
+                full = swapOutBlock();
+            }
+            if (blockLength == 0) {
+                blockStartMillis = System.currentTimeMillis();
+                blockCaptureTime = captureTime;
+            }
+            if (blockLength + recordLength > block.length) {
+                // a single payload larger than the block size gets a block of its own
+                block = Arrays.copyOf(block, blockLength + recordLength);
+            }
+            System.arraycopy(bytes, offset, block, blockLength, length);
+            System.arraycopy(delimiter, 0, block, blockLength + length, delimiter.length);
+            blockLength += recordLength;
+            if (blockLength >= blockSizeBytes
+                    || System.currentTimeMillis() - blockStartMillis >= maxBlockAgeMillis) {
+                own = swapOutBlock();
+            }
+        }
+        // every block that was swapped out has to be written, or the ones after it never would be
+        try {
+            if (full != null) {
+                compressAndWrite(full);
+            }
+        } finally {
+            if (own != null) {
+                compressAndWrite(own);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdownNow();
+        }
+        Compressor last = null;
+        long ticketCount;
+        synchronized (this) {
+            closed = true;
+            if (blockLength > 0) {
+                last = swapOutBlock();
+            }
+            ticketCount = nextTicket;
+        }
+        if (last != null) {
+            compressAndWrite(last);
+        }
+        // blocks being compressed by other threads (e.g. a flush that was already running)
+        awaitWriteTicket(ticketCount);
+        synchronized (this) {
+            for (Compressor compressor : idleCompressors) {
+                compressor.deflater.end();
+            }
+            idleCompressors.clear();
+        }
+        sink.close();
+    }
+
+    // the totals since the last call, as gauge values so that they are exported along with (and
+    // the same way as) the gauges collected by glowroot
+    List<GaugeValue> getGaugeValues(long captureTime) {
+        long[] totals = new long[] {uncompressedBytes.get(), compressedBytes.get(),
+                blockCount.get(), compressNanos.get()};
+        long[] deltas = new long[totals.length];
+        synchronized (reported) {
+            for (int i = 0; i < totals.length; i++) {
+                deltas[i] = totals[i] - reported[i];
+                reported[i] = totals[i];
+            }
+        }
+        List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>();
+        gaugeValues.add(createGaugeValue("uncompressedBytes", deltas[0], captureTime));
+        gaugeValues.add(createGaugeValue("compressedBytes", deltas[1], captureTime));
+        gaugeValues.add(createGaugeValue("blocks", deltas[2], captureTime));
+        gaugeValues.add(createGaugeValue("compressNanos", deltas[3], captureTime));
+        if (deltas[1] > 0) {
+            gaugeValues.add(
+                    createGaugeValue("ratio", deltas[0] / (double) deltas[1], captureTime));
+        }
+        if (deltas[3] > 0) {
+            // uncompressed bytes per second of compression time
+            gaugeValues.add(createGaugeValue("throughputBytesPerSecond",
+                    deltas[0] * 1000000000.0 / deltas[3], captureTime));
+        }
+        return gaugeValues;
+    }
+
+    @Override
+    public String toString() {
+        return "blocks: " + blockCount.get() + ", uncompressed bytes: " + uncompressedBytes.get()
+                + ", compressed bytes: " + compressedBytes.get() + ", compress millis: "
+                + compressNanos.get() / 1000000;
+    }
+
+    private void flushIfExpired() throws IOException {
+        Compressor compressor;
+        synchronized (this) {
+            if (closed || blockLength == 0
+                    || System.currentTimeMillis() - blockStartMillis < maxBlockAgeMillis) {
+                return;
+            }
+            compressor = swapOutBlock();
+        }
+        compressAndWrite(compressor);
+    }
+
+    // must be called under this, the current block goes to the returned compressor (which must
+    // then be passed to compressAndWrite()) in exchange for its empty one
+    private Compressor swapOutBlock() {
+        Compressor compressor = idleCompressors.poll();
+        if (compressor == null) {
+            compressor = new Compressor(level, blockSizeBytes);
+        }
+        byte[] swapped = block;
+        block = compressor.block;
+        compressor.block = swapped;
+        compressor.blockLength = blockLength;
+        compressor.captureTime = blockCaptureTime;
+        compressor.ticket = nextTicket++;
+        blockLength = 0;
+        return compressor;
+    }
+
+    // the capture time of the block's first payload is passed on, since that is what the
+    // underlying sink organizes output by
+    private void compressAndWrite(Compressor compressor) throws IOException {
+        int compressedLength = -1;
+        try {
+            long startNanos = System.nanoTime();
+            compressedLength = compressor.compress(dictionary);
+            compressNanos.addAndGet(System.nanoTime() - startNanos);
+            uncompressedBytes.addAndGet(compressor.blockLength);
+            compressedBytes.addAndGet(compressedLength);
+            blockCount.incrementAndGet();
+        } finally {
+            awaitWriteTicket(compressor.ticket);
+            try {
+                if (compressedLength != -1) {
+                    sink.write(compressor.captureTime, compressor.compressed, 0,
+                            compressedLength);
+                }
+            } finally {
+                synchronized (this) {
+                    if (compressor.block.length > blockSizeBytes) {
+                        // don't hold on to the larger array of an oversized payload
+                        compressor.block = new byte[blockSizeBytes];
+                    }
+                    idleCompressors.add(compressor);
+                }
+                synchronized (writeLock) {
+                    nextWriteTicket++;
+                    writeLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // the wait is not interruptible, since giving up on a turn would hold up every later block
+    private void awaitWriteTicket(long ticket) {
+        boolean interrupted = false;
+        synchronized (writeLock) {
+            while (nextWriteTicket < ticket) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static GaugeValue createGaugeValue(String name, double value, long captureTime) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_NAME_PREFIX + name)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+
+    // a block with the deflater and output buffer to compress it, so that blocks can be
+    // compressed outside of the lock, and the buffers are reused from block to block
+    private static class Compressor {
+
+        private final Deflater deflater;
+        private byte[] block;
+        private byte[] compressed;
+
+        private int blockLength;
+        private long captureTime;
+        private long ticket;
+
+        private Compressor(int level, int blockSizeBytes) {
+            deflater = new Deflater(level);
+            block = new byte[blockSizeBytes];
+            compressed = new byte[HEADER_LENGTH + blockSizeBytes + blockSizeBytes / 1000 + 64];
+        }
+
+        // returns the length of the framed block in compressed
+        private int compress(byte[] dictionary) {
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (HEADER_LENGTH + compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed,
+                        HEADER_LENGTH + compressedLength,
+                        compressed.length - HEADER_LENGTH - compressedLength);
+            }
+            writeInt(compressed, 0, MAGIC);
+            writeInt(compressed, 4, blockLength);
+            writeInt(compressed, 8, compressedLength);
+            return HEADER_LENGTH + compressedLength;
+        }
+    }
+}
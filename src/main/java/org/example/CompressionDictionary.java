@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// offline training of a preset dictionary for CompressingSink from sample (uncompressed) json
+// output of the collector, e.g.
+//
+// java -cp glowroot.jar:glowroot-example-collector.jar org.example.CompressionDictionary \
+//         traces.dict 32768 sample1.json sample2.json
+//
+// the repetition in the output is mostly whole json strings (field names, stack frames,
+// transaction names, query texts), so the dictionary is made up of the strings that would save the
+// most bytes across the samples, i.e. by occurrence count times length
+//
+// deflate only looks back 32kb and encodes nearer matches in fewer bits, so the dictionary is
+// limited to 32kb and the most valuable strings are placed at its end
+public class CompressionDictionary {
+
+    static final int MAX_SIZE = 32768;
+
+    // shorter strings are cheaper to encode as literals than as a back reference
+    private static final int MIN_STRING_LENGTH = 5;
+
+    private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println(
+                    "usage: CompressionDictionary <dictionary file> <max size> <sample file>...");
+            System.exit(1);
+        }
+        CompressionDictionary trainer = new CompressionDictionary();
+        for (int i = 2; i < args.length; i++) {
+            trainer.addSample(load(new File(args[i])));
+        }
+        byte[] dictionary = trainer.build(Integer.parseInt(args[1]));
+        OutputStream out = new FileOutputStream(args[0]);
+        try {
+            out.write(dictionary);
+        } finally {
+            out.close();
+        }
+    }
+
+    void addSample(byte[] sample) {
+        // json strings are delimited by unescaped quotes, and a quote byte never occurs inside a
+        // multi-byte utf-8 sequence, so the strings can be found without decoding the sample
+        int start = -1;
+        for (int i = 0; i < sample.length; i++) {
+            byte b = sample[i];
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                if (start == -1) {
+                    start = i;
+                } else {
+                    // including the quotes (and the colon after a field name), which then also
+                    // come from the dictionary
+                    int end = i + 1;
+                    if (end < sample.length && sample[end] == ':') {
+                        end++;
+                    }
+                    add(sample, start, end);
+                    start = -1;
+                }
+            }
+        }
+    }
+
+    byte[] build(int maxSize) {
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        List<Candidate> sorted = new ArrayList<Candidate>();
+        for (Candidate candidate : candidates.values()) {
+            if (candidate.count > 1) {
+                sorted.add(candidate);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate left, Candidate right) {
+                long leftSavings = left.getSavings();
+                long rightSavings = right.getSavings();
+                return leftSavings > rightSavings ? -1 : leftSavings < rightSavings ? 1 : 0;
+            }
+        });
+        List<byte[]> selected = new ArrayList<byte[]>();
+        int size = 0;
+        for (Candidate candidate : sorted) {
+            if (size + candidate.bytes.length <= maxSize) {
+                selected.add(candidate.bytes);
+                size += candidate.bytes.length;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            byte[] bytes = selected.get(i);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void add(byte[] sample, int start, int end) {
+        int length = end - start;
+        if (length < MIN_STRING_LENGTH) {
+            return;
+        }
+        // iso-8859-1 maps each byte to one char, so this is just a cheap hash key for the bytes
+        String key;
+        try {
+            key = new String(sample, start, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        Candidate candidate = candidates.get(key);
+        if (candidate == null) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(sample, start, bytes, 0, length);
+            candidates.put(key, new Candidate(bytes));
+        } else {
+            candidate.count++;
+        }
+    }
+
+    static byte[] load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Candidate {
+
+        private final byte[] bytes;
+        private int count = 1;
+
+        private Candidate(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private long getSavings() {
+            return (long) (count - 1) * bytes.length;
+        }
+    }
+}
@@ -15,15 +15,18 @@
  */
 package org.example;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 
+import org.example.CollectorConfig.OutputFormat;
+import org.example.CollectorConfig.ProfileFormat;
+import org.example.CollectorConfig.QueryTextMode;
+
 import org.glowroot.agent.shaded.com.google.common.collect.ImmutableList;
 import org.glowroot.agent.shaded.com.google.common.collect.Lists;
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -40,108 +43,920 @@ public class ExampleCollector implements org.glowroot.agent.collector.Collector
 
     private static final Logger logger = LoggerFactory.getLogger(ExampleCollector.class);
 
-    private static final JsonFactory jsonFactory = new JsonFactory();
+    private volatile CollectorConfig config;
+    private volatile boolean protobuf;
+    private volatile boolean foldProfiles;
+    private volatile Sink sink;
+    private volatile StackFrameCache stackFrameCache;
+    private volatile StackTraceDictionary stackTraceDictionary;
+    private volatile QueryTextMode queryTextMode = QueryTextMode.INLINE;
+    private volatile QueryTextDictionary queryTextDictionary;
+    private volatile TraceSampler traceSampler;
+    private volatile TraceUpdates traceUpdates;
+    private volatile GaugeBatcher gaugeBatcher;
+    private volatile GaugeRollup gaugeRollup;
+    private volatile AggregateRollup aggregateRollup;
+    private volatile ParallelSerializer parallelSerializer;
+    private volatile ExportPipeline pipeline;
+
+    // the cost of collectTrace() on the agent threads, by how far each trace got, null unless self
+    // telemetry is enabled, since measuring it costs more than dropping a trace does
+    private volatile AllocationStats collectTraceStats;
+    private volatile SelfTelemetry telemetry;
 
     @Override
     public void init(List<File> confDirs, Environment environment, AgentConfig agentConfig,
-            AgentConfigUpdater agentConfigUpdater) {}
+            AgentConfigUpdater agentConfigUpdater) {
+        config = CollectorConfig.create(confDirs);
+        telemetry = new SelfTelemetry(config.selfTelemetryEnabled());
+        if (config.selfTelemetryEnabled()) {
+            collectTraceStats = new AllocationStats();
+        }
+        sink = createSink(config);
+        stackFrameCache = new StackFrameCache(config.stackFrameCacheMaxSize());
+        protobuf = config.outputFormat() == OutputFormat.PROTOBUF && !(sink instanceof LoggerSink);
+        foldProfiles = config.profileFormat() == ProfileFormat.FOLDED;
+        if (config.stackTraceDictionaryEnabled() && !protobuf) {
+            stackTraceDictionary = new StackTraceDictionary(createDictionarySink(config, "stacks"),
+                    stackFrameCache, config.stackTraceDictionaryMaxSize());
+        }
+        if (!protobuf) {
+            // the protobuf output already refers to its shared query texts by index
+            queryTextMode = config.queryTextMode();
+            if (queryTextMode == QueryTextMode.DICTIONARY) {
+                queryTextDictionary = new QueryTextDictionary(
+                        createDictionarySink(config, "queries"),
+                        config.queryTextDictionaryMaxSize());
+            }
+        }
+        if (config.traceSamplingEnabled()) {
+            traceSampler = new TraceSampler(config.traceSamplingKeepErrors(),
+                    config.traceSamplingRules(), config.traceSamplingDefaultRule());
+        }
+        if (config.traceUpdateDeltas() && !protobuf) {
+            traceUpdates = new TraceUpdates(config.traceUpdateMaxSize(),
+                    config.traceUpdateExpirationMillis(), config.traceUpdateMaxProfileNodes());
+        }
+        if (config.gaugeBatchWindowMillis() > 0) {
+            gaugeBatcher = new GaugeBatcher(config.gaugeBatchWindowMillis(),
+                    config.gaugeBatchMaxValues());
+        }
+        List<String> gaugeRollupPatterns = config.gaugeRollupPatterns();
+        if (!gaugeRollupPatterns.isEmpty() && config.gaugeRollupWindowMillis() > 0) {
+            gaugeRollup = new GaugeRollup(gaugeRollupPatterns, config.gaugeRollupWindowMillis());
+        }
+        long[] rollupIntervalsMillis = config.rollupIntervalsMillis();
+        if (rollupIntervalsMillis.length > 0) {
+            aggregateRollup = new AggregateRollup(rollupIntervalsMillis,
+                    config.rollupMaxTransactionTypes(), config.rollupMaxQueries(),
+                    config.rollupMaxProfileNodes());
+        }
+        parallelSerializer = new ParallelSerializer(config.serializerThreads(),
+                config.serializerMinBatchSize());
+        pipeline = new ExportPipeline(config.queueCapacity(), config.overflowPolicy(),
+                config.writerThreads(), telemetry);
+        pipeline.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Example-Collector-Shutdown"));
+    }
 
     @Override
     public void collectAggregates(AggregateReader aggregateReader) throws Exception {
-        CollectingAggregateVisitor aggregateVisitor = new CollectingAggregateVisitor();
+        long startNanos = System.nanoTime();
+        try {
+            collectAggregates(aggregateReader, config.transactionNameTopN());
+        } catch (Exception e) {
+            telemetry.increment("collectAggregates.errors");
+            throw e;
+        }
+        telemetry.recordNanosSince("collectAggregates.nanos", startNanos);
+    }
+
+    private void collectAggregates(AggregateReader aggregateReader, int transactionNameTopN)
+            throws Exception {
+        TopTransactionNames topTransactionNames = transactionNameTopN > 0
+                ? new TopTransactionNames(transactionNameTopN, config.transactionNameRankBy(),
+                        config.rollupMaxQueries(), config.rollupMaxProfileNodes())
+                : null;
+        CollectingAggregateVisitor aggregateVisitor =
+                new CollectingAggregateVisitor(topTransactionNames);
+        long visitStartNanos = System.nanoTime();
         aggregateReader.accept(aggregateVisitor);
+        telemetry.recordNanosSince("aggregates.visit.nanos", visitStartNanos);
 
-        for (CollectedAggregate collectedAggregate : aggregateVisitor.collectedAggregates) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            JsonGenerator jg = jsonFactory.createGenerator(baos);
-            new AggregateWriter(jg).write(collectedAggregate.transactionType,
-                    collectedAggregate.aggregate, collectedAggregate.sharedQueryTexts);
-            jg.close();
-            logger.info(baos.toString());
+        long captureTime = aggregateReader.captureTime();
+        List<CollectedAggregate> batch =
+                new ArrayList<CollectedAggregate>(aggregateVisitor.collectedAggregates);
+        if (topTransactionNames != null) {
+            for (String transactionType : topTransactionNames.getTransactionTypes()) {
+                for (TopTransactionNames.RankedAggregate rankedAggregate : topTransactionNames
+                        .getTop(transactionType)) {
+                    batch.add(new CollectedAggregate(transactionType,
+                            rankedAggregate.transactionName(), 0, 0, rankedAggregate.aggregate(),
+                            rankedAggregate.sharedQueryTexts()));
+                }
+                TopTransactionNames.OtherAggregate otherAggregate =
+                        topTransactionNames.getOther(transactionType);
+                if (otherAggregate != null) {
+                    batch.add(new CollectedAggregate(transactionType, null,
+                            otherAggregate.transactionNameCount(), 0,
+                            otherAggregate.toAggregate(), otherAggregate.sharedQueryTexts()));
+                }
+            }
+        }
+        // the whole interval is a single export so that it can be serialized in parallel
+        submit(new AggregatesExport(captureTime, batch));
+        if (aggregateRollup != null) {
+            for (CollectedAggregate collectedAggregate : aggregateVisitor.collectedAggregates) {
+                submit(new AggregateRollupExport(captureTime, collectedAggregate));
+            }
         }
     }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        JsonGenerator jg = jsonFactory.createGenerator(baos);
-        jg.writeStartArray();
-        for (GaugeValue gaugeValue : gaugeValues) {
-            jg.writeStartObject();
-            jg.writeStringField("gaugeName", gaugeValue.getGaugeName());
-            jg.writeNumberField("captureTime", gaugeValue.getCaptureTime());
-            jg.writeNumberField("value", gaugeValue.getValue());
-            jg.writeNumberField("weight", gaugeValue.getWeight());
-            jg.writeEndObject();
+        long startNanos = System.nanoTime();
+        try {
+            collectGaugeValues(gaugeValues, telemetry.isEnabled());
+        } catch (IOException e) {
+            telemetry.increment("collectGaugeValues.errors");
+            throw e;
+        }
+        telemetry.recordNanosSince("collectGaugeValues.nanos", startNanos);
+    }
+
+    private void collectGaugeValues(List<GaugeValue> gaugeValues, boolean selfTelemetryEnabled)
+            throws IOException {
+        if (traceSampler != null || sink instanceof CompressingSink || selfTelemetryEnabled) {
+            List<GaugeValue> withCounts = new ArrayList<GaugeValue>(gaugeValues);
+            long captureTime = getCaptureTime(gaugeValues);
+            if (traceSampler != null) {
+                withCounts.addAll(traceSampler.getCountGaugeValues(captureTime));
+            }
+            if (sink instanceof CompressingSink) {
+                withCounts.addAll(((CompressingSink) sink).getGaugeValues(captureTime));
+            }
+            if (selfTelemetryEnabled) {
+                withCounts.addAll(telemetry.getGaugeValues(captureTime));
+            }
+            gaugeValues = withCounts;
+        }
+        if (gaugeRollup != null) {
+            gaugeValues = gaugeRollup.add(gaugeValues, System.currentTimeMillis());
+            List<GaugeRollup.Point> points = gaugeRollup.drainClosed();
+            if (!points.isEmpty()) {
+                submit(new GaugeRollupExport(points));
+            }
+            if (gaugeValues.isEmpty()) {
+                return;
+            }
+        }
+        if (gaugeBatcher == null) {
+            submit(new GaugeValuesExport(gaugeValues));
+            return;
+        }
+        GaugeBatch batch = gaugeBatcher.add(gaugeValues, System.currentTimeMillis());
+        if (batch != null) {
+            submit(new GaugeBatchExport(batch));
         }
-        jg.writeEndArray();
-        jg.close();
-        logger.info(baos.toString());
     }
 
     @Override
     public void collectTrace(TraceReader traceReader) throws Exception {
-        CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
+        if (!telemetry.isEnabled()) {
+            collectTrace(traceReader, config.traceHeaderOnlyAboveEntryCount());
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long startAllocatedBytes = collectTraceStats.currentThreadAllocatedBytes();
+        long startCpuNanos = collectTraceStats.currentThreadCpuNanos();
+        TraceOutcome outcome;
+        try {
+            outcome = collectTrace(traceReader, config.traceHeaderOnlyAboveEntryCount());
+        } catch (Exception e) {
+            telemetry.increment("collectTrace.errors");
+            throw e;
+        }
+        collectTraceStats.record(outcome.name, startAllocatedBytes, startCpuNanos);
+        telemetry.recordNanosSince("collectTrace.nanos", startNanos);
+        telemetry.increment(outcome.counterName);
+    }
+
+    // the cheap checks come first, and the trace is only visited (which is what builds all of its
+    // entries, queries and profiles) once it is known to be exported in full
+    private TraceOutcome collectTrace(TraceReader traceReader, int headerOnlyAboveEntryCount)
+            throws Exception {
+        if (pipeline.dropIfFull()) {
+            return TraceOutcome.DROPPED;
+        }
+        Trace.Header header = null;
+        if (traceSampler != null) {
+            header = traceReader.readHeader();
+            if (!traceSampler.keep(traceReader.traceId(), header, traceReader.partial(),
+                    System.nanoTime())) {
+                return TraceOutcome.SAMPLED_OUT;
+            }
+        }
+        if (headerOnlyAboveEntryCount > 0) {
+            if (header == null) {
+                header = traceReader.readHeader();
+            }
+            if (header.getEntryCount() > headerOnlyAboveEntryCount) {
+                submit(new HeaderOnlyTraceExport(traceReader, header));
+                return TraceOutcome.HEADER_ONLY;
+            }
+        }
+        if (config.traceStreaming()) {
+            // the reader is only valid until this returns (glowroot keeps adding to an in-flight
+            // trace after that), so the trace is visited here, streaming each entry into this
+            // thread's output buffer, and only the serialized bytes are handed to the writer
+            submit(streamTrace(traceReader));
+            return TraceOutcome.STREAMED;
+        }
+        CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor(headerOnlyAboveEntryCount);
+        long visitStartNanos = System.nanoTime();
         traceReader.accept(traceVisitor);
+        telemetry.recordNanosSince("trace.visit.nanos", visitStartNanos);
+        submit(new TraceExport(traceReader, traceVisitor));
+        return TraceOutcome.VISITED;
+    }
+
+    @Override
+    public void log(LogEvent logEvent) {
+        telemetry.increment("log.events");
+    }
+
+    // counts the task as dropped if the pipeline drops it
+    private void submit(ExportTask task) {
+        if (!pipeline.submit(task)) {
+            telemetry.increment("export.dropped");
+        }
+    }
+
+    // records how long serializing the payload took (since startNanos) and how big it is, and
+    // then how long writing it to the sink took, under the given kind of payload
+    private void writeTo(OutputBuffer outputBuffer, long captureTime, PayloadKind kind,
+            long startNanos) throws IOException {
+        long serializedNanos = System.nanoTime();
+        telemetry.record(kind.serializeNanosName, serializedNanos - startNanos);
+        telemetry.record(kind.bytesName, outputBuffer.bytesWritten());
+        outputBuffer.writeTo(sink, captureTime);
+        telemetry.recordNanosSince(kind.sinkWriteNanosName, serializedNanos);
+    }
+
+    private void recordTraceSize(Trace.Header header, Profile mainThreadProfile,
+            Profile auxThreadProfile) {
+        telemetry.record("trace.entries", header.getEntryCount());
+        int profileNodeCount = 0;
+        if (mainThreadProfile != null) {
+            profileNodeCount += mainThreadProfile.getNodeCount();
+        }
+        if (auxThreadProfile != null) {
+            profileNodeCount += auxThreadProfile.getNodeCount();
+        }
+        telemetry.record("trace.profileNodes", profileNodeCount);
+    }
+
+    // drains the export queue, waiting at most the configured shutdown deadline
+    void close() throws InterruptedException {
+        if (gaugeRollup != null) {
+            List<GaugeRollup.Point> points = gaugeRollup.flush();
+            if (!points.isEmpty()) {
+                submit(new GaugeRollupExport(points));
+            }
+            if (gaugeRollup.getLateCount() > 0) {
+                logger.warn("{} gauge value(s) were not rolled up into a window that had already"
+                        + " been written", gaugeRollup.getLateCount());
+            }
+        }
+        if (gaugeBatcher != null) {
+            GaugeBatch batch = gaugeBatcher.flush();
+            if (batch != null) {
+                submit(new GaugeBatchExport(batch));
+            }
+        }
+        pipeline.shutdown(config.shutdownDeadlineMillis());
+        parallelSerializer.shutdown();
+        if (aggregateRollup != null) {
+            // the pipeline has shut down, so the windows still open are written on this thread
+            List<AggregateRollup.RolledUpAggregate> closed = aggregateRollup.flush();
+            try {
+                for (AggregateRollup.RolledUpAggregate rolledUpAggregate : closed) {
+                    writeAggregate(rolledUpAggregate.captureTime(),
+                            rolledUpAggregate.collectedAggregate());
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+            if (aggregateRollup.getDroppedCount() > 0) {
+                logger.warn("{} aggregate(s) were not rolled up due to the limit on transaction"
+                        + " types", aggregateRollup.getDroppedCount());
+            }
+            if (aggregateRollup.getLateCount() > 0) {
+                logger.warn("{} aggregate(s) were not rolled up into a window that had already"
+                        + " been written", aggregateRollup.getLateCount());
+            }
+        }
+        if (collectTraceStats != null) {
+            logger.debug("collect trace cost: {}", collectTraceStats);
+        }
+        logger.debug("stack frame cache: {}", stackFrameCache);
+        if (sink instanceof CompressingSink) {
+            logger.debug("compression: {}", sink);
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+        if (stackTraceDictionary != null) {
+            logger.debug("stack trace dictionary: {}", stackTraceDictionary);
+            try {
+                stackTraceDictionary.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        if (queryTextDictionary != null) {
+            logger.debug("query text dictionary: {}", queryTextDictionary);
+            try {
+                queryTextDictionary.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static Sink createSink(CollectorConfig config) {
+        boolean json = config.outputFormat() == OutputFormat.JSON;
+        byte[] delimiter = json ? new byte[] {'\n'} : new byte[0];
+        String extension = json ? ".json" : ".bin";
+        if (!config.compressionEnabled()) {
+            return createDestinationSink(config, extension, delimiter);
+        }
+        // the delimiter goes inside the compressed blocks, which carry their own framing
+        Sink sink = createDestinationSink(config, extension + ".blocks", new byte[0]);
+        if (sink instanceof LoggerSink) {
+            return sink;
+        }
+        byte[] dictionary = null;
+        File dictionaryFile = config.compressionDictionaryFile();
+        if (dictionaryFile != null) {
+            try {
+                dictionary = CompressionDictionary.load(dictionaryFile);
+            } catch (IOException e) {
+                logger.error("could not read {}, compressing without a dictionary instead: {}",
+                        dictionaryFile.getAbsolutePath(), e.getMessage(), e);
+            }
+        }
+        return new CompressingSink(sink, delimiter, config.compressionLevel(),
+                config.compressionBlockSizeBytes(), config.compressionMaxBlockAgeMillis(),
+                dictionary);
+    }
+
+    private static Sink createDestinationSink(CollectorConfig config, String extension,
+            byte[] delimiter) {
+        URL httpUrl = config.httpUrl();
+        if (httpUrl != null) {
+            // compressed blocks and protobuf records are not newline delimited
+            String contentType = delimiter.length == 0 ? "application/octet-stream"
+                    : "application/x-ndjson";
+            return createHttpSink(config, contentType, delimiter, config.httpSenderThreads(),
+                    config.httpSpillDir());
+        }
+        File outputDir = config.outputDir();
+        if (outputDir != null) {
+            try {
+                return new MappedFileSink(outputDir, extension, delimiter,
+                        config.segmentSizeBytes(), config.segmentRollIntervalMillis(),
+                        config.fsyncPolicy(), config.fsyncIntervalMillis());
+            } catch (IOException e) {
+                logger.error("could not open {}, logging output instead: {}",
+                        outputDir.getAbsolutePath(), e.getMessage(), e);
+                return new LoggerSink();
+            }
+        }
+        File outputFile = config.outputFile();
+        if (outputFile != null) {
+            try {
+                return new StreamSink(outputFile, delimiter);
+            } catch (IOException e) {
+                logger.error("could not open {}, logging output instead: {}",
+                        outputFile.getAbsolutePath(), e.getMessage(), e);
+                return new LoggerSink();
+            }
+        }
+        return new LoggerSink();
+    }
+
+    // a dictionary is written alongside the main output, e.g. to a "stacks" sub directory of the
+    // output dir or to a ".stacks" file next to the output file, since that is where the hashes
+    // that refer to it need to be resolved
+    //
+    // when sending to http, the dictionary records are posted (as ndjson, each record telling by
+    // its fields which dictionary it is from) to the same url as the output, with a spill queue of
+    // their own (in a sub directory of the spill dir), since a record that is lost is never sent
+    // again
+    private static Sink createDictionarySink(CollectorConfig config, String name) {
+        byte[] delimiter = new byte[] {'\n'};
+        if (config.httpUrl() != null) {
+            File spillDir = config.httpSpillDir();
+            return createHttpSink(config, "application/x-ndjson", delimiter, 1,
+                    spillDir == null ? null : new File(spillDir, name));
+        }
+        File outputDir = config.outputDir();
+        if (outputDir != null) {
+            File dictionaryDir = new File(outputDir, name);
+            try {
+                return new MappedFileSink(dictionaryDir, ".json", delimiter,
+                        config.segmentSizeBytes(), config.segmentRollIntervalMillis(),
+                        config.fsyncPolicy(), config.fsyncIntervalMillis());
+            } catch (IOException e) {
+                logger.error("could not open {}, logging output instead: {}",
+                        dictionaryDir.getAbsolutePath(), e.getMessage(), e);
+                return new LoggerSink();
+            }
+        }
+        File outputFile = config.outputFile();
+        if (outputFile != null) {
+            File dictionaryFile = new File(outputFile.getPath() + "." + name);
+            try {
+                return new StreamSink(dictionaryFile, delimiter);
+            } catch (IOException e) {
+                logger.error("could not open {}, logging output instead: {}",
+                        dictionaryFile.getAbsolutePath(), e.getMessage(), e);
+                return new LoggerSink();
+            }
+        }
+        return new LoggerSink();
+    }
+
+    // spillDir is null for no spill queue
+    private static Sink createHttpSink(CollectorConfig config, String contentType,
+            byte[] delimiter, int senderThreadCount, File spillDir) {
+        SpillQueue spillQueue = null;
+        if (spillDir != null) {
+            try {
+                spillQueue = new SpillQueue(spillDir, config.httpSpillSegmentSizeBytes(),
+                        config.httpSpillMaxBytes());
+            } catch (IOException e) {
+                logger.error("could not open {}, sending without a spill queue instead: {}",
+                        spillDir.getAbsolutePath(), e.getMessage(), e);
+            }
+        }
+        return new HttpSink(config.httpUrl(), contentType, delimiter, senderThreadCount,
+                config.httpBatchMaxRecords(), config.httpBatchMaxBytes(),
+                config.httpLingerMillis(), config.httpMaxPendingBatches(),
+                config.httpMaxRetries(), config.httpMaxBackoffMillis(), spillQueue);
+    }
+
+    private class AggregatesExport implements ExportTask {
+
+        private final long captureTime;
+        private final List<CollectedAggregate> collectedAggregates;
+
+        private AggregatesExport(long captureTime, List<CollectedAggregate> collectedAggregates) {
+            this.captureTime = captureTime;
+            this.collectedAggregates = collectedAggregates;
+        }
+
+        @Override
+        public void export() throws Exception {
+            long startNanos = System.nanoTime();
+            parallelSerializer.serialize(collectedAggregates,
+                    new ParallelSerializer.Serializer<CollectedAggregate>() {
+                        @Override
+                        public void serialize(CollectedAggregate collectedAggregate,
+                                OutputBuffer outputBuffer) throws IOException {
+                            long startNanos = System.nanoTime();
+                            serializeAggregate(captureTime, collectedAggregate, outputBuffer);
+                            telemetry.recordNanosSince("aggregate.serialize.nanos", startNanos);
+                            telemetry.record("aggregate.bytes", outputBuffer.bytesWritten());
+                        }
+                    }, sink, captureTime);
+            // the aggregates may be serialized in parallel, but are written to the sink in order
+            // once all of them have been serialized, so this includes all of the sink writes
+            telemetry.recordNanosSince("aggregates.export.nanos", startNanos);
+        }
+    }
+
+    private class AggregateRollupExport implements ExportTask {
+
+        private final long captureTime;
+        private final CollectedAggregate collectedAggregate;
+
+        private AggregateRollupExport(long captureTime, CollectedAggregate collectedAggregate) {
+            this.captureTime = captureTime;
+            this.collectedAggregate = collectedAggregate;
+        }
+
+        @Override
+        public void export() throws IOException {
+            List<AggregateRollup.RolledUpAggregate> closed = aggregateRollup.add(captureTime,
+                    collectedAggregate.transactionType(), collectedAggregate.aggregate(),
+                    collectedAggregate.sharedQueryTexts());
+            for (AggregateRollup.RolledUpAggregate rolledUpAggregate : closed) {
+                writeAggregate(rolledUpAggregate.captureTime(),
+                        rolledUpAggregate.collectedAggregate());
+            }
+        }
+    }
+
+    private void writeAggregate(long captureTime, CollectedAggregate collectedAggregate)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        serializeAggregate(captureTime, collectedAggregate, outputBuffer);
+        writeTo(outputBuffer, captureTime, PayloadKind.AGGREGATE, startNanos);
+    }
+
+    private void serializeAggregate(long captureTime, CollectedAggregate collectedAggregate,
+            OutputBuffer outputBuffer) throws IOException {
+        if (protobuf) {
+            new ProtobufWriter(outputBuffer.startBinary()).writeAggregate(captureTime,
+                    collectedAggregate);
+        } else {
+            AggregateWriter aggregateWriter =
+                    new AggregateWriter(outputBuffer.startJson(), stackFrameCache);
+            aggregateWriter.setQueryTextEncoding(queryTextMode, queryTextDictionary);
+            aggregateWriter.setProfileEncoding(foldProfiles, config.profilePruneBelowFraction());
+            aggregateWriter.write(collectedAggregate);
+        }
+    }
+
+    private class GaugeValuesExport implements ExportTask {
+
+        private final List<GaugeValue> gaugeValues;
+
+        private GaugeValuesExport(List<GaugeValue> gaugeValues) {
+            this.gaugeValues = gaugeValues;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            if (protobuf) {
+                new ProtobufWriter(outputBuffer.startBinary()).writeGaugeValues(gaugeValues);
+            } else {
+                new GaugeValueWriter(outputBuffer.startJson()).write(gaugeValues);
+            }
+            writeTo(outputBuffer, getCaptureTime(gaugeValues), PayloadKind.GAUGE_VALUES,
+                    startNanos);
+        }
+    }
+
+    private class GaugeBatchExport implements ExportTask {
+
+        private final GaugeBatch batch;
+
+        private GaugeBatchExport(GaugeBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            if (protobuf) {
+                new ProtobufWriter(outputBuffer.startBinary()).writeGaugeBatch(batch);
+            } else {
+                new GaugeValueWriter(outputBuffer.startJson()).write(batch);
+            }
+            writeTo(outputBuffer, batch.maxCaptureTime(), PayloadKind.GAUGE_BATCH, startNanos);
+        }
+    }
+
+    private class GaugeRollupExport implements ExportTask {
+
+        private final List<GaugeRollup.Point> points;
+
+        private GaugeRollupExport(List<GaugeRollup.Point> points) {
+            this.points = points;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            if (protobuf) {
+                new ProtobufWriter(outputBuffer.startBinary()).writeGaugeRollups(points);
+            } else {
+                new GaugeValueWriter(outputBuffer.startJson()).writeRollups(points);
+            }
+            long captureTime = 0;
+            for (GaugeRollup.Point point : points) {
+                captureTime = Math.max(captureTime, point.captureTime());
+            }
+            writeTo(outputBuffer, captureTime, PayloadKind.GAUGE_ROLLUPS, startNanos);
+        }
+    }
+
+    // returns null if there are no limits
+    private TraceBudget createTraceBudget(OutputBuffer outputBuffer) {
+        if (config.traceMaxBytes() == 0 && config.traceMaxEntries() == 0
+                && config.traceMaxProfileNodes() == 0 && config.traceMaxStringLength() == 0
+                && config.traceMaxExceptionDepth() == 0) {
+            return null;
+        }
+        return new TraceBudget(config.traceMaxBytes(), config.traceMaxEntries(),
+                config.traceMaxProfileNodes(), config.traceMaxStringLength(),
+                config.traceMaxExceptionDepth(), outputBuffer);
+    }
+
+    private static long getCaptureTime(List<GaugeValue> gaugeValues) {
+        long captureTime = 0;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            captureTime = Math.max(captureTime, gaugeValue.getCaptureTime());
+        }
+        return captureTime;
+    }
+
+    private class TraceExport implements ExportTask {
+
+        private final String traceId;
+        private final long captureTime;
+        private final boolean partial;
+        private final boolean update;
+        private final CollectingTraceVisitor traceVisitor;
+
+        private TraceExport(TraceReader traceReader, CollectingTraceVisitor traceVisitor) {
+            traceId = traceReader.traceId();
+            captureTime = traceReader.captureTime();
+            partial = traceReader.partial();
+            update = traceReader.update();
+            this.traceVisitor = traceVisitor;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            TraceWriter traceWriter = null;
+            if (protobuf) {
+                new ProtobufWriter(outputBuffer.startBinary()).writeTrace(traceId, captureTime,
+                        partial, update, traceVisitor.header, traceVisitor.entries,
+                        traceVisitor.queries, traceVisitor.sharedQueryTexts,
+                        traceVisitor.mainThreadProfile, traceVisitor.auxThreadProfile);
+            } else {
+                JsonGenerator jg = outputBuffer.startJson();
+                traceWriter = new TraceWriter(jg, stackFrameCache, stackTraceDictionary);
+                traceWriter.applyBudget(createTraceBudget(outputBuffer));
+                traceWriter.setQueryTextEncoding(queryTextMode, queryTextDictionary);
+                traceWriter.setProfileEncoding(foldProfiles, config.profilePruneBelowFraction());
+                if (traceUpdates != null) {
+                    traceWriter.trackUpdates(traceId, traceUpdates.getPrevious(traceId, update,
+                            captureTime, System.currentTimeMillis()),
+                            traceUpdates.getMaxProfileNodes());
+                }
+                traceWriter.write(traceVisitor.header, traceVisitor.entries,
+                        traceVisitor.queries, traceVisitor.sharedQueryTexts,
+                        traceVisitor.mainThreadProfile, traceVisitor.auxThreadProfile);
+            }
+            recordTraceSize(traceVisitor.header, traceVisitor.mainThreadProfile,
+                    traceVisitor.auxThreadProfile);
+            writeTo(outputBuffer, captureTime, PayloadKind.TRACE, startNanos);
+            // only remembered once written, so a failed write is followed by a full snapshot
+            if (traceWriter != null && traceUpdates != null) {
+                traceUpdates.written(traceId, partial,
+                        traceWriter.emitted(captureTime, traceVisitor.header),
+                        System.currentTimeMillis());
+            }
+        }
+    }
+
+    private class HeaderOnlyTraceExport implements ExportTask {
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        JsonGenerator jg = jsonFactory.createGenerator(baos);
-        new TraceWriter(jg).write(traceVisitor.header, traceVisitor.entries, traceVisitor.queries,
+        private final String traceId;
+        private final long captureTime;
+        private final boolean partial;
+        private final boolean update;
+        private final Trace.Header header;
+
+        private HeaderOnlyTraceExport(TraceReader traceReader, Trace.Header header) {
+            traceId = traceReader.traceId();
+            captureTime = traceReader.captureTime();
+            partial = traceReader.partial();
+            update = traceReader.update();
+            this.header = header;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            List<Trace.Entry> entries = ImmutableList.of();
+            List<Aggregate.Query> queries = ImmutableList.of();
+            List<String> sharedQueryTexts = ImmutableList.of();
+            if (protobuf) {
+                // the header's entry count shows that the entries were omitted
+                new ProtobufWriter(outputBuffer.startBinary()).writeTrace(traceId, captureTime,
+                        partial, update, header, entries, queries, sharedQueryTexts, null, null);
+            } else {
+                new TraceWriter(outputBuffer.startJson(), stackFrameCache, stackTraceDictionary)
+                        .writeHeaderOnly(header);
+            }
+            writeTo(outputBuffer, captureTime, PayloadKind.HEADER_ONLY_TRACE, startNanos);
+        }
+    }
+
+    private SerializedTraceExport streamTrace(TraceReader traceReader) throws Exception {
+        long startNanos = System.nanoTime();
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        String traceId = traceReader.traceId();
+        long captureTime = traceReader.captureTime();
+        boolean partial = traceReader.partial();
+        StreamingTraceWriter traceWriter;
+        TraceWriter jsonTraceWriter = null;
+        if (protobuf) {
+            ProtobufWriter protobufWriter = new ProtobufWriter(outputBuffer.startBinary());
+            // the envelope precedes the entries, but the header is visited after them
+            protobufWriter.writeStreamingStart(traceId, captureTime, partial,
+                    traceReader.update(), traceReader.readHeader().getTransactionType());
+            traceWriter = protobufWriter;
+        } else {
+            jsonTraceWriter = new TraceWriter(outputBuffer.startJson(), stackFrameCache,
+                    stackTraceDictionary);
+            jsonTraceWriter.applyBudget(createTraceBudget(outputBuffer));
+            jsonTraceWriter.setQueryTextEncoding(queryTextMode, queryTextDictionary);
+            jsonTraceWriter.setProfileEncoding(foldProfiles, config.profilePruneBelowFraction());
+            if (traceUpdates != null) {
+                jsonTraceWriter.trackUpdates(traceId, traceUpdates.getPrevious(traceId,
+                        traceReader.update(), captureTime, System.currentTimeMillis()),
+                        traceUpdates.getMaxProfileNodes());
+            }
+            jsonTraceWriter.writeStreamingStart();
+            traceWriter = jsonTraceWriter;
+        }
+        StreamingTraceVisitor traceVisitor = new StreamingTraceVisitor(traceWriter);
+        traceReader.accept(traceVisitor);
+        if (traceVisitor.exception != null) {
+            throw traceVisitor.exception;
+        }
+        traceWriter.writeStreamingEnd(traceVisitor.header, traceVisitor.queries,
                 traceVisitor.sharedQueryTexts, traceVisitor.mainThreadProfile,
                 traceVisitor.auxThreadProfile);
-        jg.close();
-        logger.info(baos.toString());
+        recordTraceSize(traceVisitor.header, traceVisitor.mainThreadProfile,
+                traceVisitor.auxThreadProfile);
+        // visiting and serializing are interleaved, so both are included in serializing
+        telemetry.recordNanosSince("streamedTrace.serialize.nanos", startNanos);
+        telemetry.record("streamedTrace.bytes", outputBuffer.bytesWritten());
+        TraceUpdates.Emitted emitted = null;
+        if (jsonTraceWriter != null && traceUpdates != null) {
+            emitted = jsonTraceWriter.emitted(captureTime, traceVisitor.header);
+        }
+        return new SerializedTraceExport(traceId, captureTime, partial,
+                outputBuffer.toByteArray(), emitted);
     }
 
-    @Override
-    public void log(LogEvent logEvent) {}
+    private class SerializedTraceExport implements ExportTask {
+
+        private final String traceId;
+        private final long captureTime;
+        private final boolean partial;
+        private final byte[] bytes;
+        // null unless what was written is tracked for later snapshots of the same trace
+        private final TraceUpdates.Emitted emitted;
+
+        private SerializedTraceExport(String traceId, long captureTime, boolean partial,
+                byte[] bytes, TraceUpdates.Emitted emitted) {
+            this.traceId = traceId;
+            this.captureTime = captureTime;
+            this.partial = partial;
+            this.bytes = bytes;
+            this.emitted = emitted;
+        }
+
+        @Override
+        public void export() throws IOException {
+            long startNanos = System.nanoTime();
+            sink.write(captureTime, bytes, 0, bytes.length);
+            telemetry.recordNanosSince("streamedTrace.sinkWrite.nanos", startNanos);
+            if (emitted != null) {
+                traceUpdates.written(traceId, partial, emitted, System.currentTimeMillis());
+            }
+        }
+    }
 
     private static class CollectingAggregateVisitor implements AggregateVisitor {
 
         private final List<CollectedAggregate> collectedAggregates =
                 new ArrayList<CollectedAggregate>();
 
+        // null if the breakdown per transaction name is not exported
+        private final TopTransactionNames topTransactionNames;
+
+        private CollectingAggregateVisitor(TopTransactionNames topTransactionNames) {
+            this.topTransactionNames = topTransactionNames;
+        }
+
         @Override
         public void visitOverallAggregate(String transactionType,
                 List<String> sharedQueryTexts, Aggregate overallAggregate) throws Exception {
-            collectedAggregates.add(
-                    new CollectedAggregate(transactionType, overallAggregate, sharedQueryTexts));
+            collectedAggregates.add(new CollectedAggregate(transactionType, null, 0, 0,
+                    overallAggregate, sharedQueryTexts));
         }
 
         @Override
         public void visitTransactionAggregate(String transactionType, String transactionName,
                 List<String> sharedQueryTexts, Aggregate transactionAggregate) throws Exception {
-            // this is the breakdown per transaction name (the transaction sidebar in Glowroot UI)
-            // ignoring to keep the example collector simple
+            // this is the breakdown per transaction name (the transaction sidebar in Glowroot UI),
+            // which can run to tens of thousands of names, so only the top N are retained
+            if (topTransactionNames != null) {
+                topTransactionNames.add(transactionType, transactionName, transactionAggregate,
+                        sharedQueryTexts);
+            }
         }
     }
 
-    private static class CollectedAggregate {
+    private static class CollectingTraceVisitor implements TraceVisitor {
 
-        private final String transactionType;
-        private final Aggregate aggregate;
-        private final List<String> sharedQueryTexts;
+        // an in-flight trace can gain entries between its header being read and it being visited,
+        // zero for no limit
+        private final int maxEntries;
 
-        private CollectedAggregate(String transactionType, Aggregate aggregate,
-                List<String> sharedQueryTexts) {
-            this.transactionType = transactionType;
-            this.aggregate = aggregate;
+        private final List<Trace.Entry> entries = Lists.newArrayList();
+        private List<Aggregate.Query> queries = ImmutableList.of();
+        private List<String> sharedQueryTexts = ImmutableList.of();
+        private Profile mainThreadProfile;
+        private Profile auxThreadProfile;
+        private Trace.Header header;
+
+        private CollectingTraceVisitor(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            if (maxEntries == 0 || entries.size() < maxEntries) {
+                entries.add(entry);
+            }
+        }
+
+        @Override
+        public void visitQueries(List<Aggregate.Query> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
             this.sharedQueryTexts = sharedQueryTexts;
         }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            mainThreadProfile = profile;
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            auxThreadProfile = profile;
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            this.header = header;
+        }
     }
 
-    private static class CollectingTraceVisitor implements TraceVisitor {
+    // entries are written as they are visited and are never retained, everything else is small and
+    // is held until the end of the trace
+    private static class StreamingTraceVisitor implements TraceVisitor {
+
+        private final StreamingTraceWriter traceWriter;
 
-        private final List<Trace.Entry> entries = Lists.newArrayList();
         private List<Aggregate.Query> queries = ImmutableList.of();
         private List<String> sharedQueryTexts = ImmutableList.of();
         private Profile mainThreadProfile;
         private Profile auxThreadProfile;
         private Trace.Header header;
 
+        // visitor methods cannot throw checked exceptions, so the first failure is held until the
+        // visit completes
+        private IOException exception;
+
+        private StreamingTraceVisitor(StreamingTraceWriter traceWriter) {
+            this.traceWriter = traceWriter;
+        }
+
         @Override
         public void visitEntry(Trace.Entry entry) {
-            entries.add(entry);
+            if (exception != null) {
+                return;
+            }
+            try {
+                traceWriter.writeStreamingEntry(entry);
+            } catch (IOException e) {
+                exception = e;
+            }
         }
 
         @Override
@@ -169,4 +984,43 @@ public class ExampleCollector implements org.glowroot.agent.collector.Collector
             this.header = header;
         }
     }
+
+    // the telemetry names are built once, not on every call
+    private enum TraceOutcome {
+
+        DROPPED("dropped"),
+        SAMPLED_OUT("sampledOut"),
+        HEADER_ONLY("headerOnly"),
+        STREAMED("streamed"),
+        VISITED("visited");
+
+        private final String name;
+        private final String counterName;
+
+        TraceOutcome(String name) {
+            this.name = name;
+            counterName = "collectTrace." + name;
+        }
+    }
+
+    // the telemetry names are built once, not on every export
+    private enum PayloadKind {
+
+        AGGREGATE("aggregate"),
+        GAUGE_VALUES("gaugeValues"),
+        GAUGE_BATCH("gaugeBatch"),
+        GAUGE_ROLLUPS("gaugeRollups"),
+        TRACE("trace"),
+        HEADER_ONLY_TRACE("headerOnlyTrace");
+
+        private final String serializeNanosName;
+        private final String bytesName;
+        private final String sinkWriteNanosName;
+
+        PayloadKind(String name) {
+            serializeNanosName = name + ".serialize.nanos";
+            bytesName = name + ".bytes";
+            sinkWriteNanosName = name + ".sinkWrite.nanos";
+        }
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// hands captured payloads off to dedicated writer threads so that serialization and output never
+// run on the glowroot agent thread that calls into the collector
+class ExportPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportPipeline.class);
+
+    private final ExportQueue queue;
+    private final List<Thread> writerThreads;
+    private final AllocationStats allocationStats = new AllocationStats();
+    private final SelfTelemetry telemetry;
+
+    private volatile boolean shutdown;
+
+    ExportPipeline(int capacity, ExportQueue.OverflowPolicy overflowPolicy, int writerThreadCount,
+            SelfTelemetry telemetry) {
+        queue = new ExportQueue(capacity, overflowPolicy);
+        this.telemetry = telemetry;
+        writerThreads = new ArrayList<Thread>(writerThreadCount);
+        for (int i = 0; i < writerThreadCount; i++) {
+            Thread thread = new Thread(new Writer(), "Example-Collector-Writer-" + (i + 1));
+            thread.setDaemon(true);
+            writerThreads.add(thread);
+        }
+    }
+
+    void start() {
+        for (Thread thread : writerThreads) {
+            thread.start();
+        }
+    }
+
+    // returns false if the task was dropped
+    boolean submit(ExportTask task) {
+        try {
+            return queue.offer(task);
+        } catch (InterruptedException e) {
+            // only possible under BLOCK policy, give up on this task rather than swallow the
+            // interrupt of the agent thread
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // returns true (and counts a dropped task) if a task submitted now would be dropped
+    boolean dropIfFull() {
+        return queue.dropIfFull();
+    }
+
+    // closes the queue and lets the writer threads drain it, abandoning whatever is left once the
+    // deadline passes
+    void shutdown(long deadlineMillis) throws InterruptedException {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        queue.close();
+        long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(deadlineMillis);
+        for (Thread thread : writerThreads) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos > 0) {
+                NANOSECONDS.timedJoin(thread, remainingNanos);
+            }
+        }
+        int discarded = queue.discardRemaining();
+        for (Thread thread : writerThreads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+        if (discarded > 0) {
+            logger.warn("shutdown deadline of {} milliseconds exceeded, discarded {} queued"
+                    + " export(s)", deadlineMillis, discarded);
+        }
+        if (queue.getDroppedCount() > 0) {
+            logger.warn("{} export(s) were dropped in total (enqueued: {}, flushed: {})",
+                    queue.getDroppedCount(), queue.getEnqueuedCount(), queue.getFlushedCount());
+        }
+        logger.debug("writer thread allocation: {}", allocationStats);
+    }
+
+    ExportQueue getQueue() {
+        return queue;
+    }
+
+    AllocationStats getAllocationStats() {
+        return allocationStats;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                ExportTask task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    // interrupted by shutdown after the deadline
+                    return;
+                }
+                if (task == null) {
+                    return;
+                }
+                long startAllocatedBytes = allocationStats.currentThreadAllocatedBytes();
+                try {
+                    task.export();
+                    queue.markFlushed();
+                    allocationStats.record(task.getClass().getSimpleName(),
+                            startAllocatedBytes);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    telemetry.increment("export.errors");
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+    }
+}
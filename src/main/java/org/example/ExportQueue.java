@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// bounded ring buffer between the glowroot agent threads (producers) and the writer threads
+// (consumers)
+class ExportQueue {
+
+    private final ExportTask[] ring;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // guarded by lock
+    private int head;
+    private int count;
+    private boolean closed;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+
+    ExportQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        ring = new ExportTask[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    // returns false if the task was dropped
+    boolean offer(ExportTask task) throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            if (count == ring.length) {
+                switch (overflowPolicy) {
+                    case DROP_NEWEST:
+                        droppedCount.incrementAndGet();
+                        return false;
+                    case DROP_OLDEST:
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        count--;
+                        droppedCount.incrementAndGet();
+                        break;
+                    case BLOCK:
+                        while (count == ring.length && !closed) {
+                            notFull.await();
+                        }
+                        if (closed) {
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException(
+                                "Unexpected overflow policy: " + overflowPolicy);
+                }
+            }
+            ring[(head + count) % ring.length] = task;
+            count++;
+            enqueuedCount.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // counts the task as dropped and returns true if offer() would drop it right now, so that the
+    // caller can skip building a task that would only be thrown away
+    boolean dropIfFull() {
+        lock.lock();
+        try {
+            if (closed || count == ring.length && overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                droppedCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns null once the queue has been closed and fully drained
+    ExportTask take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            ExportTask task = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            notFull.signal();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void markFlushed() {
+        flushedCount.incrementAndGet();
+    }
+
+    // stops accepting new tasks, but tasks already queued can still be taken
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // discards whatever is still queued, e.g. once the shutdown deadline has passed
+    int discardRemaining() {
+        lock.lock();
+        try {
+            int discarded = count;
+            for (int i = 0; i < count; i++) {
+                ring[(head + i) % ring.length] = null;
+            }
+            head = 0;
+            count = 0;
+            droppedCount.addAndGet(discarded);
+            notFull.signalAll();
+            return discarded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+// gauge values buffered over a window, held per gauge name as primitive columns, so that each
+// gauge name is written once per batch instead of once per value
+//
+// not thread safe, GaugeBatcher hands off a batch only once it is no longer added to
+class GaugeBatch {
+
+    private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+    private final long startMillis;
+    private int valueCount;
+    private long maxCaptureTime;
+
+    GaugeBatch(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    void add(List<GaugeValue> gaugeValues) {
+        for (GaugeValue gaugeValue : gaugeValues) {
+            add(gaugeValue.getGaugeName(), gaugeValue.getCaptureTime(), gaugeValue.getValue(),
+                    gaugeValue.getWeight());
+        }
+    }
+
+    void add(String gaugeName, long captureTime, double value, long weight) {
+        Column column = columns.get(gaugeName);
+        if (column == null) {
+            column = new Column(gaugeName);
+            columns.put(gaugeName, column);
+        }
+        column.add(captureTime, value, weight);
+        valueCount++;
+        maxCaptureTime = Math.max(maxCaptureTime, captureTime);
+    }
+
+    long startMillis() {
+        return startMillis;
+    }
+
+    int valueCount() {
+        return valueCount;
+    }
+
+    long maxCaptureTime() {
+        return maxCaptureTime;
+    }
+
+    // in the order each gauge name was first added
+    Collection<Column> columns() {
+        return columns.values();
+    }
+
+    static class Column {
+
+        private final String gaugeName;
+
+        private long[] captureTimes = new long[8];
+        private double[] values = new double[8];
+        private long[] weights = new long[8];
+        private int size;
+
+        private Column(String gaugeName) {
+            this.gaugeName = gaugeName;
+        }
+
+        private void add(long captureTime, double value, long weight) {
+            if (size == captureTimes.length) {
+                captureTimes = Arrays.copyOf(captureTimes, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            captureTimes[size] = captureTime;
+            values[size] = value;
+            weights[size] = weight;
+            size++;
+        }
+
+        String gaugeName() {
+            return gaugeName;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long captureTime(int i) {
+            return captureTimes[i];
+        }
+
+        double value(int i) {
+            return values[i];
+        }
+
+        long weight(int i) {
+            return weights[i];
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.List;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+// buffers gauge values until the batch reaches maxValues or has been open for windowMillis
+//
+// the window is only checked when gauge values are collected, which glowroot does at a fixed
+// interval (every 5 seconds by default), so a batch is flushed on the first collection after its
+// window has passed, and whatever is still buffered is flushed on close
+class GaugeBatcher {
+
+    private final long windowMillis;
+    private final int maxValues;
+
+    private GaugeBatch batch;
+
+    GaugeBatcher(long windowMillis, int maxValues) {
+        this.windowMillis = windowMillis;
+        this.maxValues = maxValues;
+    }
+
+    // returns the batch if it is ready to be written, otherwise null
+    synchronized GaugeBatch add(List<GaugeValue> gaugeValues, long nowMillis) {
+        if (batch == null) {
+            batch = new GaugeBatch(nowMillis);
+        }
+        batch.add(gaugeValues);
+        if (batch.valueCount() < maxValues && nowMillis - batch.startMillis() < windowMillis) {
+            return null;
+        }
+        GaugeBatch ready = batch;
+        batch = null;
+        return ready;
+    }
+
+    // returns null if nothing is buffered
+    synchronized GaugeBatch flush() {
+        GaugeBatch ready = batch;
+        batch = null;
+        return ready;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+// rolls up the values of the gauges whose names match one of the glob patterns into one point per
+// gauge per window, with the weighted mean, min, max and last value, and everything else is passed
+// through as is
+//
+// each gauge's open window is an immutable snapshot that is replaced by compare-and-set, so
+// adding values never blocks, and a window is closed by whichever thread first sees a value past
+// its end, or else once gauge values are collected past its end (matched or not), so that a gauge
+// which stops reporting does not hold its last window open forever
+//
+// a closed window is replaced by a marker that keeps its start as the gauge's high-water mark, and
+// a value that arrives late, for a window at or before the high-water mark that has already been
+// emitted, is dropped and counted rather than emitting a second point for that window
+class GaugeRollup {
+
+    // marks gauge names that do not match any of the patterns
+    private static final AtomicReference<Window> NOT_MATCHED = new AtomicReference<Window>();
+
+    private final List<Pattern> patterns;
+    private final long windowMillis;
+
+    private final ConcurrentMap<String, AtomicReference<Window>> accumulators =
+            new ConcurrentHashMap<String, AtomicReference<Window>>();
+
+    private final Queue<Point> closed = new ConcurrentLinkedQueue<Point>();
+
+    private final AtomicLong lateCount = new AtomicLong();
+
+    GaugeRollup(List<String> globs, long windowMillis) {
+        patterns = new ArrayList<Pattern>();
+        for (String glob : globs) {
+            patterns.add(Globs.toPattern(glob));
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    // returns the gauge values that are not rolled up, and closes the windows that end at or
+    // before the collect time (or the latest capture time, if that is later)
+    List<GaugeValue> add(List<GaugeValue> gaugeValues, long collectTime) {
+        List<GaugeValue> notMatched = new ArrayList<GaugeValue>();
+        long maxCaptureTime = collectTime;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            AtomicReference<Window> accumulator = getAccumulator(gaugeValue.getGaugeName());
+            if (accumulator == NOT_MATCHED) {
+                notMatched.add(gaugeValue);
+            } else {
+                add(gaugeValue, accumulator);
+            }
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        }
+        closeBefore(windowStart(maxCaptureTime));
+        return notMatched;
+    }
+
+    // the points of the windows that have closed since the last call
+    List<Point> drainClosed() {
+        List<Point> points = new ArrayList<Point>();
+        Point point;
+        while ((point = closed.poll()) != null) {
+            points.add(point);
+        }
+        return points;
+    }
+
+    // closes every window that is still open, e.g. on shutdown
+    List<Point> flush() {
+        closeBefore(Long.MAX_VALUE);
+        return drainClosed();
+    }
+
+    // the number of values dropped because the window they belong to had already been emitted
+    long getLateCount() {
+        return lateCount.get();
+    }
+
+    private AtomicReference<Window> getAccumulator(String gaugeName) {
+        AtomicReference<Window> accumulator = accumulators.get(gaugeName);
+        if (accumulator != null) {
+            return accumulator;
+        }
+        accumulator = matches(gaugeName) ? new AtomicReference<Window>() : NOT_MATCHED;
+        AtomicReference<Window> existing = accumulators.putIfAbsent(gaugeName, accumulator);
+        return existing == null ? accumulator : existing;
+    }
+
+    private boolean matches(String gaugeName) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(gaugeName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(GaugeValue gaugeValue, AtomicReference<Window> accumulator) {
+        long windowStart = windowStart(gaugeValue.getCaptureTime());
+        while (true) {
+            Window current = accumulator.get();
+            Window next;
+            if (current == null || current.windowStart < windowStart) {
+                next = new Window(gaugeValue.getGaugeName(), windowStart, gaugeValue);
+            } else if (current.windowStart > windowStart || current.emitted) {
+                lateCount.incrementAndGet();
+                return;
+            } else {
+                next = current.plus(gaugeValue);
+            }
+            if (accumulator.compareAndSet(current, next)) {
+                if (current != null && !current.emitted && current.windowStart < windowStart) {
+                    closed.add(current.toPoint(windowMillis));
+                }
+                return;
+            }
+        }
+    }
+
+    private void closeBefore(long windowStart) {
+        for (AtomicReference<Window> accumulator : accumulators.values()) {
+            if (accumulator == NOT_MATCHED) {
+                continue;
+            }
+            Window current = accumulator.get();
+            if (current != null && !current.emitted && current.windowStart < windowStart
+                    && accumulator.compareAndSet(current, current.toEmitted())) {
+                closed.add(current.toPoint(windowMillis));
+            }
+        }
+    }
+
+    private long windowStart(long captureTime) {
+        return captureTime - captureTime % windowMillis;
+    }
+
+    private static class Window {
+
+        private final String gaugeName;
+        private final long windowStart;
+        private final double weightedSum;
+        private final long totalWeight;
+        private final double min;
+        private final double max;
+        private final double last;
+        private final long lastCaptureTime;
+        // the marker left once the window has been emitted
+        private final boolean emitted;
+
+        private Window(String gaugeName, long windowStart, GaugeValue gaugeValue) {
+            this(gaugeName, windowStart, gaugeValue.getValue() * gaugeValue.getWeight(),
+                    gaugeValue.getWeight(), gaugeValue.getValue(), gaugeValue.getValue(),
+                    gaugeValue.getValue(), gaugeValue.getCaptureTime(), false);
+        }
+
+        private Window(String gaugeName, long windowStart, double weightedSum, long totalWeight,
+                double min, double max, double last, long lastCaptureTime, boolean emitted) {
+            this.gaugeName = gaugeName;
+            this.windowStart = windowStart;
+            this.weightedSum = weightedSum;
+            this.totalWeight = totalWeight;
+            this.min = min;
+            this.max = max;
+            this.last = last;
+            this.lastCaptureTime = lastCaptureTime;
+            this.emitted = emitted;
+        }
+
+        private Window plus(GaugeValue gaugeValue) {
+            double value = gaugeValue.getValue();
+            long captureTime = gaugeValue.getCaptureTime();
+            boolean isLast = captureTime >= lastCaptureTime;
+            return new Window(gaugeName, windowStart,
+                    weightedSum + value * gaugeValue.getWeight(),
+                    totalWeight + gaugeValue.getWeight(), Math.min(min, value),
+                    Math.max(max, value), isLast ? value : last,
+                    isLast ? captureTime : lastCaptureTime, false);
+        }
+
+        private Window toEmitted() {
+            return new Window(gaugeName, windowStart, 0, 0, 0, 0, 0, 0, true);
+        }
+
+        private Point toPoint(long windowMillis) {
+            // a weight of zero is not expected, but then the mean falls back to the last value
+            double mean = totalWeight == 0 ? last : weightedSum / totalWeight;
+            return new Point(gaugeName, windowStart + windowMillis, windowMillis, mean, min, max,
+                    last, totalWeight);
+        }
+    }
+
+    static class Point {
+
+        private final String gaugeName;
+        private final long captureTime;
+        private final long windowMillis;
+        private final double mean;
+        private final double min;
+        private final double max;
+        private final double last;
+        private final long weight;
+
+        Point(String gaugeName, long captureTime, long windowMillis, double mean, double min,
+                double max, double last, long weight) {
+            this.gaugeName = gaugeName;
+            this.captureTime = captureTime;
+            this.windowMillis = windowMillis;
+            this.mean = mean;
+            this.min = min;
+            this.max = max;
+            this.last = last;
+            this.weight = weight;
+        }
+
+        String gaugeName() {
+            return gaugeName;
+        }
+
+        // the end of the window
+        long captureTime() {
+            return captureTime;
+        }
+
+        long windowMillis() {
+            return windowMillis;
+        }
+
+        double mean() {
+            return mean;
+        }
+
+        double min() {
+            return min;
+        }
+
+        double max() {
+            return max;
+        }
+
+        double last() {
+            return last;
+        }
+
+        long weight() {
+            return weight;
+        }
+    }
+}
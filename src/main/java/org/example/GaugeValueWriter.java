@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+class GaugeValueWriter {
+
+    private static final SerializedString GAUGE_NAME = new SerializedString("gaugeName");
+    private static final SerializedString CAPTURE_TIME = new SerializedString("captureTime");
+    private static final SerializedString VALUE = new SerializedString("value");
+    private static final SerializedString WEIGHT = new SerializedString("weight");
+    private static final SerializedString GAUGES = new SerializedString("gauges");
+    private static final SerializedString GAUGE_ROLLUPS = new SerializedString("gaugeRollups");
+    private static final SerializedString WINDOW_MILLIS = new SerializedString("windowMillis");
+    private static final SerializedString MEAN = new SerializedString("mean");
+    private static final SerializedString MIN = new SerializedString("min");
+    private static final SerializedString MAX = new SerializedString("max");
+    private static final SerializedString LAST = new SerializedString("last");
+    private static final SerializedString CAPTURE_TIMES = new SerializedString("captureTimes");
+    private static final SerializedString VALUES = new SerializedString("values");
+    private static final SerializedString WEIGHTS = new SerializedString("weights");
+
+    private final JsonGenerator jg;
+
+    GaugeValueWriter(JsonGenerator jg) {
+        this.jg = jg;
+    }
+
+    void write(List<GaugeValue> gaugeValues) throws IOException {
+        jg.writeStartArray();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            jg.writeStartObject();
+            jg.writeFieldName(GAUGE_NAME);
+            jg.writeString(gaugeValue.getGaugeName());
+            jg.writeFieldName(CAPTURE_TIME);
+            jg.writeNumber(gaugeValue.getCaptureTime());
+            jg.writeFieldName(VALUE);
+            jg.writeNumber(gaugeValue.getValue());
+            jg.writeFieldName(WEIGHT);
+            jg.writeNumber(gaugeValue.getWeight());
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+    }
+
+    // columnar form, one object per gauge name with parallel arrays of its values, where the
+    // capture times are delta encoded (the first is absolute, each one after that is the
+    // difference from the one before it), which keeps them to a few digits each
+    void write(GaugeBatch batch) throws IOException {
+        jg.writeStartObject();
+        jg.writeFieldName(GAUGES);
+        jg.writeStartArray();
+        for (GaugeBatch.Column column : batch.columns()) {
+            jg.writeStartObject();
+            jg.writeFieldName(GAUGE_NAME);
+            jg.writeString(column.gaugeName());
+            int size = column.size();
+            jg.writeFieldName(CAPTURE_TIMES);
+            jg.writeStartArray();
+            long priorCaptureTime = 0;
+            for (int i = 0; i < size; i++) {
+                long captureTime = column.captureTime(i);
+                jg.writeNumber(captureTime - priorCaptureTime);
+                priorCaptureTime = captureTime;
+            }
+            jg.writeEndArray();
+            jg.writeFieldName(VALUES);
+            jg.writeStartArray();
+            for (int i = 0; i < size; i++) {
+                jg.writeNumber(column.value(i));
+            }
+            jg.writeEndArray();
+            jg.writeFieldName(WEIGHTS);
+            jg.writeStartArray();
+            for (int i = 0; i < size; i++) {
+                jg.writeNumber(column.weight(i));
+            }
+            jg.writeEndArray();
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+        jg.writeEndObject();
+    }
+
+    void writeRollups(List<GaugeRollup.Point> points) throws IOException {
+        jg.writeStartObject();
+        jg.writeFieldName(GAUGE_ROLLUPS);
+        jg.writeStartArray();
+        for (GaugeRollup.Point point : points) {
+            jg.writeStartObject();
+            jg.writeFieldName(GAUGE_NAME);
+            jg.writeString(point.gaugeName());
+            jg.writeFieldName(CAPTURE_TIME);
+            jg.writeNumber(point.captureTime());
+            jg.writeFieldName(WINDOW_MILLIS);
+            jg.writeNumber(point.windowMillis());
+            jg.writeFieldName(MEAN);
+            jg.writeNumber(point.mean());
+            jg.writeFieldName(MIN);
+            jg.writeNumber(point.min());
+            jg.writeFieldName(MAX);
+            jg.writeNumber(point.max());
+            jg.writeFieldName(LAST);
+            jg.writeNumber(point.last());
+            jg.writeFieldName(WEIGHT);
+            jg.writeNumber(point.weight());
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+        jg.writeEndObject();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.regex.Pattern;
+
+// * matches any run of characters and ? matches a single character, everything else is literal
+class Globs {
+
+    private Globs() {}
+
+    static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// hdr-style histogram of non-negative long values (nanoseconds, bytes, counts) with a relative
+// error of at most 1/32 (about 3%) across the whole range, in a fixed 15kb of counts
+//
+// values below 32 each get their own bucket, and above that each power of two is split into 32
+// equal buckets, so a bucket index is just the position of the highest one bit plus the next five
+// bits below it
+//
+// recording is a single atomic increment, so it can be called from any number of threads, and the
+// counts are taken (and reset) per publishing interval by snapshotAndReset()
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // the highest one bit of a positive long is at most bit 62
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long value) {
+        counts.incrementAndGet(getIndex(Math.max(value, 0)));
+    }
+
+    Snapshot snapshotAndReset() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                // subtracting (rather than zeroing) keeps anything recorded in the meantime
+                counts.addAndGet(i, -count);
+                snapshot[i] = count;
+                totalCount += count;
+            }
+        }
+        return new Snapshot(snapshot, totalCount);
+    }
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        // the highest one bit and the five below it, i.e. 32 to 63
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT * shift + subBucket;
+    }
+
+    // the lowest value that maps to the bucket
+    static long getLowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        int subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return (long) subBucket << shift;
+    }
+
+    static class Snapshot {
+
+        private final long[] counts;
+        private final long totalCount;
+
+        private Snapshot(long[] counts, long totalCount) {
+            this.counts = counts;
+            this.totalCount = totalCount;
+        }
+
+        long getTotalCount() {
+            return totalCount;
+        }
+
+        // the value at the given percentile (0 to 100), reported as the midpoint of its bucket
+        double getValueAtPercentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                count += counts[i];
+                if (count >= rank) {
+                    return getMidpoint(i);
+                }
+            }
+            return getMidpoint(counts.length - 1);
+        }
+
+        // the highest value recorded, to within the precision of its bucket
+        double getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return getMidpoint(i);
+                }
+            }
+            return 0;
+        }
+
+        private static double getMidpoint(int index) {
+            long lowestValue = getLowestValue(index);
+            if (index + 1 == BUCKET_COUNT) {
+                return lowestValue;
+            }
+            return (lowestValue + getLowestValue(index + 1) - 1) / 2.0;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// posts payloads to a backend in batches, each batch holding payloads (each followed by the
+// delimiter) up to a record count or byte size, or whatever has arrived by the end of the linger
+// time after its first payload
+//
+// a fixed number of sender threads each post one batch at a time, and the jdk keeps their
+// connections alive between posts (as long as each response is read to the end), so there are
+// never more connections to the backend than sender threads
+//
+// when the backend falls behind and the maximum number of batches are waiting to be sent, write()
+// blocks, which holds up the writer threads, so that the export queue fills up and its overflow
+// policy applies, the same as when any other sink is slow
+//
+// a batch that fails with an i/o error, a 429 or a 5xx is retried with exponential backoff (with
+// jitter, so that the sender threads don't all retry at once), up to a maximum number of retries,
+// while any other response is treated as final
+//
+// with a spill queue, batches overflow to local disk instead of blocking write(), and once a batch
+// has been spilled all later batches are spilled too until the spill queue has been drained, so
+// that batches are still sent in order (except for a batch that runs out of retries, which is
+// spilled again at the end), and batches that are still unsent on close are spilled so that they
+// are sent after the next startup (including a batch that is waiting out a retry backoff, which
+// is spilled right away on close rather than being held up until the close timeout)
+class HttpSink implements Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpSink.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final URL url;
+    private final String contentType;
+    private final byte[] delimiter;
+    private final int batchMaxRecords;
+    private final int batchMaxBytes;
+    private final long lingerNanos;
+    private final int maxPendingBatches;
+    private final int maxRetries;
+    private final long maxBackoffMillis;
+    // null for none
+    private final SpillQueue spillQueue;
+
+    private final List<Thread> senderThreads;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchAvailable = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition closing = lock.newCondition();
+
+    // guarded by lock
+    private final ArrayDeque<Batch> pendingBatches = new ArrayDeque<Batch>();
+    private Batch currentBatch;
+    private boolean closed;
+    private boolean spillQueueClosed;
+    // once a batch being retried has been spilled on close, what has been spilled is left for the
+    // next startup rather than being taken back out only to be spilled again
+    private boolean spilledOnClose;
+
+    private final AtomicLong sentBatchCount = new AtomicLong();
+    private final AtomicLong sentRecordCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong droppedBatchCount = new AtomicLong();
+    private final AtomicLong droppedRecordCount = new AtomicLong();
+    private final AtomicLong spilledBatchCount = new AtomicLong();
+    // from the first payload of a batch being written to the batch being acknowledged
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    HttpSink(URL url, String contentType, byte[] delimiter, int senderThreadCount,
+            int batchMaxRecords, int batchMaxBytes, long lingerMillis, int maxPendingBatches,
+            int maxRetries, long maxBackoffMillis, SpillQueue spillQueue) {
+        this.url = url;
+        this.contentType = contentType;
+        this.delimiter = delimiter;
+        this.batchMaxRecords = batchMaxRecords;
+        this.batchMaxBytes = batchMaxBytes;
+        lingerNanos = MILLISECONDS.toNanos(lingerMillis);
+        this.maxPendingBatches = maxPendingBatches;
+        this.maxRetries = maxRetries;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.spillQueue = spillQueue;
+        senderThreads = new ArrayList<Thread>(senderThreadCount);
+        for (int i = 0; i < senderThreadCount; i++) {
+            Thread thread = new Thread(new Sender(), "Example-Collector-Http-Sender-" + (i + 1));
+            thread.setDaemon(true);
+            senderThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void write(long captureTime, byte[] bytes, int offset, int length)
+            throws IOException {
+        int recordLength = length + delimiter.length;
+        lock.lock();
+        try {
+            while (spillQueue == null && pendingBatches.size() >= maxPendingBatches && !closed) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IOException("Sink has been closed");
+            }
+            if (currentBatch != null && currentBatch.length + recordLength > batchMaxBytes) {
+                completeCurrentBatch();
+            }
+            if (currentBatch == null) {
+                currentBatch = new Batch(Math.min(batchMaxBytes, Math.max(recordLength, 4096)));
+                // so that a sender starts waiting out the linger time
+                batchAvailable.signal();
+            }
+            currentBatch.add(bytes, offset, length, delimiter);
+            if (currentBatch.recordCount >= batchMaxRecords
+                    || currentBatch.length >= batchMaxBytes) {
+                completeCurrentBatch();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // stops accepting payloads, and gives the sender threads until the close timeout to send what
+    // has been written so far, after which they are interrupted (spilling the batch they are
+    // retrying) and given another close timeout to stop, since a post in progress cannot be
+    // interrupted, before the spill queue is closed
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            batchAvailable.signalAll();
+            notFull.signalAll();
+            closing.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        joinSenderThreads();
+        boolean interrupted = false;
+        for (Thread thread : senderThreads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            joinSenderThreads();
+        }
+        lock.lock();
+        try {
+            for (Batch batch : pendingBatches) {
+                spillOrDrop(batch);
+            }
+            pendingBatches.clear();
+            if (currentBatch != null) {
+                spillOrDrop(currentBatch);
+                currentBatch = null;
+            }
+            if (spillQueue != null) {
+                logger.debug("http spill queue: {}", spillQueue);
+                spillQueue.close();
+                // a sender thread that is still stuck in a post drops its batch when it gets out
+                spillQueueClosed = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        logger.debug("http sink: {}", this);
+        if (droppedBatchCount.get() > 0) {
+            logger.warn("{} batch(es) of {} payload(s) in total could not be sent to {}",
+                    droppedBatchCount.get(), droppedRecordCount.get(), url);
+        }
+    }
+
+    long getSentBatchCount() {
+        return sentBatchCount.get();
+    }
+
+    long getSentRecordCount() {
+        return sentRecordCount.get();
+    }
+
+    long getRetryCount() {
+        return retryCount.get();
+    }
+
+    long getDroppedBatchCount() {
+        return droppedBatchCount.get();
+    }
+
+    long getSpilledBatchCount() {
+        return spilledBatchCount.get();
+    }
+
+    long getTotalLatencyNanos() {
+        return totalLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long batches = sentBatchCount.get();
+        return "sent batches: " + batches + ", sent payloads: " + sentRecordCount.get()
+                + ", sent bytes: " + sentBytes.get() + ", retries: " + retryCount.get()
+                + ", dropped batches: " + droppedBatchCount.get() + ", spilled batches: "
+                + spilledBatchCount.get() + ", average latency millis: "
+                + (batches == 0 ? 0 : NANOSECONDS.toMillis(totalLatencyNanos.get() / batches));
+    }
+
+    private void joinSenderThreads() {
+        long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+        try {
+            for (Thread thread : senderThreads) {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos > 0) {
+                    NANOSECONDS.timedJoin(thread, remainingNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // must be called under lock
+    private void completeCurrentBatch() {
+        if (spillQueue != null
+                && (pendingBatches.size() >= maxPendingBatches || !spillQueue.isEmpty())) {
+            spillOrDrop(currentBatch);
+        } else {
+            pendingBatches.addLast(currentBatch);
+        }
+        currentBatch = null;
+        batchAvailable.signal();
+    }
+
+    // must be called under lock
+    private void spillOrDrop(Batch batch) {
+        if (spillQueue == null || spillQueueClosed) {
+            dropped(batch);
+            return;
+        }
+        try {
+            spillQueue.append(batch.toSpillRecord(), 0, Batch.HEADER_LENGTH + batch.length);
+            spilledBatchCount.incrementAndGet();
+        } catch (IOException e) {
+            logger.error("could not spill batch: {}", e.getMessage(), e);
+            dropped(batch);
+        }
+    }
+
+    // returns null once the sink has been closed and everything written has been taken
+    private Batch takeBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Batch batch = pendingBatches.pollFirst();
+                if (batch != null) {
+                    notFull.signal();
+                    return batch;
+                }
+                if (spillQueue != null && !spilledOnClose) {
+                    byte[] spillRecord = pollSpillQueue();
+                    if (spillRecord != null) {
+                        return new Batch(spillRecord);
+                    }
+                }
+                if (currentBatch != null) {
+                    long remainingNanos = currentBatch.startNanos + lingerNanos - System.nanoTime();
+                    if (remainingNanos <= 0 || closed) {
+                        batch = currentBatch;
+                        currentBatch = null;
+                        return batch;
+                    }
+                    batchAvailable.awaitNanos(remainingNanos);
+                } else if (closed) {
+                    return null;
+                } else {
+                    batchAvailable.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called under lock
+    private byte[] pollSpillQueue() {
+        try {
+            return spillQueue.poll();
+        } catch (IOException e) {
+            logger.error("could not read spilled batch: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void send(Batch batch) throws InterruptedException {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int retry = 0;; retry++) {
+            String failure;
+            try {
+                int status = post(batch);
+                if (status < 300) {
+                    sentBatchCount.incrementAndGet();
+                    sentRecordCount.addAndGet(batch.recordCount);
+                    sentBytes.addAndGet(batch.length);
+                    totalLatencyNanos.addAndGet(System.nanoTime() - batch.startNanos);
+                    return;
+                }
+                failure = "status " + status;
+                if (status != 429 && status < 500) {
+                    logger.warn("could not send batch to {}, not retrying: {}", url, failure);
+                    dropped(batch);
+                    return;
+                }
+            } catch (IOException e) {
+                failure = e.toString();
+            }
+            if (retry == maxRetries) {
+                if (spillQueue == null) {
+                    logger.warn("could not send batch to {} after {} retries: {}", url, retry,
+                            failure);
+                }
+                lock.lock();
+                try {
+                    spillOrDrop(batch);
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            retryCount.incrementAndGet();
+            long half = backoffMillis / 2;
+            long remainingNanos = MILLISECONDS.toNanos(
+                    half + (long) (Math.random() * (backoffMillis - half)));
+            lock.lock();
+            try {
+                while (remainingNanos > 0 && !(closed && spillQueue != null)) {
+                    remainingNanos = closing.awaitNanos(remainingNanos);
+                }
+                if (closed && spillQueue != null) {
+                    spillOrDrop(batch);
+                    spilledOnClose = true;
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // interrupted by close() after the close timeout
+                spillOrDrop(batch);
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+            backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+        }
+    }
+
+    private int post(Batch batch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(batch.length);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Content-Type", contentType);
+        OutputStream out = connection.getOutputStream();
+        out.write(batch.bytes, Batch.HEADER_LENGTH, batch.length);
+        out.close();
+        int status = connection.getResponseCode();
+        // the response is read to the end so that the connection can be reused
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in != null) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+            in.close();
+        }
+        return status;
+    }
+
+    private void dropped(Batch batch) {
+        droppedBatchCount.incrementAndGet();
+        droppedRecordCount.addAndGet(batch.recordCount);
+    }
+
+    private class Sender implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Batch batch = takeBatch();
+                    if (batch == null) {
+                        return;
+                    }
+                    send(batch);
+                } catch (InterruptedException e) {
+                    // interrupted by close() after the close timeout
+                    return;
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    // the payloads start after a header that has room for the record count, so that the batch can
+    // be spilled without copying it
+    private static class Batch {
+
+        private static final int HEADER_LENGTH = 4;
+
+        // for a spilled batch, from when it was read back
+        private final long startNanos = System.nanoTime();
+
+        private byte[] bytes;
+        // not including the header
+        private int length;
+        private int recordCount;
+
+        private Batch(int initialCapacity) {
+            bytes = new byte[HEADER_LENGTH + initialCapacity];
+        }
+
+        private Batch(byte[] spillRecord) {
+            bytes = spillRecord;
+            length = spillRecord.length - HEADER_LENGTH;
+            recordCount = (spillRecord[0] & 0xFF) << 24 | (spillRecord[1] & 0xFF) << 16
+                    | (spillRecord[2] & 0xFF) << 8 | spillRecord[3] & 0xFF;
+        }
+
+        private void add(byte[] bytes, int offset, int length, byte[] delimiter) {
+            int recordLength = length + delimiter.length;
+            int end = HEADER_LENGTH + this.length;
+            if (end + recordLength > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes,
+                        Math.max(end + recordLength, this.bytes.length * 2));
+            }
+            System.arraycopy(bytes, offset, this.bytes, end, length);
+            System.arraycopy(delimiter, 0, this.bytes, end + length, delimiter.length);
+            this.length += recordLength;
+            recordCount++;
+        }
+
+        private byte[] toSpillRecord() {
+            bytes[0] = (byte) (recordCount >>> 24);
+            bytes[1] = (byte) (recordCount >>> 16);
+            bytes[2] = (byte) (recordCount >>> 8);
+            bytes[3] = (byte) recordCount;
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.nio.charset.Charset;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+class LoggerSink implements Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExampleCollector.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public void write(long captureTime, byte[] bytes, int offset, int length) {
+        // the logger api only accepts strings, so this is the one place the bytes are decoded
+        logger.info(new String(bytes, offset, length, UTF_8));
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.example.CollectorConfig.FsyncPolicy;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// appends payloads to pre-allocated, memory-mapped segment files, rolling over to a new segment
+// once the current one is full or has been open for the roll interval
+//
+// the active segment is named <sequence>.active, and on roll over it is truncated to the bytes
+// actually written and renamed by the capture time range it covers, e.g.
+// 20190101T000000.000Z_20190101T005959.998Z_000001.json
+//
+// the active segment is mapped with a trailer of TRAILER_BYTES past its capacity, which holds the
+// capture time range and the number of bytes written so far and is updated after each write (plain
+// stores to the mapping), so that a segment left active by a crash can be truncated to exactly what
+// was written and named by its capture time range the same as any other segment, the trailer is
+// cut off along with the unused space when the segment is rolled over
+class MappedFileSink implements Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileSink.class);
+
+    private static final String ACTIVE_SUFFIX = ".active";
+    // min capture time, max capture time, committed length
+    private static final int TRAILER_BYTES = 24;
+
+    private final File dir;
+    private final String extension;
+    private final byte[] delimiter;
+    private final long segmentSizeBytes;
+    private final long rollIntervalMillis;
+    private final FsyncPolicy fsyncPolicy;
+
+    private final ScheduledExecutorService scheduledExecutor;
+
+    // all guarded by this
+    private int sequence;
+    private Segment segment;
+    private boolean closed;
+
+    MappedFileSink(File dir, String extension, byte[] delimiter, long segmentSizeBytes,
+            long rollIntervalMillis, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis)
+            throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.extension = extension;
+        this.delimiter = delimiter;
+        // a single mapping (which includes the trailer) is limited to 2gb
+        this.segmentSizeBytes =
+                Math.min(segmentSizeBytes, Integer.MAX_VALUE - TRAILER_BYTES);
+        this.rollIntervalMillis = rollIntervalMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        sequence = recoverActiveSegments();
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Example-Collector-Segment-Roller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // segments need to roll over on time even when nothing is being written
+        long checkIntervalMillis = Math.max(1, Math.min(rollIntervalMillis, 1000));
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rollIfExpired();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, checkIntervalMillis, checkIntervalMillis, MILLISECONDS);
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fsync();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            }, fsyncIntervalMillis, fsyncIntervalMillis, MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void write(long captureTime, byte[] bytes, int offset, int length)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Sink is closed");
+        }
+        int recordLength = length + delimiter.length;
+        if (segment != null && segment.remaining() < recordLength) {
+            roll();
+        }
+        if (segment == null) {
+            // a single record larger than the segment size gets a segment of its own
+            segment = new Segment(++sequence, Math.max(segmentSizeBytes, recordLength));
+        }
+        segment.write(captureTime, bytes, offset, length, delimiter);
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduledExecutor.shutdownNow();
+        synchronized (this) {
+            closed = true;
+            roll();
+        }
+    }
+
+    private synchronized void rollIfExpired() throws IOException {
+        if (segment != null
+                && System.currentTimeMillis() - segment.createdMillis >= rollIntervalMillis) {
+            roll();
+        }
+    }
+
+    private synchronized void fsync() {
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    // guarded by this
+    private void roll() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        Segment closing = segment;
+        segment = null;
+        closing.close(fsyncPolicy != FsyncPolicy.NONE);
+        if (closing.isEmpty()) {
+            if (!closing.file.delete()) {
+                logger.warn("could not delete empty segment: {}", closing.file.getAbsolutePath());
+            }
+            return;
+        }
+        File finalFile = new File(dir, getSegmentName(closing.minCaptureTime,
+                closing.maxCaptureTime, closing.sequence));
+        if (!closing.file.renameTo(finalFile)) {
+            logger.warn("could not rename segment {} to {}", closing.file.getAbsolutePath(),
+                    finalFile.getName());
+        }
+    }
+
+    // segments left active by a crash are truncated to what was written according to their
+    // trailer, and are renamed by the capture time range in their trailer so that they are not
+    // mistaken for a live segment, returns the highest sequence found
+    private int recoverActiveSegments() throws IOException {
+        int maxSequence = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return maxSequence;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int sequence = parseSequence(name);
+            maxSequence = Math.max(maxSequence, sequence);
+            if (!name.endsWith(ACTIVE_SUFFIX)) {
+                continue;
+            }
+            String recoveredName = "recovered_" + formatSequence(sequence) + extension;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long length = raf.length();
+                long minCaptureTime = 0;
+                long maxCaptureTime = -1;
+                long committedLength = -1;
+                if (length >= TRAILER_BYTES) {
+                    raf.seek(length - TRAILER_BYTES);
+                    minCaptureTime = raf.readLong();
+                    maxCaptureTime = raf.readLong();
+                    committedLength = raf.readLong();
+                }
+                if (committedLength >= 0 && committedLength <= length - TRAILER_BYTES) {
+                    raf.setLength(committedLength);
+                    // the committed length is the last 8 bytes in the trailer of earlier versions
+                    // too, but those have no capture time range (it reads as the zeroed unused
+                    // space)
+                    if (committedLength > 0 && minCaptureTime > 0
+                            && minCaptureTime <= maxCaptureTime) {
+                        recoveredName = getSegmentName(minCaptureTime, maxCaptureTime, sequence);
+                    }
+                } else {
+                    // e.g. the crash happened while the segment was being created
+                    logger.warn("segment {} has no valid trailer, keeping it as is",
+                            file.getAbsolutePath());
+                }
+            } finally {
+                raf.close();
+            }
+            if (file.length() == 0) {
+                if (!file.delete()) {
+                    logger.warn("could not delete empty segment: {}", file.getAbsolutePath());
+                }
+                continue;
+            }
+            File recoveredFile = new File(dir, recoveredName);
+            if (!file.renameTo(recoveredFile)) {
+                logger.warn("could not rename segment {} to {}", file.getAbsolutePath(),
+                        recoveredFile.getName());
+            }
+        }
+        return maxSequence;
+    }
+
+    // the extension can itself contain dots (e.g. ".json.blocks"), so it is removed before looking
+    // for the sequence, returns 0 for files that are not segments
+    private int parseSequence(String name) {
+        String baseName;
+        if (name.endsWith(ACTIVE_SUFFIX)) {
+            baseName = name.substring(0, name.length() - ACTIVE_SUFFIX.length());
+        } else if (name.endsWith(extension)) {
+            baseName = name.substring(0, name.length() - extension.length());
+        } else {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(baseName.substring(baseName.lastIndexOf('_') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String getSegmentName(long minCaptureTime, long maxCaptureTime, int sequence) {
+        return formatTime(minCaptureTime) + '_' + formatTime(maxCaptureTime) + '_'
+                + formatSequence(sequence) + extension;
+    }
+
+    private static String formatSequence(int sequence) {
+        String value = Integer.toString(sequence);
+        StringBuilder sb = new StringBuilder();
+        for (int i = value.length(); i < 6; i++) {
+            sb.append('0');
+        }
+        return sb.append(value).toString();
+    }
+
+    private static String formatTime(long captureTime) {
+        // SimpleDateFormat is not thread safe, but this is only called while holding the lock
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(captureTime));
+    }
+
+    private class Segment {
+
+        private final int sequence;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        // the same mapping, but including the trailer
+        private final ByteBuffer trailer;
+        private final int size;
+        private final long createdMillis;
+
+        private long minCaptureTime = Long.MAX_VALUE;
+        private long maxCaptureTime = Long.MIN_VALUE;
+
+        private Segment(int sequence, long size) throws IOException {
+            this.sequence = sequence;
+            file = new File(dir, formatSequence(sequence) + ACTIVE_SUFFIX);
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size + TRAILER_BYTES);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size + TRAILER_BYTES);
+            trailer = buffer.duplicate();
+            buffer.limit((int) size);
+            this.size = (int) size;
+            createdMillis = System.currentTimeMillis();
+        }
+
+        private int remaining() {
+            return buffer.remaining();
+        }
+
+        private boolean isEmpty() {
+            return buffer.position() == 0;
+        }
+
+        private void write(long captureTime, byte[] bytes, int offset, int length,
+                byte[] delimiter) {
+            buffer.put(bytes, offset, length);
+            buffer.put(delimiter);
+            minCaptureTime = Math.min(minCaptureTime, captureTime);
+            maxCaptureTime = Math.max(maxCaptureTime, captureTime);
+            trailer.putLong(size, minCaptureTime);
+            trailer.putLong(size + 8, maxCaptureTime);
+            // only after the record itself, so that it never covers a partly written record
+            trailer.putLong(size + 16, buffer.position());
+        }
+
+        private void close(boolean fsync) throws IOException {
+            if (fsync) {
+                buffer.force();
+            }
+            try {
+                // the mapping itself is only released once the buffer is garbage collected, which
+                // is fine on linux, while on windows truncating a mapped file can fail, in which
+                // case the unused space and the trailer are left in place
+                raf.getChannel().truncate(buffer.position());
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+// per-thread output buffer and json generator that are reset and reused for every payload instead
+// of allocating a new ByteArrayOutputStream, JsonGenerator and String each time (the buffer is
+// also used directly for the binary output format)
+class OutputBuffer {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final int INITIAL_CAPACITY = 8192;
+    // buffers that grew beyond this (e.g. after one very large trace) are released after use
+    // instead of pinning the memory for the life of the thread
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<OutputBuffer> threadLocal = new ThreadLocal<OutputBuffer>() {
+        @Override
+        protected OutputBuffer initialValue() {
+            return new OutputBuffer();
+        }
+    };
+
+    private static final AtomicLong generatorsCreated = new AtomicLong();
+    private static final AtomicLong bufferBytesAllocated = new AtomicLong();
+
+    private final Buffer buffer = new Buffer();
+    private JsonGenerator jg;
+    private boolean binary;
+
+    private OutputBuffer() {}
+
+    static OutputBuffer get() {
+        return threadLocal.get();
+    }
+
+    // starts a new document, the generator is only recreated if the prior document was abandoned
+    // part way through (e.g. due to an exception), since its state is unknown at that point
+    JsonGenerator startJson() throws IOException {
+        if (jg == null || !jg.getOutputContext().inRoot()) {
+            jg = jsonFactory.createGenerator(buffer);
+            // documents are written to the sink individually, so no separator between them
+            jg.setRootValueSeparator(null);
+            generatorsCreated.incrementAndGet();
+        }
+        buffer.reset();
+        binary = false;
+        return jg;
+    }
+
+    OutputStream startBinary() {
+        buffer.reset();
+        binary = true;
+        return buffer;
+    }
+
+    void writeTo(Sink sink, long captureTime) throws IOException {
+        if (!binary) {
+            jg.flush();
+        }
+        try {
+            sink.write(captureTime, buffer.bytes, 0, buffer.count);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // the size of the document so far, including what the generator has not flushed yet
+    long bytesWritten() {
+        if (binary || jg == null) {
+            return buffer.count;
+        }
+        return buffer.count + jg.getOutputBuffered();
+    }
+
+    // for when the payload is not written to the sink from this thread
+    byte[] toByteArray() throws IOException {
+        if (!binary) {
+            jg.flush();
+        }
+        try {
+            return Arrays.copyOf(buffer.bytes, buffer.count);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    static long getGeneratorsCreated() {
+        return generatorsCreated.get();
+    }
+
+    static long getBufferBytesAllocated() {
+        return bufferBytesAllocated.get();
+    }
+
+    private static class Buffer extends OutputStream {
+
+        private byte[] bytes = allocate(INITIAL_CAPACITY);
+        private int count;
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        private void reset() {
+            count = 0;
+        }
+
+        private void release() {
+            count = 0;
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = allocate(INITIAL_CAPACITY);
+            }
+        }
+
+        private void ensureCapacity(int minCapacity) {
+            if (minCapacity > bytes.length) {
+                int newCapacity = Math.max(bytes.length << 1, minCapacity);
+                byte[] newBytes = allocate(newCapacity);
+                System.arraycopy(bytes, 0, newBytes, 0, count);
+                bytes = newBytes;
+            }
+        }
+
+        private static byte[] allocate(int capacity) {
+            bufferBytesAllocated.addAndGet(capacity);
+            return new byte[capacity];
+        }
+    }
+}
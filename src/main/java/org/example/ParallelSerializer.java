@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+// serializes a batch of payloads on a bounded pool of worker threads, each payload into its own
+// buffer, and then writes the buffers to the sink in the order of the batch, so that the output is
+// the same as if the batch had been serialized one payload after another
+//
+// batches smaller than the minimum batch size (and all batches when there are no worker threads)
+// are serialized inline on the calling thread, since handing them off costs more than it saves
+class ParallelSerializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelSerializer.class);
+
+    private final ExecutorService executor;
+    private final int minBatchSize;
+
+    ParallelSerializer(int threadCount, int minBatchSize) {
+        if (threadCount > 0) {
+            // the queue does not need a bound, since the only callers are the writer threads, each
+            // of which waits for its own batch to complete before submitting another
+            executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new SerializerThreadFactory());
+        } else {
+            executor = null;
+        }
+        this.minBatchSize = minBatchSize;
+    }
+
+    <T> void serialize(List<T> batch, Serializer<T> serializer, Sink sink, long captureTime)
+            throws Exception {
+        // a failure to serialize one payload does not prevent the others from being written, the
+        // first failure is thrown once the rest of the batch has been written
+        Exception exception = null;
+        if (executor == null || batch.size() < minBatchSize) {
+            for (T item : batch) {
+                OutputBuffer outputBuffer = OutputBuffer.get();
+                try {
+                    serializer.serialize(item, outputBuffer);
+                } catch (Exception e) {
+                    exception = firstFailure(exception, e);
+                    continue;
+                }
+                outputBuffer.writeTo(sink, captureTime);
+            }
+        } else {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(batch.size());
+            for (T item : batch) {
+                futures.add(executor.submit(new SerializeTask<T>(item, serializer)));
+            }
+            for (Future<byte[]> future : futures) {
+                byte[] bytes;
+                try {
+                    bytes = future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        exception = firstFailure(exception, (Exception) cause);
+                    } else {
+                        logger.error(cause.getMessage(), cause);
+                    }
+                    continue;
+                }
+                sink.write(captureTime, bytes, 0, bytes.length);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    // later failures are logged instead of being thrown
+    private static Exception firstFailure(Exception exception, Exception e) {
+        if (exception == null) {
+            return e;
+        }
+        logger.error(e.getMessage(), e);
+        return exception;
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    interface Serializer<T> {
+
+        void serialize(T item, OutputBuffer outputBuffer) throws Exception;
+    }
+
+    private static class SerializeTask<T> implements Callable<byte[]> {
+
+        private final T item;
+        private final Serializer<T> serializer;
+
+        private SerializeTask(T item, Serializer<T> serializer) {
+            this.item = item;
+            this.serializer = serializer;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            OutputBuffer outputBuffer = OutputBuffer.get();
+            serializer.serialize(item, outputBuffer);
+            return outputBuffer.toByteArray();
+        }
+    }
+
+    private static class SerializerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    "Example-Collector-Serializer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
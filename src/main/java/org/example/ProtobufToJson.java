@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// offline conversion of files written in the protobuf output format back into the json the
+// collector writes by default, one json document per line, e.g.
+//
+// java -cp glowroot.jar:glowroot-example-collector.jar org.example.ProtobufToJson traces.bin
+//
+// files written with compression enabled (.bin.blocks) are decompressed on the way, which needs
+// the preset dictionary they were compressed with (if any), e.g.
+//
+// java -cp glowroot.jar:glowroot-example-collector.jar org.example.ProtobufToJson \
+//         -dictionary traces.dict traces.bin.blocks
+//
+// each trace is written with its traceId (as the json output does when tracking trace updates),
+// since partial snapshots of the same trace are otherwise hard to tell apart, and a trace that
+// was exported header only is written the same way as in the json output (with entriesOmitted)
+public class ProtobufToJson {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final DataInputStream in;
+    private final JsonGenerator jg;
+    private final StackFrameCache stackFrameCache = new StackFrameCache(10000);
+
+    ProtobufToJson(InputStream in, OutputStream out) throws IOException {
+        this.in = new DataInputStream(in);
+        jg = jsonFactory.createGenerator(out);
+        jg.setRootValueSeparator(null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        byte[] dictionary = null;
+        if (args.length >= 2 && args[0].equals("-dictionary")) {
+            dictionary = CompressionDictionary.load(new File(args[1]));
+            i = 2;
+        }
+        if (i == args.length) {
+            System.err.println("usage: ProtobufToJson [-dictionary <file>] <file>...");
+            System.exit(1);
+        }
+        OutputStream out = new BufferedOutputStream(System.out);
+        for (; i < args.length; i++) {
+            InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            try {
+                InputStream uncompressedIn =
+                        CompressedBlocks.decompressIfCompressed(in, dictionary);
+                new ProtobufToJson(uncompressedIn, out).convert();
+                uncompressedIn.close();
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    void convert() throws IOException {
+        while (true) {
+            int recordType = in.read();
+            if (recordType == -1) {
+                break;
+            }
+            switch (recordType) {
+                case ProtobufWriter.TRACE_RECORD:
+                    convertTrace();
+                    break;
+                case ProtobufWriter.AGGREGATE_RECORD:
+                    convertAggregate();
+                    break;
+                case ProtobufWriter.GAUGE_VALUES_RECORD:
+                    convertGaugeValues();
+                    break;
+                case ProtobufWriter.GAUGE_BATCH_RECORD:
+                    convertGaugeBatch();
+                    break;
+                case ProtobufWriter.GAUGE_ROLLUP_RECORD:
+                    convertGaugeRollups();
+                    break;
+                default:
+                    throw new IOException("Unexpected record type: " + recordType);
+            }
+            jg.writeRaw('\n');
+        }
+        jg.flush();
+    }
+
+    private void convertTrace() throws IOException {
+        String traceId = readString();
+        // the rest of the envelope is not part of the json (the header has the same capture time
+        // and transaction type, and the json output has no partial and update flags either)
+        in.readLong(); // captureTime
+        in.readBoolean(); // partial
+        in.readBoolean(); // update
+        readString(); // transactionType
+
+        Trace.Header header = null;
+        List<Trace.Entry> entries = new ArrayList<Trace.Entry>();
+        List<Aggregate.Query> queries = new ArrayList<Aggregate.Query>();
+        List<String> sharedQueryTexts = new ArrayList<String>();
+        Profile mainThreadProfile = null;
+        Profile auxThreadProfile = null;
+        while (true) {
+            int sectionType = readByte();
+            if (sectionType == ProtobufWriter.END_SECTION) {
+                break;
+            }
+            switch (sectionType) {
+                case ProtobufWriter.HEADER_SECTION:
+                    header = Trace.Header.parseDelimitedFrom(in);
+                    break;
+                case ProtobufWriter.ENTRY_SECTION:
+                    entries.add(Trace.Entry.parseDelimitedFrom(in));
+                    break;
+                case ProtobufWriter.QUERY_SECTION:
+                    queries.add(Aggregate.Query.parseDelimitedFrom(in));
+                    break;
+                case ProtobufWriter.SHARED_QUERY_TEXT_SECTION:
+                    sharedQueryTexts.add(readString());
+                    break;
+                case ProtobufWriter.MAIN_THREAD_PROFILE_SECTION:
+                    mainThreadProfile = Profile.parseDelimitedFrom(in);
+                    break;
+                case ProtobufWriter.AUX_THREAD_PROFILE_SECTION:
+                    auxThreadProfile = Profile.parseDelimitedFrom(in);
+                    break;
+                default:
+                    throw new IOException("Unexpected trace section type: " + sectionType);
+            }
+        }
+        if (header == null) {
+            throw new IOException("Trace record is missing its header");
+        }
+        TraceWriter traceWriter = new TraceWriter(jg, stackFrameCache, null);
+        // written in full, only the trace id is taken from tracking updates
+        traceWriter.trackUpdates(traceId, null, 0);
+        if (entries.isEmpty() && header.getEntryCount() > 0) {
+            // exported header only, see ExampleCollector.collectTrace()
+            traceWriter.writeHeaderOnly(header);
+        } else {
+            traceWriter.write(header, entries, queries, sharedQueryTexts, mainThreadProfile,
+                    auxThreadProfile);
+        }
+    }
+
+    private void convertAggregate() throws IOException {
+        in.readLong(); // captureTime
+        String transactionType = readString();
+        String transactionName = in.readBoolean() ? readString() : null;
+        int otherTransactionNameCount = in.readInt();
+        long rollupIntervalMillis = in.readLong();
+        int sharedQueryTextCount = in.readInt();
+        List<String> sharedQueryTexts = new ArrayList<String>(sharedQueryTextCount);
+        for (int i = 0; i < sharedQueryTextCount; i++) {
+            sharedQueryTexts.add(readString());
+        }
+        Aggregate aggregate = Aggregate.parseDelimitedFrom(in);
+        new AggregateWriter(jg, stackFrameCache).write(new CollectedAggregate(transactionType,
+                transactionName, otherTransactionNameCount, rollupIntervalMillis, aggregate,
+                sharedQueryTexts));
+    }
+
+    private void convertGaugeValues() throws IOException {
+        int count = in.readInt();
+        List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>(count);
+        for (int i = 0; i < count; i++) {
+            gaugeValues.add(GaugeValue.parseDelimitedFrom(in));
+        }
+        new GaugeValueWriter(jg).write(gaugeValues);
+    }
+
+    private void convertGaugeBatch() throws IOException {
+        GaugeBatch batch = new GaugeBatch(0);
+        int gaugeCount = in.readInt();
+        for (int i = 0; i < gaugeCount; i++) {
+            String gaugeName = readString();
+            int size = in.readInt();
+            long[] captureTimes = new long[size];
+            long captureTime = 0;
+            for (int j = 0; j < size; j++) {
+                captureTime += readVarLong();
+                captureTimes[j] = captureTime;
+            }
+            double[] values = new double[size];
+            for (int j = 0; j < size; j++) {
+                values[j] = in.readDouble();
+            }
+            for (int j = 0; j < size; j++) {
+                batch.add(gaugeName, captureTimes[j], values[j], readVarLong());
+            }
+        }
+        new GaugeValueWriter(jg).write(batch);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of record");
+        }
+        return b;
+    }
+
+    private void convertGaugeRollups() throws IOException {
+        int count = in.readInt();
+        List<GaugeRollup.Point> points = new ArrayList<GaugeRollup.Point>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new GaugeRollup.Point(readString(), in.readLong(), in.readLong(),
+                    in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                    in.readLong()));
+        }
+        new GaugeValueWriter(jg).writeRollups(points);
+    }
+
+    private long readVarLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ProtobufWriter.UTF_8);
+    }
+}
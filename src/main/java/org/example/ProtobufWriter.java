@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// binary alternative to TraceWriter, AggregateWriter and GaugeValueWriter, which writes the wire
+// messages as they were received (length-delimited) instead of re-encoding them field by field
+//
+// each record is a record type byte, followed by a small envelope, followed by the messages:
+//
+// trace: traceId, captureTime, partial, update, transactionType, then sections each made up of a
+// section type byte and a length-delimited message (or string), ending with END_SECTION
+//
+// aggregate: captureTime, transactionType, whether there is a transactionName, transactionName,
+// otherTransactionNameCount, rollupIntervalMillis, shared query text count, shared query texts,
+// then the length-delimited aggregate
+//
+// gauge values: gauge value count, then the length-delimited gauge values
+//
+// gauge batch: gauge count, then per gauge its name, value count, the capture times (each as the
+// zigzag varint difference from the one before it), the values and the weights (zigzag varints)
+//
+// gauge rollup: point count, then per point its gaugeName, captureTime, windowMillis, mean, min,
+// max, last and weight
+//
+// ProtobufToJson converts these records back to the json written by the other writers
+class ProtobufWriter implements StreamingTraceWriter {
+
+    static final byte TRACE_RECORD = 1;
+    static final byte AGGREGATE_RECORD = 2;
+    static final byte GAUGE_VALUES_RECORD = 3;
+    static final byte GAUGE_BATCH_RECORD = 4;
+    static final byte GAUGE_ROLLUP_RECORD = 5;
+
+    static final byte END_SECTION = 0;
+    static final byte HEADER_SECTION = 1;
+    static final byte ENTRY_SECTION = 2;
+    static final byte QUERY_SECTION = 3;
+    static final byte SHARED_QUERY_TEXT_SECTION = 4;
+    static final byte MAIN_THREAD_PROFILE_SECTION = 5;
+    static final byte AUX_THREAD_PROFILE_SECTION = 6;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+
+    ProtobufWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    void writeTrace(String traceId, long captureTime, boolean partial, boolean update,
+            Trace.Header header, List<Trace.Entry> entries, List<Aggregate.Query> queries,
+            List<String> sharedQueryTexts, Profile mainThreadProfile, Profile auxThreadProfile)
+            throws IOException {
+        writeStreamingStart(traceId, captureTime, partial, update, header.getTransactionType());
+        for (Trace.Entry entry : entries) {
+            writeStreamingEntry(entry);
+        }
+        writeStreamingEnd(header, queries, sharedQueryTexts, mainThreadProfile, auxThreadProfile);
+    }
+
+    void writeStreamingStart(String traceId, long captureTime, boolean partial, boolean update,
+            String transactionType) throws IOException {
+        out.writeByte(TRACE_RECORD);
+        writeString(traceId);
+        out.writeLong(captureTime);
+        out.writeBoolean(partial);
+        out.writeBoolean(update);
+        writeString(transactionType);
+    }
+
+    @Override
+    public void writeStreamingEntry(Trace.Entry entry) throws IOException {
+        out.writeByte(ENTRY_SECTION);
+        entry.writeDelimitedTo(out);
+    }
+
+    @Override
+    public void writeStreamingEnd(Trace.Header header, List<Aggregate.Query> queries,
+            List<String> sharedQueryTexts, Profile mainThreadProfile, Profile auxThreadProfile)
+            throws IOException {
+        out.writeByte(HEADER_SECTION);
+        header.writeDelimitedTo(out);
+        for (Aggregate.Query query : queries) {
+            out.writeByte(QUERY_SECTION);
+            query.writeDelimitedTo(out);
+        }
+        for (String sharedQueryText : sharedQueryTexts) {
+            out.writeByte(SHARED_QUERY_TEXT_SECTION);
+            writeString(sharedQueryText);
+        }
+        if (mainThreadProfile != null) {
+            out.writeByte(MAIN_THREAD_PROFILE_SECTION);
+            mainThreadProfile.writeDelimitedTo(out);
+        }
+        if (auxThreadProfile != null) {
+            out.writeByte(AUX_THREAD_PROFILE_SECTION);
+            auxThreadProfile.writeDelimitedTo(out);
+        }
+        out.writeByte(END_SECTION);
+        out.flush();
+    }
+
+    void writeAggregate(long captureTime, CollectedAggregate collectedAggregate)
+            throws IOException {
+        out.writeByte(AGGREGATE_RECORD);
+        out.writeLong(captureTime);
+        writeString(collectedAggregate.transactionType());
+        String transactionName = collectedAggregate.transactionName();
+        out.writeBoolean(transactionName != null);
+        if (transactionName != null) {
+            writeString(transactionName);
+        }
+        out.writeInt(collectedAggregate.otherTransactionNameCount());
+        out.writeLong(collectedAggregate.rollupIntervalMillis());
+        List<String> sharedQueryTexts = collectedAggregate.sharedQueryTexts();
+        out.writeInt(sharedQueryTexts.size());
+        for (String sharedQueryText : sharedQueryTexts) {
+            writeString(sharedQueryText);
+        }
+        collectedAggregate.aggregate().writeDelimitedTo(out);
+        out.flush();
+    }
+
+    void writeGaugeValues(List<GaugeValue> gaugeValues) throws IOException {
+        out.writeByte(GAUGE_VALUES_RECORD);
+        out.writeInt(gaugeValues.size());
+        for (GaugeValue gaugeValue : gaugeValues) {
+            gaugeValue.writeDelimitedTo(out);
+        }
+        out.flush();
+    }
+
+    void writeGaugeBatch(GaugeBatch batch) throws IOException {
+        out.writeByte(GAUGE_BATCH_RECORD);
+        out.writeInt(batch.columns().size());
+        for (GaugeBatch.Column column : batch.columns()) {
+            writeString(column.gaugeName());
+            int size = column.size();
+            out.writeInt(size);
+            long priorCaptureTime = 0;
+            for (int i = 0; i < size; i++) {
+                long captureTime = column.captureTime(i);
+                writeVarLong(captureTime - priorCaptureTime);
+                priorCaptureTime = captureTime;
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeDouble(column.value(i));
+            }
+            for (int i = 0; i < size; i++) {
+                writeVarLong(column.weight(i));
+            }
+        }
+        out.flush();
+    }
+
+    void writeGaugeRollups(List<GaugeRollup.Point> points) throws IOException {
+        out.writeByte(GAUGE_ROLLUP_RECORD);
+        out.writeInt(points.size());
+        for (GaugeRollup.Point point : points) {
+            writeString(point.gaugeName());
+            out.writeLong(point.captureTime());
+            out.writeLong(point.windowMillis());
+            out.writeDouble(point.mean());
+            out.writeDouble(point.min());
+            out.writeDouble(point.max());
+            out.writeDouble(point.last());
+            out.writeLong(point.weight());
+        }
+        out.flush();
+    }
+
+    // zigzag so that small negative values (capture times are not guaranteed to be in order)
+    // are small too
+    private void writeVarLong(long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    // not using DataOutputStream.writeUTF() since it is limited to 64k, which long query texts
+    // can exceed
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
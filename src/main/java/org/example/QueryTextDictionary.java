@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+// orm generated sql runs to several kb, and the same few statements are executed on thousands of
+// traces, so each distinct query text is written only once, to a separate dictionary sink, and
+// traces and aggregates refer to it by its hash
+//
+// same write-before-remember ordering and bounded memory as StackTraceDictionary
+class QueryTextDictionary {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Sink sink;
+    private final Hashes hashes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    QueryTextDictionary(Sink sink, int maxSize) {
+        this.sink = sink;
+        hashes = new Hashes(maxSize);
+    }
+
+    // returns the hash of the query text, writing the query text to the dictionary first if it is
+    // not already known
+    String reference(String queryText) throws IOException {
+        String queryTextHash = hash(queryText);
+        boolean known;
+        synchronized (hashes) {
+            known = hashes.get(queryTextHash) != null;
+        }
+        if (known) {
+            hitCount.incrementAndGet();
+            return queryTextHash;
+        }
+        missCount.incrementAndGet();
+        write(queryTextHash, queryText);
+        synchronized (hashes) {
+            hashes.put(queryTextHash, Boolean.TRUE);
+        }
+        return queryTextHash;
+    }
+
+    void close() throws IOException {
+        sink.close();
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hitCount.get() + ", misses: " + missCount.get();
+    }
+
+    private void write(String queryTextHash, String queryText) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = jsonFactory.createGenerator(out);
+        jg.writeStartObject();
+        jg.writeStringField("queryTextHash", queryTextHash);
+        jg.writeStringField("queryText", queryText);
+        jg.writeEndObject();
+        jg.close();
+        byte[] bytes = out.toByteArray();
+        sink.write(System.currentTimeMillis(), bytes, 0, bytes.length);
+    }
+
+    // stable across jvm restarts, see StackTraceDictionary.fingerprint()
+    static String hash(String queryText) {
+        return StackTraceDictionary.toHex(StackTraceDictionary.mix(0xCBF29CE484222325L, queryText));
+    }
+
+    private static class Hashes extends LinkedHashMap<String, Boolean> {
+
+        private static final long serialVersionUID = 0;
+
+        private final int maxSize;
+
+        private Hashes(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+// what the collector itself costs, as histograms (latency of each collect* call and each export
+// phase, and the size of each payload) and counters (drops and errors), published as gauge values
+// so that they are exported along with (and the same way as) the gauges collected by glowroot,
+// e.g. example.collector:self.collectTrace.nanos.p99
+//
+// histogram names end with their unit, and each histogram is published as its count, p50, p99,
+// p99.9 and max over the interval since the previous publish, while counters are published as the
+// count over that interval
+//
+// when disabled (the default), recording returns right away, so the collect* calls on the agent
+// threads don't pay for the map lookups
+class SelfTelemetry {
+
+    static final String GAUGE_NAME_PREFIX = "example.collector:self.";
+
+    private final boolean enabled;
+
+    private final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    SelfTelemetry(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void record(String name, long value) {
+        if (!enabled) {
+            return;
+        }
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(value);
+    }
+
+    void recordNanosSince(String name, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        record(name, System.nanoTime() - startNanos);
+    }
+
+    void increment(String name) {
+        if (!enabled) {
+            return;
+        }
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    List<GaugeValue> getGaugeValues(long captureTime) {
+        List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram.Snapshot snapshot = entry.getValue().snapshotAndReset();
+            if (snapshot.getTotalCount() == 0) {
+                continue;
+            }
+            String name = entry.getKey();
+            gaugeValues.add(createGaugeValue(name + ".count", snapshot.getTotalCount(),
+                    captureTime));
+            gaugeValues.add(createGaugeValue(name + ".p50", snapshot.getValueAtPercentile(50),
+                    captureTime));
+            gaugeValues.add(createGaugeValue(name + ".p99", snapshot.getValueAtPercentile(99),
+                    captureTime));
+            gaugeValues.add(createGaugeValue(name + ".p999",
+                    snapshot.getValueAtPercentile(99.9), captureTime));
+            gaugeValues.add(createGaugeValue(name + ".max", snapshot.getMax(), captureTime));
+        }
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            gaugeValues.add(createGaugeValue(entry.getKey(), entry.getValue().getAndSet(0),
+                    captureTime));
+        }
+        return gaugeValues;
+    }
+
+    private static GaugeValue createGaugeValue(String name, double value, long captureTime) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_NAME_PREFIX + name)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.glowroot.agent.shaded.org.slf4j.Logger;
+import org.glowroot.agent.shaded.org.slf4j.LoggerFactory;
+
+// persistent fifo queue of byte records on local disk, so that exports waiting out a backend
+// outage don't grow the heap of the monitored jvm
+//
+// records are appended to segment files named by sequence number (e.g. 00000000000000000001.spill),
+// each record framed by its length and crc-32, and read back from a cursor (segment sequence and
+// offset) that is persisted to the "cursor" file as it advances
+//
+// once a segment is full, it is synced and an index file (e.g. 00000000000000000001.index) is
+// written with its record count and length, so that on startup only the one segment that was
+// still being appended to needs to be scanned, to find where its last complete record ends
+//
+// disk usage is bounded by evicting whole segments, oldest first, and a segment is deleted as soon
+// as the cursor has passed its end
+class SpillQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String CURSOR_FILE_NAME = "cursor";
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private final File dir;
+    private final long segmentSizeBytes;
+    private final long maxBytes;
+
+    // all guarded by this, oldest first, the last one being appended to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long lastSequence;
+    private long totalBytes;
+    private long cursorOffset;
+    private RandomAccessFile reader;
+    private final RandomAccessFile cursorFile;
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[RECORD_HEADER_LENGTH];
+
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong polledCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong corruptCount = new AtomicLong();
+
+    SpillQueue(File dir, long segmentSizeBytes, long maxBytes) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.segmentSizeBytes = segmentSizeBytes;
+        // at least two segments, so that appending never evicts the segment being appended to
+        this.maxBytes = Math.max(maxBytes, 2 * segmentSizeBytes);
+        cursorFile = new RandomAccessFile(new File(dir, CURSOR_FILE_NAME), "rw");
+        recover();
+    }
+
+    synchronized void append(byte[] bytes, int offset, int length) throws IOException {
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.completed || tail.length >= segmentSizeBytes) {
+            if (tail != null && !tail.completed) {
+                tail.complete();
+            }
+            tail = new Segment(++lastSequence);
+            segments.addLast(tail);
+        }
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        while (totalBytes + recordLength > maxBytes && segments.size() > 1) {
+            evictOldest();
+        }
+        crc.reset();
+        crc.update(bytes, offset, length);
+        writeInt(header, 0, length);
+        writeInt(header, 4, (int) crc.getValue());
+        tail.writer.seek(tail.length);
+        tail.writer.write(header);
+        tail.writer.write(bytes, offset, length);
+        tail.length += recordLength;
+        tail.recordCount++;
+        totalBytes += recordLength;
+        appendedCount.incrementAndGet();
+    }
+
+    // returns null if the queue is empty
+    synchronized byte[] poll() throws IOException {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            }
+            if (cursorOffset >= head.length) {
+                if (head == segments.peekLast()) {
+                    if (head.length > 0) {
+                        // empty, so start over with a new segment to give back the disk space
+                        removeHead();
+                    }
+                    return null;
+                }
+                removeHead();
+                continue;
+            }
+            if (reader == null) {
+                reader = new RandomAccessFile(head.file, "r");
+            }
+            reader.seek(cursorOffset);
+            reader.readFully(header);
+            int length = readInt(header, 0);
+            int checksum = readInt(header, 4);
+            byte[] bytes = null;
+            if (length >= 0 && cursorOffset + RECORD_HEADER_LENGTH + length <= head.length) {
+                bytes = new byte[length];
+                reader.readFully(bytes);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    bytes = null;
+                }
+            }
+            if (bytes == null) {
+                // nothing after a corrupt record in this segment can be trusted either
+                logger.warn("corrupt record at offset {} of {}, skipping the rest of the segment",
+                        cursorOffset, head.file.getAbsolutePath());
+                corruptCount.incrementAndGet();
+                cursorOffset = head.length;
+                continue;
+            }
+            cursorOffset += RECORD_HEADER_LENGTH + length;
+            writeCursor(head.sequence, cursorOffset);
+            polledCount.incrementAndGet();
+            return bytes;
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        Segment head = segments.peekFirst();
+        return head == null || head == segments.peekLast() && cursorOffset >= head.length;
+    }
+
+    synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    // the segment being appended to is completed, so that the next startup doesn't need to scan
+    // it
+    synchronized void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        Segment tail = segments.peekLast();
+        if (tail != null && !tail.completed && tail.length > 0) {
+            tail.complete();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        cursorFile.close();
+    }
+
+    long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "appended: " + appendedCount.get() + ", polled: " + polledCount.get()
+                + ", evicted: " + evictedCount.get() + ", corrupt: " + corruptCount.get();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    long sequence = Long.parseLong(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.addLast(new Segment(sequence, file));
+                }
+            }
+        }
+        // only the last segment can have been appended to without being completed, any earlier
+        // one without an index was cut short by a crash during its roll over
+        for (Segment segment : segments) {
+            if (!segment.completed && segment != segments.peekLast()) {
+                segment.complete();
+            }
+            totalBytes += segment.length;
+        }
+        long cursorSequence = 0;
+        if (cursorFile.length() >= 16) {
+            cursorSequence = cursorFile.readLong();
+            cursorOffset = cursorFile.readLong();
+        }
+        // segments the cursor has already passed
+        while (!segments.isEmpty() && segments.peekFirst().sequence < cursorSequence) {
+            removeHead();
+        }
+        Segment head = segments.peekFirst();
+        if (head == null || head.sequence != cursorSequence) {
+            cursorOffset = 0;
+        }
+        Segment tail = segments.peekLast();
+        lastSequence = Math.max(tail == null ? 0 : tail.sequence, cursorSequence - 1);
+    }
+
+    private void evictOldest() throws IOException {
+        Segment head = segments.peekFirst();
+        long unreadRecordCount = head.recordCount;
+        if (cursorOffset > 0) {
+            // approximate, records are not all the same size
+            unreadRecordCount = Math.round(head.recordCount * (1 - cursorOffset
+                    / (double) Math.max(head.length, 1)));
+        }
+        evictedCount.addAndGet(unreadRecordCount);
+        logger.warn("spill queue exceeded {} bytes, evicted {} record(s) from {}", maxBytes,
+                unreadRecordCount, head.file.getAbsolutePath());
+        removeHead();
+    }
+
+    private void removeHead() throws IOException {
+        Segment head = segments.removeFirst();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        head.close();
+        head.delete();
+        totalBytes -= head.length;
+        cursorOffset = 0;
+        Segment next = segments.peekFirst();
+        writeCursor(next == null ? head.sequence + 1 : next.sequence, 0);
+    }
+
+    private void writeCursor(long sequence, long offset) throws IOException {
+        cursorFile.seek(0);
+        cursorFile.writeLong(sequence);
+        cursorFile.writeLong(offset);
+    }
+
+    private File getFile(long sequence, String suffix) {
+        return new File(dir, String.format("%020d", sequence) + suffix);
+    }
+
+    private class Segment {
+
+        private final long sequence;
+        private final File file;
+
+        // null once completed
+        private RandomAccessFile writer;
+        private long length;
+        private int recordCount;
+        private boolean completed;
+
+        private Segment(long sequence) throws IOException {
+            this.sequence = sequence;
+            file = getFile(sequence, SEGMENT_SUFFIX);
+            writer = new RandomAccessFile(file, "rw");
+            writer.setLength(0);
+        }
+
+        private Segment(long sequence, File file) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            File indexFile = getFile(sequence, INDEX_SUFFIX);
+            if (indexFile.exists()) {
+                DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+                try {
+                    length = in.readLong();
+                    recordCount = in.readInt();
+                    completed = true;
+                    return;
+                } catch (IOException e) {
+                    // a torn index file, so the segment is scanned instead
+                } finally {
+                    in.close();
+                }
+            }
+            writer = new RandomAccessFile(file, "rw");
+            scan();
+        }
+
+        // finds where the last complete record ends, and cuts off anything after it
+        private void scan() throws IOException {
+            long fileLength = writer.length();
+            byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+            byte[] bytes = new byte[0];
+            CRC32 checksum = new CRC32();
+            while (length + RECORD_HEADER_LENGTH <= fileLength) {
+                writer.seek(length);
+                writer.readFully(recordHeader);
+                int recordLength = readInt(recordHeader, 0);
+                if (recordLength < 0 || length + RECORD_HEADER_LENGTH + recordLength > fileLength) {
+                    break;
+                }
+                if (bytes.length < recordLength) {
+                    bytes = new byte[recordLength];
+                }
+                writer.readFully(bytes, 0, recordLength);
+                checksum.reset();
+                checksum.update(bytes, 0, recordLength);
+                if ((int) checksum.getValue() != readInt(recordHeader, 4)) {
+                    break;
+                }
+                length += RECORD_HEADER_LENGTH + recordLength;
+                recordCount++;
+            }
+            if (length < fileLength) {
+                logger.warn("truncating {} from {} to {} bytes", file.getAbsolutePath(),
+                        fileLength, length);
+                writer.setLength(length);
+            }
+        }
+
+        // the index file is written only after the segment has been synced, so that an index
+        // never describes records that are not on disk
+        private void complete() throws IOException {
+            writer.getFD().sync();
+            writer.close();
+            writer = null;
+            DataOutputStream out =
+                    new DataOutputStream(new FileOutputStream(getFile(sequence, INDEX_SUFFIX)));
+            try {
+                out.writeLong(length);
+                out.writeInt(recordCount);
+            } finally {
+                out.close();
+            }
+            completed = true;
+        }
+
+        private void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+
+        private void delete() {
+            File indexFile = getFile(sequence, INDEX_SUFFIX);
+            if (indexFile.exists() && !indexFile.delete()) {
+                logger.warn("could not delete {}", indexFile.getAbsolutePath());
+            }
+            if (!file.delete()) {
+                logger.warn("could not delete {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+
+// the same few thousand frames recur across every profile and exception, so the formatted frame
+// strings are cached, already json encoded (SerializedString holds on to its quoted utf-8 bytes
+// after the first write), in a bounded lru that is split into segments to limit lock contention
+class StackFrameCache {
+
+    private static final int SEGMENT_COUNT = 16;
+    // the segment is picked from the top bits of the fibonacci hashed frame hash, the map inside
+    // the segment buckets by the low bits, so picking by low bits too would leave most of each
+    // segment's table unused
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    StackFrameCache(int maxSize) {
+        segments = new Segment[SEGMENT_COUNT];
+        int maxSegmentSize = Math.max(1, maxSize / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxSegmentSize);
+        }
+    }
+
+    SerializedString get(Proto.StackTraceElement stackTraceElement) {
+        return get(stackTraceElement.getClassName(), stackTraceElement.getMethodName(),
+                stackTraceElement.getFileName(), stackTraceElement.getLineNumber());
+    }
+
+    // a hit allocates nothing, the lookup goes through the segment's reusable probe key and a key
+    // of its own is only created for a frame that is added
+    SerializedString get(String className, String methodName, String fileName, int lineNumber) {
+        int hash = FrameKey.hash(className, methodName, fileName, lineNumber);
+        Segment segment = segments[segmentIndex(hash)];
+        SerializedString value;
+        synchronized (segment) {
+            value = segment.getByProbe(className, methodName, fileName, lineNumber, hash);
+        }
+        if (value != null) {
+            hitCount.incrementAndGet();
+            return value;
+        }
+        missCount.incrementAndGet();
+        value = new SerializedString(
+                new StackTraceElement(className, methodName, fileName, lineNumber).toString());
+        synchronized (segment) {
+            segment.put(new FrameKey(className, methodName, fileName, lineNumber, hash), value);
+        }
+        return value;
+    }
+
+    // profile nodes refer to frames by index into the profile's own string tables, so within a
+    // single profile the frames are first looked up by those indexes, which avoids even resolving
+    // the strings for the frames that repeat within the profile
+    ProfileFrames newProfileFrames(Profile profile) {
+        return new ProfileFrames(profile);
+    }
+
+    static int segmentIndex(String className, String methodName, String fileName,
+            int lineNumber) {
+        return segmentIndex(FrameKey.hash(className, methodName, fileName, lineNumber));
+    }
+
+    private static int segmentIndex(int hash) {
+        return (hash * 0x9E3779B9) >>> SEGMENT_SHIFT;
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hitCount.get() + ", misses: " + missCount.get() + ", evictions: "
+                + evictionCount.get();
+    }
+
+    class ProfileFrames {
+
+        private final Profile profile;
+
+        // open addressing, keyed on (class name index, method name index) and
+        // (file name index, line number)
+        private long[] keys1;
+        private long[] keys2;
+        private SerializedString[] values;
+        private int size;
+
+        private ProfileFrames(Profile profile) {
+            this.profile = profile;
+            int capacity = 64;
+            keys1 = new long[capacity];
+            keys2 = new long[capacity];
+            values = new SerializedString[capacity];
+        }
+
+        SerializedString get(ProfileNode node) {
+            long key1 = ((long) node.getClassNameIndex() << 32) | node.getMethodNameIndex();
+            long key2 = ((long) node.getFileNameIndex() << 32)
+                    | (node.getLineNumber() & 0xFFFFFFFFL);
+            int mask = values.length - 1;
+            int i = hash(key1, key2) & mask;
+            while (values[i] != null) {
+                if (keys1[i] == key1 && keys2[i] == key2) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            SerializedString value = StackFrameCache.this.get(
+                    profile.getClassName(node.getClassNameIndex()),
+                    profile.getMethodName(node.getMethodNameIndex()),
+                    profile.getFileName(node.getFileNameIndex()), node.getLineNumber());
+            keys1[i] = key1;
+            keys2[i] = key2;
+            values[i] = value;
+            if (++size > values.length >> 1) {
+                resize();
+            }
+            return value;
+        }
+
+        private void resize() {
+            long[] oldKeys1 = keys1;
+            long[] oldKeys2 = keys2;
+            SerializedString[] oldValues = values;
+            int capacity = oldValues.length << 1;
+            keys1 = new long[capacity];
+            keys2 = new long[capacity];
+            values = new SerializedString[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys1[j], oldKeys2[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys1[i] = oldKeys1[j];
+                    keys2[i] = oldKeys2[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private int hash(long key1, long key2) {
+            long h = key1 * 0x9E3779B97F4A7C15L + key2;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private class Segment extends LinkedHashMap<FrameKey, SerializedString> {
+
+        private static final long serialVersionUID = 0;
+
+        private final int maxSize;
+
+        // guarded by this
+        private final FrameKey probe = new FrameKey(null, null, null, 0, 0);
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        // must be called while holding the lock on this segment
+        private SerializedString getByProbe(String className, String methodName, String fileName,
+                int lineNumber, int hash) {
+            probe.className = className;
+            probe.methodName = methodName;
+            probe.fileName = fileName;
+            probe.lineNumber = lineNumber;
+            probe.hashCode = hash;
+            SerializedString value = get(probe);
+            // so that the probe does not hold on to the strings of a profile that is done with
+            probe.className = null;
+            probe.methodName = null;
+            probe.fileName = null;
+            return value;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FrameKey, SerializedString> eldest) {
+            if (size() > maxSize) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // only a segment's probe key is ever mutated, keys in the map are not
+    private static class FrameKey {
+
+        private String className;
+        private String methodName;
+        private String fileName;
+        private int lineNumber;
+        private int hashCode;
+
+        private FrameKey(String className, String methodName, String fileName, int lineNumber,
+                int hashCode) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+            this.hashCode = hashCode;
+        }
+
+        private static int hash(String className, String methodName, String fileName,
+                int lineNumber) {
+            int hashCode = className.hashCode();
+            hashCode = 31 * hashCode + methodName.hashCode();
+            hashCode = 31 * hashCode + (fileName == null ? 0 : fileName.hashCode());
+            return 31 * hashCode + lineNumber;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FrameKey)) {
+                return false;
+            }
+            FrameKey that = (FrameKey) obj;
+            return lineNumber == that.lineNumber && className.equals(that.className)
+                    && methodName.equals(that.methodName) && (fileName == null
+                            ? that.fileName == null : fileName.equals(that.fileName));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
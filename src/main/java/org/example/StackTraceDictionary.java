@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+
+// during an error storm the same few stack traces are captured on thousands of traces, so each
+// distinct stack is written only once, to a separate dictionary sink, and traces refer to it by
+// its fingerprint
+//
+// the dictionary record is always written before the fingerprint is remembered, so a trace never
+// refers to a stack that has not been written yet (at worst, two writer threads racing on the same
+// new stack both write it, and the duplicate record is harmless)
+//
+// only a bounded number of fingerprints are remembered, so a stack that has been evicted is simply
+// written to the dictionary again the next time it is seen
+class StackTraceDictionary {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Sink sink;
+    private final StackFrameCache stackFrameCache;
+    private final Fingerprints fingerprints;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    StackTraceDictionary(Sink sink, StackFrameCache stackFrameCache, int maxSize) {
+        this.sink = sink;
+        this.stackFrameCache = stackFrameCache;
+        fingerprints = new Fingerprints(maxSize);
+    }
+
+    // returns the fingerprint of the throwable's own stack (not including its causes), writing the
+    // stack to the dictionary first if it is not already known
+    String reference(Proto.Throwable throwable, boolean hasEnclosing) throws IOException {
+        List<Proto.StackTraceElement> stackTraceElements = throwable.getStackTraceElementList();
+        // a cause only lists the frames that are not in common with its enclosing throwable, so
+        // the number of frames in common is part of what makes the stack distinct
+        int framesInCommonWithEnclosing =
+                hasEnclosing ? throwable.getFramesInCommonWithEnclosing() : 0;
+        String stackHash = fingerprint(stackTraceElements, framesInCommonWithEnclosing);
+        boolean known;
+        synchronized (fingerprints) {
+            known = fingerprints.get(stackHash) != null;
+        }
+        if (known) {
+            hitCount.incrementAndGet();
+            return stackHash;
+        }
+        missCount.incrementAndGet();
+        write(stackHash, stackTraceElements, framesInCommonWithEnclosing);
+        synchronized (fingerprints) {
+            fingerprints.put(stackHash, Boolean.TRUE);
+        }
+        return stackHash;
+    }
+
+    void close() throws IOException {
+        sink.close();
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hitCount.get() + ", misses: " + missCount.get();
+    }
+
+    // new stacks are rare compared to the traces that refer to them, so there is no need to reuse
+    // the buffer or generator here
+    private void write(String stackHash, List<Proto.StackTraceElement> stackTraceElements,
+            int framesInCommonWithEnclosing) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = jsonFactory.createGenerator(out);
+        jg.writeStartObject();
+        jg.writeStringField("stackHash", stackHash);
+        jg.writeArrayFieldStart("stackTraceElements");
+        for (Proto.StackTraceElement stackTraceElement : stackTraceElements) {
+            jg.writeString(stackFrameCache.get(stackTraceElement));
+        }
+        jg.writeEndArray();
+        if (framesInCommonWithEnclosing > 0) {
+            jg.writeNumberField("framesInCommonWithEnclosing", framesInCommonWithEnclosing);
+        }
+        jg.writeEndObject();
+        jg.close();
+        byte[] bytes = out.toByteArray();
+        // the record is not tied to any one capture, so it is stamped with the time it is written
+        sink.write(System.currentTimeMillis(), bytes, 0, bytes.length);
+    }
+
+    // 64-bit fnv-1a over the frame fields, which (unlike identity hash codes) is stable across jvm
+    // restarts, so the same stack gets the same fingerprint in every dictionary file
+    static String fingerprint(List<Proto.StackTraceElement> stackTraceElements,
+            int framesInCommonWithEnclosing) {
+        long hash = 0xCBF29CE484222325L;
+        for (Proto.StackTraceElement stackTraceElement : stackTraceElements) {
+            hash = mix(hash, stackTraceElement.getClassName());
+            hash = mix(hash, stackTraceElement.getMethodName());
+            hash = mix(hash, stackTraceElement.getFileName());
+            hash = mix(hash, stackTraceElement.getLineNumber());
+        }
+        hash = mix(hash, stackTraceElements.size());
+        hash = mix(hash, framesInCommonWithEnclosing);
+        return toHex(hash);
+    }
+
+    static long mix(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        // separator so that e.g. "ab" + "c" and "a" + "bc" do not collide
+        return (hash ^ 0xFF) * 0x100000001B3L;
+    }
+
+    private static long mix(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    static String toHex(long value) {
+        char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (value & 0xF), 16);
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    private static class Fingerprints extends LinkedHashMap<String, Boolean> {
+
+        private static final long serialVersionUID = 0;
+
+        private final int maxSize;
+
+        private Fingerprints(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
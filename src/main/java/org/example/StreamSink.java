@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// appends each payload to a single file, optionally followed by a delimiter (json payloads are
+// newline delimited, while binary payloads carry their own framing)
+class StreamSink implements Sink {
+
+    private final OutputStream out;
+    private final byte[] delimiter;
+
+    StreamSink(File file, byte[] delimiter) throws IOException {
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + parentDir.getAbsolutePath());
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public synchronized void write(long captureTime, byte[] bytes, int offset, int length)
+            throws IOException {
+        out.write(bytes, offset, length);
+        out.write(delimiter);
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
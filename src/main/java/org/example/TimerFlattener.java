@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// per-thread engine that flattens timer trees into totals per timer name, shared by TraceWriter and
+// AggregateWriter
+//
+// timer names are interned to small integer ids which index into primitive arrays that are reused
+// across exports, and the tree is walked with an explicit stack, so in steady state (once the timer
+// names have been seen) flattening does not allocate
+//
+// a timer nested underneath itself when separated by another timer, e.g. abc > xyz > abc, is not
+// counted again, since its time is already included in the outer abc, so the number of times each
+// timer name appears on the current ancestor chain is tracked
+class TimerFlattener {
+
+    // timer names come from a small fixed set of instrumentation, so this is just a safety net
+    private static final int MAX_NAMES = 10000;
+
+    private static final ThreadLocal<TimerFlattener> threadLocal =
+            new ThreadLocal<TimerFlattener>() {
+                @Override
+                protected TimerFlattener initialValue() {
+                    return new TimerFlattener();
+                }
+            };
+
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private String[] names = new String[32];
+
+    // indexed by name id
+    //
+    // aggregate timer totals are doubles, but flattened totals are kept (and written) as whole
+    // nanoseconds, with each added total truncated, the same as trace timer totals
+    private long[] totalNanos = new long[32];
+    private long[] counts = new long[32];
+    private int[] ancestorCounts = new int[32];
+    private boolean[] flattened = new boolean[32];
+
+    // name ids in the order they were first flattened
+    private int[] order = new int[32];
+    private int size;
+
+    // the explicit stack, each timer along with the index of its next child timer to visit
+    private Object[] stackTimers = new Object[16];
+    private int[] stackNameIds = new int[16];
+    private int[] stackNextChildIndexes = new int[16];
+    private int stackSize;
+
+    private TimerFlattener() {}
+
+    // the returned flattener is reset
+    static TimerFlattener get() {
+        TimerFlattener flattener = threadLocal.get();
+        flattener.reset();
+        return flattener;
+    }
+
+    void add(Trace.Timer rootTimer) {
+        push(rootTimer, accumulate(rootTimer.getName(), rootTimer.getTotalNanos(),
+                rootTimer.getCount()));
+        while (stackSize > 0) {
+            int top = stackSize - 1;
+            Trace.Timer timer = (Trace.Timer) stackTimers[top];
+            int childIndex = stackNextChildIndexes[top]++;
+            if (childIndex == timer.getChildTimerCount()) {
+                pop();
+                continue;
+            }
+            Trace.Timer childTimer = timer.getChildTimer(childIndex);
+            if (!isAncestor(childTimer.getName())) {
+                push(childTimer, accumulate(childTimer.getName(), childTimer.getTotalNanos(),
+                        childTimer.getCount()));
+            }
+        }
+    }
+
+    void add(Aggregate.Timer rootTimer) {
+        push(rootTimer, accumulate(rootTimer.getName(), rootTimer.getTotalNanos(),
+                rootTimer.getCount()));
+        while (stackSize > 0) {
+            int top = stackSize - 1;
+            Aggregate.Timer timer = (Aggregate.Timer) stackTimers[top];
+            int childIndex = stackNextChildIndexes[top]++;
+            if (childIndex == timer.getChildTimerCount()) {
+                pop();
+                continue;
+            }
+            Aggregate.Timer childTimer = timer.getChildTimer(childIndex);
+            if (!isAncestor(childTimer.getName())) {
+                push(childTimer, accumulate(childTimer.getName(), childTimer.getTotalNanos(),
+                        childTimer.getCount()));
+            }
+        }
+    }
+
+    // the number of distinct timer names flattened so far
+    int size() {
+        return size;
+    }
+
+    String name(int index) {
+        return names[order[index]];
+    }
+
+    long totalNanos(int index) {
+        return totalNanos[order[index]];
+    }
+
+    long count(int index) {
+        return counts[order[index]];
+    }
+
+    private void reset() {
+        for (int i = 0; i < size; i++) {
+            int nameId = order[i];
+            totalNanos[nameId] = 0;
+            counts[nameId] = 0;
+            flattened[nameId] = false;
+        }
+        size = 0;
+        // the stack is only left non-empty if the prior flattening failed part way through
+        while (stackSize > 0) {
+            pop();
+        }
+        if (nameIds.size() > MAX_NAMES) {
+            nameIds.clear();
+        }
+    }
+
+    private int accumulate(String name, double timerTotalNanos, long timerCount) {
+        int nameId = nameId(name);
+        if (!flattened[nameId]) {
+            flattened[nameId] = true;
+            order[size++] = nameId;
+        }
+        totalNanos[nameId] += timerTotalNanos;
+        counts[nameId] += timerCount;
+        return nameId;
+    }
+
+    private boolean isAncestor(String name) {
+        Integer nameId = nameIds.get(name);
+        return nameId != null && ancestorCounts[nameId] > 0;
+    }
+
+    private void push(Object timer, int nameId) {
+        if (stackSize == stackTimers.length) {
+            int capacity = stackSize << 1;
+            stackTimers = Arrays.copyOf(stackTimers, capacity);
+            stackNameIds = Arrays.copyOf(stackNameIds, capacity);
+            stackNextChildIndexes = Arrays.copyOf(stackNextChildIndexes, capacity);
+        }
+        stackTimers[stackSize] = timer;
+        stackNameIds[stackSize] = nameId;
+        stackNextChildIndexes[stackSize] = 0;
+        stackSize++;
+        ancestorCounts[nameId]++;
+    }
+
+    private void pop() {
+        stackSize--;
+        stackTimers[stackSize] = null;
+        ancestorCounts[stackNameIds[stackSize]]--;
+    }
+
+    private int nameId(String name) {
+        Integer nameId = nameIds.get(name);
+        if (nameId != null) {
+            return nameId;
+        }
+        int id = nameIds.size();
+        if (id == names.length) {
+            int capacity = id << 1;
+            names = Arrays.copyOf(names, capacity);
+            totalNanos = Arrays.copyOf(totalNanos, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            ancestorCounts = Arrays.copyOf(ancestorCounts, capacity);
+            flattened = Arrays.copyOf(flattened, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        names[id] = name;
+        nameIds.put(name, id);
+        return id;
+    }
+}
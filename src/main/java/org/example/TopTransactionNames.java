@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// selects the top N transaction names per transaction type while the aggregates are being visited,
+// using a min-heap of size N per transaction type so that selection is O(total names * log N) and
+// at most N aggregates per transaction type are retained
+//
+// the aggregates that fall outside of the top N are merged into a single "other" bucket per
+// transaction type as soon as they are displaced, and are not retained (the other bucket is bounded
+// by the same limits on queries and profile nodes as the rollups, see AggregateMerger)
+class TopTransactionNames {
+
+    private final int limit;
+    private final RankBy rankBy;
+    private final int otherMaxQueries;
+    private final int otherMaxProfileNodes;
+
+    private final Map<String, Selection> selections = new LinkedHashMap<String, Selection>();
+
+    TopTransactionNames(int limit, RankBy rankBy, int otherMaxQueries, int otherMaxProfileNodes) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.rankBy = rankBy;
+        this.otherMaxQueries = otherMaxQueries;
+        this.otherMaxProfileNodes = otherMaxProfileNodes;
+    }
+
+    void add(String transactionType, String transactionName, Aggregate aggregate,
+            List<String> sharedQueryTexts) {
+        Selection selection = selections.get(transactionType);
+        if (selection == null) {
+            selection = new Selection();
+            selections.put(transactionType, selection);
+        }
+        selection.add(new RankedAggregate(transactionName, aggregate, sharedQueryTexts,
+                rankBy.rank(aggregate)));
+    }
+
+    Iterable<String> getTransactionTypes() {
+        return selections.keySet();
+    }
+
+    // ordered by rank, highest first
+    List<RankedAggregate> getTop(String transactionType) {
+        Selection selection = selections.get(transactionType);
+        if (selection == null) {
+            return Collections.emptyList();
+        }
+        List<RankedAggregate> top = new ArrayList<RankedAggregate>(selection.heap);
+        Collections.sort(top, Collections.reverseOrder(RankComparator.INSTANCE));
+        return top;
+    }
+
+    // returns null if every transaction name made it into the top N
+    OtherAggregate getOther(String transactionType) {
+        Selection selection = selections.get(transactionType);
+        if (selection == null || selection.other.transactionNameCount == 0) {
+            return null;
+        }
+        return selection.other;
+    }
+
+    private class Selection {
+
+        private final PriorityQueue<RankedAggregate> heap =
+                new PriorityQueue<RankedAggregate>(limit, RankComparator.INSTANCE);
+        private final OtherAggregate other =
+                new OtherAggregate(new AggregateMerger(otherMaxQueries, otherMaxProfileNodes));
+
+        private void add(RankedAggregate rankedAggregate) {
+            if (heap.size() < limit) {
+                heap.add(rankedAggregate);
+            } else if (rankedAggregate.rank > heap.peek().rank) {
+                other.merge(heap.poll());
+                heap.add(rankedAggregate);
+            } else {
+                other.merge(rankedAggregate);
+            }
+        }
+    }
+
+    static class RankedAggregate {
+
+        private final String transactionName;
+        private final Aggregate aggregate;
+        private final List<String> sharedQueryTexts;
+        private final double rank;
+
+        private RankedAggregate(String transactionName, Aggregate aggregate,
+                List<String> sharedQueryTexts, double rank) {
+            this.transactionName = transactionName;
+            this.aggregate = aggregate;
+            this.sharedQueryTexts = sharedQueryTexts;
+            this.rank = rank;
+        }
+
+        String transactionName() {
+            return transactionName;
+        }
+
+        Aggregate aggregate() {
+            return aggregate;
+        }
+
+        List<String> sharedQueryTexts() {
+            return sharedQueryTexts;
+        }
+    }
+
+    static class OtherAggregate {
+
+        private final AggregateMerger merger;
+        private int transactionNameCount;
+
+        private OtherAggregate(AggregateMerger merger) {
+            this.merger = merger;
+        }
+
+        private void merge(RankedAggregate rankedAggregate) {
+            transactionNameCount++;
+            merger.merge(rankedAggregate.aggregate, rankedAggregate.sharedQueryTexts);
+        }
+
+        int transactionNameCount() {
+            return transactionNameCount;
+        }
+
+        Aggregate toAggregate() {
+            return merger.toAggregate();
+        }
+
+        // indexed by the shared query text indexes of the queries in toAggregate()
+        List<String> sharedQueryTexts() {
+            return merger.getSharedQueryTexts();
+        }
+    }
+
+    private static class RankComparator implements Comparator<RankedAggregate> {
+
+        private static final RankComparator INSTANCE = new RankComparator();
+
+        @Override
+        public int compare(RankedAggregate left, RankedAggregate right) {
+            return Double.compare(left.rank, right.rank);
+        }
+    }
+
+    enum RankBy {
+
+        TOTAL_DURATION {
+            @Override
+            double rank(Aggregate aggregate) {
+                return aggregate.getTotalDurationNanos();
+            }
+        },
+        TRANSACTION_COUNT {
+            @Override
+            double rank(Aggregate aggregate) {
+                return aggregate.getTransactionCount();
+            }
+        };
+
+        abstract double rank(Aggregate aggregate);
+    }
+}
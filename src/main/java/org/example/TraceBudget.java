@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+// limits on how much of a single trace is written, checked as the trace is written so that the
+// oversized form is never produced, with what was cut recorded in the trace's "truncated" section
+//
+// entries and profile nodes are cut from the end (both are pre-order, so what remains is still a
+// well formed tree), and once the output size limit is reached, no further entries or profile
+// nodes are written, but the header and everything else that is small is
+//
+// a limit of zero means no limit, and one budget is used for one trace only
+class TraceBudget {
+
+    private static final SerializedString TRUNCATED = new SerializedString("truncated");
+    private static final SerializedString MAX_BYTES_EXCEEDED =
+            new SerializedString("maxBytesExceeded");
+    private static final SerializedString ENTRIES = new SerializedString("entries");
+    private static final SerializedString PROFILE_NODES = new SerializedString("profileNodes");
+    private static final SerializedString STRINGS = new SerializedString("strings");
+    private static final SerializedString EXCEPTION_CAUSES =
+            new SerializedString("exceptionCauses");
+
+    private final long maxBytes;
+    private final int maxEntries;
+    private final int maxProfileNodes;
+    private final int maxStringLength;
+    private final int maxExceptionDepth;
+
+    // null if there is no limit on output size
+    private final OutputBuffer outputBuffer;
+
+    private int entryCount;
+    private int profileNodeCount;
+
+    private boolean maxBytesExceeded;
+    private int droppedEntryCount;
+    private int droppedProfileNodeCount;
+    private int truncatedStringCount;
+    private int droppedExceptionCauseCount;
+
+    TraceBudget(long maxBytes, int maxEntries, int maxProfileNodes, int maxStringLength,
+            int maxExceptionDepth, OutputBuffer outputBuffer) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.maxProfileNodes = maxProfileNodes;
+        this.maxStringLength = maxStringLength;
+        this.maxExceptionDepth = maxExceptionDepth;
+        this.outputBuffer = maxBytes > 0 ? outputBuffer : null;
+    }
+
+    boolean allowEntry() {
+        if (maxEntries > 0 && entryCount >= maxEntries || isOverMaxBytes()) {
+            droppedEntryCount++;
+            return false;
+        }
+        entryCount++;
+        return true;
+    }
+
+    // the profile node limit applies across all of the trace's profiles together
+    boolean allowProfileNode() {
+        if (maxProfileNodes > 0 && profileNodeCount >= maxProfileNodes || isOverMaxBytes()) {
+            droppedProfileNodeCount++;
+            return false;
+        }
+        profileNodeCount++;
+        return true;
+    }
+
+    // depth is 0 for the top level exception, 1 for its cause, and so on
+    boolean allowExceptionCause(int depth) {
+        if (maxExceptionDepth > 0 && depth >= maxExceptionDepth) {
+            droppedExceptionCauseCount++;
+            return false;
+        }
+        return true;
+    }
+
+    String truncate(String value) {
+        if (maxStringLength > 0 && value.length() > maxStringLength) {
+            truncatedStringCount++;
+            return value.substring(0, maxStringLength);
+        }
+        return value;
+    }
+
+    boolean isTruncated() {
+        return maxBytesExceeded || droppedEntryCount > 0 || droppedProfileNodeCount > 0
+                || truncatedStringCount > 0 || droppedExceptionCauseCount > 0;
+    }
+
+    void writeTruncated(JsonGenerator jg) throws IOException {
+        if (!isTruncated()) {
+            return;
+        }
+        jg.writeFieldName(TRUNCATED);
+        jg.writeStartObject();
+        if (maxBytesExceeded) {
+            jg.writeFieldName(MAX_BYTES_EXCEEDED);
+            jg.writeBoolean(true);
+        }
+        writeCount(jg, ENTRIES, droppedEntryCount);
+        writeCount(jg, PROFILE_NODES, droppedProfileNodeCount);
+        writeCount(jg, STRINGS, truncatedStringCount);
+        writeCount(jg, EXCEPTION_CAUSES, droppedExceptionCauseCount);
+        jg.writeEndObject();
+    }
+
+    private boolean isOverMaxBytes() {
+        if (maxBytesExceeded) {
+            return true;
+        }
+        if (outputBuffer != null && outputBuffer.bytesWritten() >= maxBytes) {
+            maxBytesExceeded = true;
+        }
+        return maxBytesExceeded;
+    }
+
+    private static void writeCount(JsonGenerator jg, SerializedString name, int count)
+            throws IOException {
+        if (count > 0) {
+            jg.writeFieldName(name);
+            jg.writeNumber(count);
+        }
+    }
+}
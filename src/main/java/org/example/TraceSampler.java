@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// decides from the trace header alone (before any of the trace is visited or serialized) whether
+// a trace is kept
+//
+// the first rule matching the transaction type and name applies (otherwise the default rule):
+// traces at or above the rule's duration threshold are kept, faster ones are kept with the rule's
+// sample rate, and what is kept is then limited per transaction type to the rule's rate by a
+// token bucket, except that traces with an error are always kept (if so configured)
+//
+// sampling is deterministic on the trace id, so the same trace seen by another collector using the
+// same rules gets the same sample decision, but the token bucket and the growing duration of an
+// in-flight trace could still flip the overall decision between its snapshots (which would leave
+// the trace update deltas with nothing to apply to), so the decision made for the first snapshot
+// of an in-flight trace is remembered and reused for its later snapshots, except that a trace
+// that was not kept is kept once it has an error (if so configured)
+//
+// the remembered decisions are bounded (oldest first out) since the completion of a trace may
+// never arrive, in which case a later snapshot of that trace is simply decided again
+class TraceSampler {
+
+    static final String GAUGE_NAME_PREFIX = "example.collector:traceSampler.";
+
+    private static final int MAX_IN_FLIGHT_DECISIONS = 10000;
+
+    private final boolean keepErrors;
+    private final List<RuleState> rules;
+    private final RuleState defaultRule;
+
+    private final AtomicLong keptCount = new AtomicLong();
+    private final AtomicLong keptErrorCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+
+    // guarded by itself
+    private final Map<String, Boolean> inFlightDecisions =
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_IN_FLIGHT_DECISIONS;
+                }
+            };
+
+    TraceSampler(boolean keepErrors, List<Rule> rules, Rule defaultRule) {
+        this.keepErrors = keepErrors;
+        this.rules = new ArrayList<RuleState>();
+        for (Rule rule : rules) {
+            this.rules.add(new RuleState(rule));
+        }
+        this.defaultRule = new RuleState(defaultRule);
+    }
+
+    boolean keep(String traceId, Trace.Header header, boolean partial, long nowNanos) {
+        return keep(traceId, header.getTransactionType(), header.getTransactionName(),
+                header.getDurationNanos(), header.hasError(), partial, nowNanos);
+    }
+
+    boolean keep(String traceId, String transactionType, String transactionName,
+            long durationNanos, boolean error, boolean partial, long nowNanos) {
+        Boolean previous;
+        synchronized (inFlightDecisions) {
+            previous = partial ? inFlightDecisions.get(traceId)
+                    : inFlightDecisions.remove(traceId);
+        }
+        if (previous != null && (previous || !error || !keepErrors)) {
+            return previous;
+        }
+        boolean keep = decide(traceId, transactionType, transactionName, durationNanos, error,
+                nowNanos);
+        if (partial) {
+            synchronized (inFlightDecisions) {
+                inFlightDecisions.put(traceId, keep);
+            }
+        }
+        return keep;
+    }
+
+    private boolean decide(String traceId, String transactionType, String transactionName,
+            long durationNanos, boolean error, long nowNanos) {
+        if (error && keepErrors) {
+            keptErrorCount.incrementAndGet();
+            return true;
+        }
+        RuleState rule = getRule(transactionType, transactionName);
+        if (durationNanos < rule.minDurationNanos
+                && !isSampled(traceId, rule.rule.sampleRate)) {
+            sampledOutCount.incrementAndGet();
+            return false;
+        }
+        if (!rule.tryAcquire(transactionType, nowNanos)) {
+            rateLimitedCount.incrementAndGet();
+            return false;
+        }
+        keptCount.incrementAndGet();
+        return true;
+    }
+
+    // the counts since the last call, as gauge values so that they are exported along with (and
+    // the same way as) the gauges collected by glowroot
+    List<GaugeValue> getCountGaugeValues(long captureTime) {
+        List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>();
+        gaugeValues.add(createGaugeValue("kept", keptCount, captureTime));
+        gaugeValues.add(createGaugeValue("keptError", keptErrorCount, captureTime));
+        gaugeValues.add(createGaugeValue("sampledOut", sampledOutCount, captureTime));
+        gaugeValues.add(createGaugeValue("rateLimited", rateLimitedCount, captureTime));
+        return gaugeValues;
+    }
+
+    private RuleState getRule(String transactionType, String transactionName) {
+        for (RuleState rule : rules) {
+            if (rule.matches(transactionType, transactionName)) {
+                return rule;
+            }
+        }
+        return defaultRule;
+    }
+
+    // maps the trace id onto [0, 1) with 64-bit fnv-1a, so the decision does not depend on how
+    // random the trace id is in any particular part of it
+    static boolean isSampled(String traceId, double sampleRate) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        if (sampleRate <= 0) {
+            return false;
+        }
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < traceId.length(); i++) {
+            hash = (hash ^ traceId.charAt(i)) * 0x100000001B3L;
+        }
+        return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    private static GaugeValue createGaugeValue(String name, AtomicLong count, long captureTime) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_NAME_PREFIX + name)
+                .setCaptureTime(captureTime)
+                .setValue(count.getAndSet(0))
+                .setWeight(1)
+                .build();
+    }
+
+    // transactionType and transactionName (a glob) are null to match any
+    static class Rule {
+
+        private final String transactionType;
+        private final String transactionName;
+        private final long minDurationMillis;
+        private final double sampleRate;
+        // zero for no limit
+        private final double maxPerSecond;
+
+        Rule(String transactionType, String transactionName, long minDurationMillis,
+                double sampleRate, double maxPerSecond) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.minDurationMillis = minDurationMillis;
+            this.sampleRate = sampleRate;
+            this.maxPerSecond = maxPerSecond;
+        }
+    }
+
+    private static class RuleState {
+
+        private final Rule rule;
+        private final Pattern transactionNamePattern;
+        private final long minDurationNanos;
+
+        private final ConcurrentMap<String, TokenBucket> tokenBuckets =
+                new ConcurrentHashMap<String, TokenBucket>();
+
+        private RuleState(Rule rule) {
+            this.rule = rule;
+            transactionNamePattern =
+                    rule.transactionName == null ? null : Globs.toPattern(rule.transactionName);
+            minDurationNanos = rule.minDurationMillis * 1000000;
+        }
+
+        private boolean matches(String transactionType, String transactionName) {
+            return (rule.transactionType == null || rule.transactionType.equals(transactionType))
+                    && (transactionNamePattern == null
+                            || transactionNamePattern.matcher(transactionName).matches());
+        }
+
+        private boolean tryAcquire(String transactionType, long nowNanos) {
+            if (rule.maxPerSecond <= 0) {
+                return true;
+            }
+            TokenBucket tokenBucket = tokenBuckets.get(transactionType);
+            if (tokenBucket == null) {
+                tokenBucket = new TokenBucket(rule.maxPerSecond, nowNanos);
+                TokenBucket existing = tokenBuckets.putIfAbsent(transactionType, tokenBucket);
+                if (existing != null) {
+                    tokenBucket = existing;
+                }
+            }
+            return tokenBucket.tryAcquire(nowNanos);
+        }
+    }
+
+    // refills at maxPerSecond, holding at most one second's worth (and at least one) of tokens
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long lastRefillNanos;
+
+        private TokenBucket(double maxPerSecond, long nowNanos) {
+            tokensPerNano = maxPerSecond / 1000000000.0;
+            capacity = Math.max(maxPerSecond, 1);
+            tokens = capacity;
+            lastRefillNanos = nowNanos;
+        }
+
+        private synchronized boolean tryAcquire(long nowNanos) {
+            long elapsedNanos = nowNanos - lastRefillNanos;
+            if (elapsedNanos > 0) {
+                tokens = Math.min(capacity, tokens + elapsedNanos * tokensPerNano);
+                lastRefillNanos = nowNanos;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// glowroot sends a snapshot of an in-flight trace every time it is updated, each one repeating
+// everything that was already sent, so this remembers per trace id what has been written, and
+// later snapshots of the same trace only write what changed since
+//
+// the map is bounded (oldest written first out) and entries expire, since the completion of a
+// trace may never arrive (e.g. it was dropped by the export queue), in either case the next
+// snapshot of that trace is simply written in full again
+//
+// the sample count of each profile node is remembered too, so that a profile that gained samples
+// is written as just the nodes that gained them, except for profiles with more than
+// maxProfileNodes nodes, which are written in full whenever they gained samples
+//
+// what is remembered is only replaced once written, so two snapshots of the same trace that are
+// serialized before either is written (e.g. queued behind each other in streaming mode, or on two
+// writer threads) are both written against the same earlier snapshot, and since profile deltas are
+// additive, applying both would count samples twice
+//
+// so each delta carries the capture time of the snapshot it was written against, a consumer only
+// applies a delta whose base is the last snapshot of that trace that it applied, and written()
+// follows the same rule, so that later deltas are written against what a consumer has applied
+class TraceUpdates {
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+    private final int maxSize;
+    private final long expirationMillis;
+    private final int maxProfileNodes;
+
+    // in the order last written, so the eldest entries are the first to expire
+    private final Map<String, Emitted> emitted = new LinkedHashMap<String, Emitted>();
+
+    private long evictedCount;
+    private long expiredCount;
+    private long rejectedCount;
+
+    TraceUpdates(int maxSize, long expirationMillis, int maxProfileNodes) {
+        this.maxSize = maxSize;
+        this.expirationMillis = expirationMillis;
+        this.maxProfileNodes = maxProfileNodes;
+    }
+
+    int getMaxProfileNodes() {
+        return maxProfileNodes;
+    }
+
+    // returns null if the snapshot should be written in full
+    synchronized Emitted getPrevious(String traceId, boolean update, long captureTime,
+            long nowMillis) {
+        expire(nowMillis);
+        if (!update) {
+            return null;
+        }
+        Emitted previous = emitted.get(traceId);
+        if (previous == null || previous.captureTime >= captureTime) {
+            // an older snapshot that was overtaken by a newer one on another writer thread
+            return null;
+        }
+        return previous;
+    }
+
+    synchronized void written(String traceId, boolean partial, Emitted written, long nowMillis) {
+        Emitted previous = emitted.remove(traceId);
+        if (previous != null && previous.captureTime > written.captureTime) {
+            emitted.put(traceId, previous);
+            if (written.baseCaptureTime != 0) {
+                rejectedCount++;
+            }
+            return;
+        }
+        if (written.baseCaptureTime != 0
+                && (previous == null || previous.captureTime != written.baseCaptureTime)) {
+            // another snapshot based on the same one was written first (or what it was based on
+            // was evicted or expired in the meantime), so a consumer rejects this delta
+            if (previous != null) {
+                emitted.put(traceId, previous);
+            }
+            rejectedCount++;
+            return;
+        }
+        if (!partial) {
+            // the trace is complete, there will be no more snapshots of it
+            return;
+        }
+        written.writtenMillis = nowMillis;
+        emitted.put(traceId, written);
+        if (emitted.size() > maxSize) {
+            Iterator<Emitted> i = emitted.values().iterator();
+            i.next();
+            i.remove();
+            evictedCount++;
+        }
+    }
+
+    synchronized int size() {
+        return emitted.size();
+    }
+
+    synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    // the number of deltas written against a base that a consumer no longer has
+    synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private void expire(long nowMillis) {
+        Iterator<Emitted> i = emitted.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().writtenMillis > nowMillis - expirationMillis) {
+                break;
+            }
+            i.remove();
+            expiredCount++;
+        }
+    }
+
+    static long getSampleCount(Profile profile) {
+        if (profile == null) {
+            return 0;
+        }
+        // the sample count of each root node already includes all of its descendants
+        long sampleCount = 0;
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            if (node.getDepth() == 0) {
+                sampleCount += node.getSampleCount();
+            }
+        }
+        return sampleCount;
+    }
+
+    // what has been written for one snapshot of a trace
+    static class Emitted {
+
+        private final long captureTime;
+        // the capture time of the snapshot this one was written against, or 0 if it was written in
+        // full
+        private final long baseCaptureTime;
+        private final Trace.Header header;
+        private final int entryCount;
+        // ascending, active entries are the only ones written before that can still change
+        private final int[] activeEntryIndexes;
+        private final long mainThreadProfileSampleCount;
+        private final long auxThreadProfileSampleCount;
+        // null if the profile is absent or has too many nodes to track
+        private final ProfileSampleCounts mainThreadProfileSampleCounts;
+        private final ProfileSampleCounts auxThreadProfileSampleCounts;
+
+        private long writtenMillis;
+
+        Emitted(long captureTime, long baseCaptureTime, Trace.Header header, int entryCount,
+                int[] activeEntryIndexes, long mainThreadProfileSampleCount,
+                long auxThreadProfileSampleCount, ProfileSampleCounts mainThreadProfileSampleCounts,
+                ProfileSampleCounts auxThreadProfileSampleCounts) {
+            this.captureTime = captureTime;
+            this.baseCaptureTime = baseCaptureTime;
+            this.header = header;
+            this.entryCount = entryCount;
+            this.activeEntryIndexes = activeEntryIndexes;
+            this.mainThreadProfileSampleCount = mainThreadProfileSampleCount;
+            this.auxThreadProfileSampleCount = auxThreadProfileSampleCount;
+            this.mainThreadProfileSampleCounts = mainThreadProfileSampleCounts;
+            this.auxThreadProfileSampleCounts = auxThreadProfileSampleCounts;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        Trace.Header header() {
+            return header;
+        }
+
+        int entryCount() {
+            return entryCount;
+        }
+
+        // entries that are new, or were still active when last written, are written again
+        boolean isChanged(int entryIndex) {
+            return entryIndex >= entryCount
+                    || Arrays.binarySearch(activeEntryIndexes, entryIndex) >= 0;
+        }
+
+        long mainThreadProfileSampleCount() {
+            return mainThreadProfileSampleCount;
+        }
+
+        long auxThreadProfileSampleCount() {
+            return auxThreadProfileSampleCount;
+        }
+
+        ProfileSampleCounts mainThreadProfileSampleCounts() {
+            return mainThreadProfileSampleCounts;
+        }
+
+        ProfileSampleCounts auxThreadProfileSampleCounts() {
+            return auxThreadProfileSampleCounts;
+        }
+    }
+
+    // the sample count of each node of a profile, keyed by the hash of the node's path (see
+    // ProfilePaths), in open addressing arrays instead of a map entry and boxed longs per node
+    static class ProfileSampleCounts {
+
+        private long[] pathHashes;
+        private long[] sampleCounts;
+        private int size;
+
+        ProfileSampleCounts(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+            pathHashes = new long[capacity];
+            sampleCounts = new long[capacity];
+        }
+
+        // path hashes are never zero, which marks an empty slot
+        void put(long pathHash, long sampleCount) {
+            int i = indexOf(pathHashes, pathHash);
+            if (pathHashes[i] == 0) {
+                pathHashes[i] = pathHash;
+                if (++size > pathHashes.length >> 1) {
+                    resize();
+                    i = indexOf(pathHashes, pathHash);
+                }
+            }
+            sampleCounts[i] = sampleCount;
+        }
+
+        // returns 0 for a node that was not there before
+        long get(long pathHash) {
+            int i = indexOf(pathHashes, pathHash);
+            return pathHashes[i] == 0 ? 0 : sampleCounts[i];
+        }
+
+        private void resize() {
+            long[] oldPathHashes = pathHashes;
+            long[] oldSampleCounts = sampleCounts;
+            pathHashes = new long[oldPathHashes.length << 1];
+            sampleCounts = new long[oldPathHashes.length << 1];
+            for (int j = 0; j < oldPathHashes.length; j++) {
+                if (oldPathHashes[j] != 0) {
+                    int i = indexOf(pathHashes, oldPathHashes[j]);
+                    pathHashes[i] = oldPathHashes[j];
+                    sampleCounts[i] = oldSampleCounts[j];
+                }
+            }
+        }
+
+        private static int indexOf(long[] pathHashes, long pathHash) {
+            int mask = pathHashes.length - 1;
+            int i = (int) (pathHash ^ (pathHash >>> 32)) & mask;
+            while (pathHashes[i] != 0 && pathHashes[i] != pathHash) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+    }
+
+    // node indexes and string table indexes are not stable from one snapshot of a profile to the
+    // next, so nodes are matched across snapshots by a 64-bit hash of their path instead: their
+    // frame and leaf thread state, and the frames of all of their ancestors
+    //
+    // the strings of each table are hashed once per profile, and each node's path hash is derived
+    // from its parent's, in a single pass over the pre-order nodes
+    static class ProfilePaths {
+
+        private final long[] classNameHashes;
+        private final long[] methodNameHashes;
+        private final long[] fileNameHashes;
+
+        private long[] pathHashes = new long[32];
+
+        ProfilePaths(Profile profile) {
+            classNameHashes = new long[profile.getClassNameCount()];
+            for (int i = 0; i < classNameHashes.length; i++) {
+                classNameHashes[i] = StackTraceDictionary.mix(FNV_OFFSET_BASIS,
+                        profile.getClassName(i));
+            }
+            methodNameHashes = new long[profile.getMethodNameCount()];
+            for (int i = 0; i < methodNameHashes.length; i++) {
+                methodNameHashes[i] = StackTraceDictionary.mix(FNV_OFFSET_BASIS,
+                        profile.getMethodName(i));
+            }
+            fileNameHashes = new long[profile.getFileNameCount()];
+            for (int i = 0; i < fileNameHashes.length; i++) {
+                fileNameHashes[i] = StackTraceDictionary.mix(FNV_OFFSET_BASIS,
+                        profile.getFileName(i));
+            }
+        }
+
+        // must be called for every node, in order
+        long next(Profile.ProfileNode node) {
+            int depth = node.getDepth();
+            if (depth == pathHashes.length) {
+                pathHashes = Arrays.copyOf(pathHashes, depth * 2);
+            }
+            long hash = depth == 0 ? FNV_OFFSET_BASIS : pathHashes[depth - 1];
+            hash = mix(hash, classNameHashes[node.getClassNameIndex()]);
+            hash = mix(hash, methodNameHashes[node.getMethodNameIndex()]);
+            hash = mix(hash, fileNameHashes[node.getFileNameIndex()]);
+            hash = mix(hash, node.getLineNumber());
+            pathHashes[depth] = hash;
+            // the leaf thread state only tells apart leaves of the same path, so it is not part
+            // of the path of the descendants
+            hash = mix(hash, node.getLeafThreadState().ordinal());
+            return hash == 0 ? 1 : hash;
+        }
+
+        private static long mix(long hash, long value) {
+            hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+            return hash ^ (hash >>> 29);
+        }
+    }
+}
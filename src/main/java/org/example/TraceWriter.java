@@ -16,228 +16,526 @@
 package org.example;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.example.CollectorConfig.QueryTextMode;
 
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
-import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-class TraceWriter {
+class TraceWriter implements StreamingTraceWriter {
+
+    private static final SerializedString TRACE_ID = new SerializedString("traceId");
+    private static final SerializedString DELTA = new SerializedString("delta");
+    private static final SerializedString BASE_CAPTURE_TIME =
+            new SerializedString("baseCaptureTime");
+    private static final SerializedString ENTRY_COUNT = new SerializedString("entryCount");
+    private static final SerializedString ENTRIES_OMITTED = new SerializedString("entriesOmitted");
+    private static final SerializedString HEADER = new SerializedString("header");
+    private static final SerializedString ENTRIES = new SerializedString("entries");
+    private static final SerializedString QUERIES = new SerializedString("queries");
+    private static final SerializedString MAIN_THREAD_PROFILE =
+            new SerializedString("mainThreadProfile");
+    private static final SerializedString AUX_THREAD_PROFILE =
+            new SerializedString("auxThreadProfile");
+    private static final SerializedString MAIN_THREAD_PROFILE_DELTA =
+            new SerializedString("mainThreadProfileDelta");
+    private static final SerializedString AUX_THREAD_PROFILE_DELTA =
+            new SerializedString("auxThreadProfileDelta");
+    private static final SerializedString ASYNC = new SerializedString("async");
+    private static final SerializedString START_TIME = new SerializedString("startTime");
+    private static final SerializedString CAPTURE_TIME = new SerializedString("captureTime");
+    private static final SerializedString DURATION_NANOS = new SerializedString("durationNanos");
+    private static final SerializedString TRANSACTION_TYPE =
+            new SerializedString("transactionType");
+    private static final SerializedString TRANSACTION_NAME =
+            new SerializedString("transactionName");
+    private static final SerializedString HEADLINE = new SerializedString("headline");
+    private static final SerializedString USER = new SerializedString("user");
+    private static final SerializedString DETAIL = new SerializedString("detail");
+    private static final SerializedString ERROR = new SerializedString("error");
+    private static final SerializedString MAIN_THREAD_FLATTENED_TIMERS =
+            new SerializedString("mainThreadFlattenedTimers");
+    private static final SerializedString AUX_THREAD_FLATTENED_TIMERS =
+            new SerializedString("auxThreadFlattenedTimers");
+    private static final SerializedString ASYNC_TIMERS = new SerializedString("asyncTimers");
+    private static final SerializedString MAIN_THREAD_STATS =
+            new SerializedString("mainThreadStats");
+    private static final SerializedString AUX_THREAD_STATS = new SerializedString("auxThreadStats");
+    private static final SerializedString CHILD_ENTRIES = new SerializedString("childEntries");
+    private static final SerializedString INDEX = new SerializedString("index");
+    private static final SerializedString DEPTH = new SerializedString("depth");
+    private static final SerializedString START_OFFSET_NANOS =
+            new SerializedString("startOffsetNanos");
+    private static final SerializedString ACTIVE = new SerializedString("active");
+    private static final SerializedString QUERY_MESSAGE = new SerializedString("queryMessage");
+    private static final SerializedString SHARED_QUERY_TEXT_INDEX =
+            new SerializedString("sharedQueryTextIndex");
+    private static final SerializedString PREFIX = new SerializedString("prefix");
+    private static final SerializedString SUFFIX = new SerializedString("suffix");
+    private static final SerializedString MESSAGE = new SerializedString("message");
+    private static final SerializedString LOCATION_STACK_TRACE_ELEMENTS =
+            new SerializedString("locationStackTraceElements");
+    private static final SerializedString EXCEPTION = new SerializedString("exception");
+    private static final SerializedString CLASS_NAME = new SerializedString("className");
+    private static final SerializedString STACK_TRACE_ELEMENTS =
+            new SerializedString("stackTraceElements");
+    private static final SerializedString STACK_HASH = new SerializedString("stackHash");
+    private static final SerializedString FRAMES_IN_COMMON_WITH_ENCLOSING =
+            new SerializedString("framesInCommonWithEnclosing");
+    private static final SerializedString CAUSE = new SerializedString("cause");
 
     private final JsonGenerator jg;
+    private final CommonJsonWriter common;
+    // null unless throwable stacks are written by reference to the stack trace dictionary
+    private final StackTraceDictionary stackTraceDictionary;
+
+    private int streamedEntryPriorDepth = -1;
+    private boolean streamedDeltaEntries;
+
+    // null unless what is written is tracked for later snapshots of the same trace
+    private String traceId;
+    // null unless only what changed since this earlier snapshot of the same trace is written
+    private TraceUpdates.Emitted previous;
+    private int maxProfileNodes;
+    // null for no limits on how much of the trace is written
+    private TraceBudget budget;
+
+    private int entryCount;
+    private int[] activeEntryIndexes = new int[8];
+    private int activeEntryCount;
+    private long mainThreadProfileSampleCount;
+    private long auxThreadProfileSampleCount;
+    private TraceUpdates.ProfileSampleCounts mainThreadProfileSampleCounts;
+    private TraceUpdates.ProfileSampleCounts auxThreadProfileSampleCounts;
 
-    TraceWriter(JsonGenerator jg) {
+    TraceWriter(JsonGenerator jg, StackFrameCache stackFrameCache,
+            StackTraceDictionary stackTraceDictionary) {
         this.jg = jg;
+        common = new CommonJsonWriter(jg, stackFrameCache);
+        this.stackTraceDictionary = stackTraceDictionary;
+    }
+
+    // must be called before write() or writeStreamingStart(), previous is null if the trace is to
+    // be written in full
+    //
+    // a delta has the same shape as a full trace, except that the header only has the fields that
+    // changed, entries are a flat list each with its index and depth (an entry that was active
+    // before is written again under the same index), and profiles are only written if they gained
+    // samples, as mainThreadProfileDelta / auxThreadProfileDelta with just the nodes that gained
+    // samples and how many they gained (or in full as mainThreadProfile / auxThreadProfile, if the
+    // profile has more than maxProfileNodes nodes and so the earlier node sample counts are not
+    // known)
+    //
+    // every delta also has the baseCaptureTime of the snapshot it was written against, and only
+    // applies on top of that snapshot (see TraceUpdates)
+    void trackUpdates(String traceId, TraceUpdates.Emitted previous, int maxProfileNodes) {
+        this.traceId = traceId;
+        this.previous = previous;
+        this.maxProfileNodes = maxProfileNodes;
+    }
+
+    // must be called before write() or writeStreamingStart()
+    void applyBudget(TraceBudget budget) {
+        this.budget = budget;
+    }
+
+    void setQueryTextEncoding(QueryTextMode queryTextMode,
+            QueryTextDictionary queryTextDictionary) {
+        common.setQueryTextEncoding(queryTextMode, queryTextDictionary);
+    }
+
+    void setProfileEncoding(boolean foldProfiles, double pruneBelowFraction) {
+        common.setProfileEncoding(foldProfiles, pruneBelowFraction);
+    }
+
+    // what has been written, for comparing the next snapshot of the same trace against
+    TraceUpdates.Emitted emitted(long captureTime, Trace.Header header) {
+        return new TraceUpdates.Emitted(captureTime,
+                previous == null ? 0 : previous.captureTime(), header, entryCount,
+                Arrays.copyOf(activeEntryIndexes, activeEntryCount), mainThreadProfileSampleCount,
+                auxThreadProfileSampleCount, mainThreadProfileSampleCounts,
+                auxThreadProfileSampleCounts);
     }
 
     void write(Trace.Header header, List<Trace.Entry> entries, List<Aggregate.Query> queries,
             List<String> sharedQueryTexts, Profile mainThreadProfile, Profile auxThreadProfile)
             throws IOException {
         jg.writeStartObject();
-        jg.writeFieldName("header");
+        writeTraceId();
+        jg.writeFieldName(HEADER);
         writeHeader(header);
-        if (!entries.isEmpty()) {
-            jg.writeFieldName("entries");
+        if (common.isQueryTextIndexed() && (!entries.isEmpty() || !queries.isEmpty())) {
+            common.writeSharedQueryTexts(sharedQueryTexts, budget);
+        }
+        if (previous != null) {
+            writeDeltaEntries(entries, sharedQueryTexts);
+        } else if (!entries.isEmpty()) {
+            jg.writeFieldName(ENTRIES);
             writeEntries(entries, sharedQueryTexts);
         }
-        if (!queries.isEmpty()) {
-            jg.writeFieldName("queries");
-            writeQueries(queries, sharedQueryTexts);
+        writeRemaining(queries, sharedQueryTexts, mainThreadProfile, auxThreadProfile);
+        if (budget != null) {
+            budget.writeTruncated(jg);
+        }
+        jg.writeEndObject();
+    }
+
+    // for a trace with too many entries to be worth visiting, see ExampleCollector.collectTrace()
+    void writeHeaderOnly(Trace.Header header) throws IOException {
+        jg.writeStartObject();
+        writeTraceId();
+        jg.writeFieldName(HEADER);
+        writeHeader(header);
+        common.writeNumberField(ENTRIES_OMITTED, header.getEntryCount());
+        jg.writeEndObject();
+    }
+
+    // streaming counterpart of write(), used while the trace is still being visited so that entries
+    // are written as they arrive instead of being collected first
+    //
+    // glowroot visits the shared query texts and the header after the entries, so query entries are
+    // written with their shared query text index, and the shared query texts, header, queries and
+    // profiles all follow the entries in the same document
+    void writeStreamingStart() throws IOException {
+        jg.writeStartObject();
+        writeTraceId();
+        streamedEntryPriorDepth = -1;
+        streamedDeltaEntries = false;
+    }
+
+    @Override
+    public void writeStreamingEntry(Trace.Entry entry) throws IOException {
+        if (!allowEntry(entry)) {
+            return;
+        }
+        if (previous != null) {
+            if (previous.isChanged(entryCount)) {
+                if (!streamedDeltaEntries) {
+                    common.writeArrayFieldStart(ENTRIES);
+                    streamedDeltaEntries = true;
+                }
+                writeDeltaEntry(entry, null);
+            } else {
+                recordEntry(entry);
+            }
+            return;
         }
-        if (mainThreadProfile != null) {
-            jg.writeFieldName("mainThreadProfile");
-            writeProfile(mainThreadProfile);
+        if (streamedEntryPriorDepth == -1) {
+            common.writeArrayFieldStart(ENTRIES);
+        }
+        streamedEntryPriorDepth = writeEntry(entry, streamedEntryPriorDepth, null);
+    }
+
+    @Override
+    public void writeStreamingEnd(Trace.Header header, List<Aggregate.Query> queries,
+            List<String> sharedQueryTexts, Profile mainThreadProfile, Profile auxThreadProfile)
+            throws IOException {
+        if (streamedDeltaEntries) {
+            jg.writeEndArray();
+        } else if (streamedEntryPriorDepth != -1) {
+            writeEntriesEnd(streamedEntryPriorDepth);
         }
-        if (auxThreadProfile != null) {
-            jg.writeFieldName("auxThreadProfile");
-            writeProfile(auxThreadProfile);
+        if (streamedDeltaEntries || streamedEntryPriorDepth != -1
+                || common.isQueryTextIndexed() && !queries.isEmpty()) {
+            common.writeSharedQueryTexts(sharedQueryTexts, budget);
+        }
+        if (previous != null) {
+            common.writeNumberField(ENTRY_COUNT, entryCount);
+        }
+        jg.writeFieldName(HEADER);
+        writeHeader(header);
+        writeRemaining(queries, sharedQueryTexts, mainThreadProfile, auxThreadProfile);
+        if (budget != null) {
+            budget.writeTruncated(jg);
         }
         jg.writeEndObject();
     }
 
+    private void writeTraceId() throws IOException {
+        if (traceId != null) {
+            common.writeStringField(TRACE_ID, traceId);
+        }
+        if (previous != null) {
+            common.writeBooleanField(DELTA, true);
+            common.writeNumberField(BASE_CAPTURE_TIME, previous.captureTime());
+        }
+    }
+
+    private void writeRemaining(List<Aggregate.Query> queries, List<String> sharedQueryTexts,
+            Profile mainThreadProfile, Profile auxThreadProfile) throws IOException {
+        if (!queries.isEmpty()) {
+            jg.writeFieldName(QUERIES);
+            common.writeQueries(queries, sharedQueryTexts, budget);
+        }
+        if (traceId == null) {
+            if (mainThreadProfile != null) {
+                jg.writeFieldName(MAIN_THREAD_PROFILE);
+                common.writeProfile(mainThreadProfile, budget);
+            }
+            if (auxThreadProfile != null) {
+                jg.writeFieldName(AUX_THREAD_PROFILE);
+                common.writeProfile(auxThreadProfile, budget);
+            }
+            return;
+        }
+        mainThreadProfileSampleCount = TraceUpdates.getSampleCount(mainThreadProfile);
+        auxThreadProfileSampleCount = TraceUpdates.getSampleCount(auxThreadProfile);
+        if (previous == null) {
+            mainThreadProfileSampleCounts = writeTrackedProfile(MAIN_THREAD_PROFILE,
+                    MAIN_THREAD_PROFILE_DELTA, mainThreadProfile, null);
+            auxThreadProfileSampleCounts = writeTrackedProfile(AUX_THREAD_PROFILE,
+                    AUX_THREAD_PROFILE_DELTA, auxThreadProfile, null);
+            return;
+        }
+        if (mainThreadProfileSampleCount == previous.mainThreadProfileSampleCount()) {
+            // unchanged, so the node sample counts written before still stand
+            mainThreadProfileSampleCounts = previous.mainThreadProfileSampleCounts();
+        } else {
+            mainThreadProfileSampleCounts = writeTrackedProfile(MAIN_THREAD_PROFILE,
+                    MAIN_THREAD_PROFILE_DELTA, mainThreadProfile,
+                    previous.mainThreadProfileSampleCounts());
+        }
+        if (auxThreadProfileSampleCount == previous.auxThreadProfileSampleCount()) {
+            auxThreadProfileSampleCounts = previous.auxThreadProfileSampleCounts();
+        } else {
+            auxThreadProfileSampleCounts = writeTrackedProfile(AUX_THREAD_PROFILE,
+                    AUX_THREAD_PROFILE_DELTA, auxThreadProfile,
+                    previous.auxThreadProfileSampleCounts());
+        }
+    }
+
+    // previousSampleCounts is null if the profile is written in full, returns the node sample
+    // counts to write the next snapshot against, or null if the profile has too many nodes
+    private TraceUpdates.ProfileSampleCounts writeTrackedProfile(SerializedString name,
+            SerializedString deltaName, Profile profile,
+            TraceUpdates.ProfileSampleCounts previousSampleCounts) throws IOException {
+        if (profile == null) {
+            return null;
+        }
+        TraceUpdates.ProfileSampleCounts sampleCounts = null;
+        if (profile.getNodeCount() <= maxProfileNodes) {
+            sampleCounts = new TraceUpdates.ProfileSampleCounts(profile.getNodeCount());
+        }
+        jg.writeFieldName(previousSampleCounts == null ? name : deltaName);
+        common.writeProfile(profile, budget, previousSampleCounts, sampleCounts);
+        return sampleCounts;
+    }
+
+    // when writing a delta, only the fields that differ from the previously written header are
+    // written (the capture time and duration of an in-flight trace always differ)
     private void writeHeader(Trace.Header header) throws IOException {
+        Trace.Header prior = previous == null ? null : previous.header();
         jg.writeStartObject();
-        if (header.getAsync()) {
-            jg.writeBooleanField("async", true);
+        if (header.getAsync() && (prior == null || !prior.getAsync())) {
+            common.writeBooleanField(ASYNC, true);
+        }
+        if (prior == null || header.getStartTime() != prior.getStartTime()) {
+            common.writeNumberField(START_TIME, header.getStartTime());
+        }
+        common.writeNumberField(CAPTURE_TIME, header.getCaptureTime());
+        common.writeNumberField(DURATION_NANOS, header.getDurationNanos());
+        if (prior == null || !header.getTransactionType().equals(prior.getTransactionType())) {
+            common.writeStringField(TRANSACTION_TYPE, header.getTransactionType());
+        }
+        if (prior == null || !header.getTransactionName().equals(prior.getTransactionName())) {
+            common.writeStringField(TRANSACTION_NAME, header.getTransactionName());
+        }
+        if (prior == null || !header.getHeadline().equals(prior.getHeadline())) {
+            common.writeStringField(HEADLINE, header.getHeadline());
+        }
+        if (prior == null || !header.getUser().equals(prior.getUser())) {
+            common.writeStringField(USER, header.getUser());
         }
-        jg.writeNumberField("startTime", header.getStartTime());
-        jg.writeNumberField("captureTime", header.getCaptureTime());
-        jg.writeNumberField("durationNanos", header.getDurationNanos());
-        jg.writeStringField("transactionType", header.getTransactionType());
-        jg.writeStringField("transactionName", header.getTransactionName());
-        jg.writeStringField("headline", header.getHeadline());
-        jg.writeStringField("user", header.getUser());
 
         List<Trace.DetailEntry> detailEntries = header.getDetailEntryList();
-        if (!detailEntries.isEmpty()) {
-            jg.writeFieldName("detail");
+        if (!detailEntries.isEmpty()
+                && (prior == null || !detailEntries.equals(prior.getDetailEntryList()))) {
+            jg.writeFieldName(DETAIL);
             writeDetailEntries(detailEntries);
         }
-        if (header.hasError()) {
-            jg.writeFieldName("error");
+        if (header.hasError() && (prior == null || !header.getError().equals(prior.getError()))) {
+            jg.writeFieldName(ERROR);
             writeError(header.getError());
         }
-        if (header.hasMainThreadRootTimer()) {
-            jg.writeArrayFieldStart("mainThreadFlattenedTimers");
-            writeFlattenedTimers(header.getMainThreadRootTimer());
-            jg.writeEndArray();
+        if (header.hasMainThreadRootTimer() && (prior == null
+                || !header.getMainThreadRootTimer().equals(prior.getMainThreadRootTimer()))) {
+            jg.writeFieldName(MAIN_THREAD_FLATTENED_TIMERS);
+            common.writeFlattenedTimers(header.getMainThreadRootTimer());
         }
-        if (header.hasAuxThreadRootTimer()) {
-            jg.writeArrayFieldStart("auxThreadFlattenedTimers");
-            writeFlattenedTimers(header.getAuxThreadRootTimer());
-            jg.writeEndArray();
+        if (header.hasAuxThreadRootTimer() && (prior == null
+                || !header.getAuxThreadRootTimer().equals(prior.getAuxThreadRootTimer()))) {
+            jg.writeFieldName(AUX_THREAD_FLATTENED_TIMERS);
+            common.writeFlattenedTimers(header.getAuxThreadRootTimer());
         }
-        if (header.getAsyncTimerCount() > 0) {
-            jg.writeArrayFieldStart("asyncTimers");
-            writeAsyncTimers(header.getAsyncTimerList());
-            jg.writeEndArray();
+        if (header.getAsyncTimerCount() > 0 && (prior == null
+                || !header.getAsyncTimerList().equals(prior.getAsyncTimerList()))) {
+            jg.writeFieldName(ASYNC_TIMERS);
+            common.writeTraceTimers(header.getAsyncTimerList());
         }
-        if (header.hasMainThreadStats()) {
-            jg.writeFieldName("mainThreadStats");
-            writeThreadStats(header.getMainThreadStats());
+        if (header.hasMainThreadStats() && (prior == null
+                || !header.getMainThreadStats().equals(prior.getMainThreadStats()))) {
+            jg.writeFieldName(MAIN_THREAD_STATS);
+            common.writeThreadStats(header.getMainThreadStats());
         }
-        if (header.hasAuxThreadStats()) {
-            jg.writeFieldName("auxThreadStats");
-            writeThreadStats(header.getAuxThreadStats());
+        if (header.hasAuxThreadStats() && (prior == null
+                || !header.getAuxThreadStats().equals(prior.getAuxThreadStats()))) {
+            jg.writeFieldName(AUX_THREAD_STATS);
+            common.writeThreadStats(header.getAuxThreadStats());
         }
         jg.writeEndObject();
     }
 
-    private void writeEntries(List<Trace.Entry> entries, List<String> sharedQueryTexts)
+    private void writeDeltaEntries(List<Trace.Entry> entries, List<String> sharedQueryTexts)
             throws IOException {
-        jg.writeStartArray();
-        for (int i = 0; i < entries.size(); i++) {
-            Trace.Entry entry = entries.get(i);
-            int depth = entry.getDepth();
-            jg.writeStartObject();
-            writeEntry(entry, sharedQueryTexts);
-            int nextDepth = i + 1 < entries.size() ? entries.get(i + 1).getDepth() : 0;
-            if (nextDepth > depth) {
-                jg.writeArrayFieldStart("childEntries");
-            } else if (nextDepth < depth) {
-                jg.writeEndObject();
-                for (int j = depth; j > nextDepth; j--) {
-                    jg.writeEndArray();
-                    jg.writeEndObject();
-                }
-            } else {
-                jg.writeEndObject();
+        boolean started = false;
+        for (Trace.Entry entry : entries) {
+            if (!allowEntry(entry)) {
+                continue;
+            }
+            if (!previous.isChanged(entryCount)) {
+                recordEntry(entry);
+                continue;
             }
+            if (!started) {
+                common.writeArrayFieldStart(ENTRIES);
+                started = true;
+            }
+            writeDeltaEntry(entry, sharedQueryTexts);
         }
-        jg.writeEndArray();
+        if (started) {
+            jg.writeEndArray();
+        }
+        common.writeNumberField(ENTRY_COUNT, entryCount);
     }
 
-    private void writeQueries(List<Aggregate.Query> queries, List<String> sharedQueryTexts)
+    // the nesting of a delta entry cannot be expressed without its ancestors, which may not be part
+    // of the delta, so the index and depth are written instead
+    private void writeDeltaEntry(Trace.Entry entry, List<String> sharedQueryTexts)
             throws IOException {
-        jg.writeStartArray();
-        for (Aggregate.Query query : queries) {
-            writeQuery(query, sharedQueryTexts);
+        jg.writeStartObject();
+        common.writeNumberField(INDEX, entryCount);
+        common.writeNumberField(DEPTH, entry.getDepth());
+        writeEntry(entry, sharedQueryTexts);
+        jg.writeEndObject();
+        recordEntry(entry);
+    }
+
+    // entries cut by the budget are still counted, so that entry indexes stay those of glowroot
+    private boolean allowEntry(Trace.Entry entry) {
+        if (budget == null || budget.allowEntry()) {
+            return true;
         }
-        jg.writeEndArray();
+        recordEntry(entry);
+        return false;
     }
 
-    private void writeProfile(Profile profile) throws IOException {
+    private void recordEntry(Trace.Entry entry) {
+        if (entry.getActive()) {
+            if (activeEntryCount == activeEntryIndexes.length) {
+                activeEntryIndexes = Arrays.copyOf(activeEntryIndexes, activeEntryCount * 2);
+            }
+            activeEntryIndexes[activeEntryCount++] = entryCount;
+        }
+        entryCount++;
+    }
+
+    private void writeEntries(List<Trace.Entry> entries, List<String> sharedQueryTexts)
+            throws IOException {
         jg.writeStartArray();
-        // node ordering is pre-order depth-first
-        // and there can be multiple "root" nodes (with depth=0)
         int priorDepth = -1;
-        for (ProfileNode node : profile.getNodeList()) {
-            int currDepth = node.getDepth();
-            if (priorDepth != -1) {
-                if (currDepth > priorDepth) {
-                    jg.writeArrayFieldStart("childNodes");
-                } else if (currDepth < priorDepth) {
-                    for (int i = priorDepth; i > currDepth; i--) {
-                        jg.writeEndObject();
-                        jg.writeEndArray();
-                    }
-                    jg.writeEndObject();
-                } else {
+        for (Trace.Entry entry : entries) {
+            if (allowEntry(entry)) {
+                priorDepth = writeEntry(entry, priorDepth, sharedQueryTexts);
+            }
+        }
+        writeEntriesEnd(priorDepth);
+    }
+
+    // entry ordering is pre-order depth-first, so each entry's object is left open until the next
+    // entry's depth shows whether it needs a childEntries array or should be closed
+    private int writeEntry(Trace.Entry entry, int priorDepth, List<String> sharedQueryTexts)
+            throws IOException {
+        int depth = entry.getDepth();
+        if (priorDepth != -1) {
+            if (depth > priorDepth) {
+                common.writeArrayFieldStart(CHILD_ENTRIES);
+            } else if (depth < priorDepth) {
+                jg.writeEndObject();
+                for (int i = priorDepth; i > depth; i--) {
+                    jg.writeEndArray();
                     jg.writeEndObject();
                 }
+            } else {
+                jg.writeEndObject();
             }
-            jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", getStackTraceElement(node, profile));
-            Profile.LeafThreadState leafThreadState = node.getLeafThreadState();
-            if (leafThreadState != Profile.LeafThreadState.NONE) {
-                jg.writeStringField("leafThreadState", leafThreadState.name());
-            }
-            jg.writeNumberField("sampleCount", node.getSampleCount());
-            priorDepth = currDepth;
         }
+        jg.writeStartObject();
+        writeEntry(entry, sharedQueryTexts);
+        recordEntry(entry);
+        return depth;
+    }
+
+    private void writeEntriesEnd(int priorDepth) throws IOException {
         if (priorDepth != -1) {
             jg.writeEndObject();
+            for (int i = priorDepth; i > 0; i--) {
+                jg.writeEndArray();
+                jg.writeEndObject();
+            }
         }
         jg.writeEndArray();
     }
 
     private void writeEntry(Trace.Entry entry, List<String> sharedQueryTexts) throws IOException {
-        jg.writeNumberField("startOffsetNanos", entry.getStartOffsetNanos());
-        jg.writeNumberField("durationNanos", entry.getDurationNanos());
+        common.writeNumberField(START_OFFSET_NANOS, entry.getStartOffsetNanos());
+        common.writeNumberField(DURATION_NANOS, entry.getDurationNanos());
         if (entry.getActive()) {
-            jg.writeBooleanField("active", true);
+            common.writeBooleanField(ACTIVE, true);
         }
         if (entry.hasQueryEntryMessage()) {
-            jg.writeObjectFieldStart("queryMessage");
+            common.writeObjectFieldStart(QUERY_MESSAGE);
             Trace.QueryEntryMessage queryMessage = entry.getQueryEntryMessage();
-            jg.writeStringField("queryText",
-                    sharedQueryTexts.get(queryMessage.getSharedQueryTextIndex()));
-            jg.writeStringField("prefix", queryMessage.getPrefix());
-            jg.writeStringField("suffix", queryMessage.getSuffix());
+            if (sharedQueryTexts == null) {
+                // streaming, shared query texts have not been visited yet
+                common.writeNumberField(SHARED_QUERY_TEXT_INDEX,
+                        queryMessage.getSharedQueryTextIndex());
+            } else {
+                common.writeQueryText(sharedQueryTexts, queryMessage.getSharedQueryTextIndex(),
+                        budget);
+            }
+            common.writeStringField(PREFIX, queryMessage.getPrefix());
+            common.writeStringField(SUFFIX, queryMessage.getSuffix());
             jg.writeEndObject();
         } else {
-            jg.writeStringField("message", entry.getMessage());
+            common.writeStringField(MESSAGE, entry.getMessage());
         }
         List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
         if (!detailEntries.isEmpty()) {
-            jg.writeFieldName("detail");
+            jg.writeFieldName(DETAIL);
             writeDetailEntries(detailEntries);
         }
         List<Proto.StackTraceElement> locationStackTraceElements =
                 entry.getLocationStackTraceElementList();
         if (!locationStackTraceElements.isEmpty()) {
-            jg.writeArrayFieldStart("locationStackTraceElements");
+            common.writeArrayFieldStart(LOCATION_STACK_TRACE_ELEMENTS);
             for (Proto.StackTraceElement stackTraceElement : locationStackTraceElements) {
-                writeStackTraceElement(stackTraceElement);
+                common.writeStackTraceElement(stackTraceElement);
             }
             jg.writeEndArray();
         }
         if (entry.hasError()) {
-            jg.writeFieldName("error");
+            jg.writeFieldName(ERROR);
             writeError(entry.getError());
         }
     }
 
-    private void writeQuery(Aggregate.Query query, List<String> sharedQueryTexts)
-            throws IOException {
-        jg.writeStartObject();
-        jg.writeStringField("type", query.getType());
-        jg.writeStringField("queryText", sharedQueryTexts.get(query.getSharedQueryTextIndex()));
-        jg.writeNumberField("totalDurationNanos", query.getTotalDurationNanos());
-        jg.writeNumberField("executionCount", query.getExecutionCount());
-        if (query.hasTotalRows()) {
-            jg.writeNumberField("totalRows", query.getTotalRows().getValue());
-        }
-        jg.writeBooleanField("active", query.getActive());
-        jg.writeEndObject();
-    }
-
-    private String getStackTraceElement(ProfileNode node, Profile profile) {
-        String className = profile.getClassName(node.getClassNameIndex());
-        String methodName = profile.getMethodName(node.getMethodNameIndex());
-        String fileName = profile.getFileName(node.getFileNameIndex());
-        return new StackTraceElement(className, methodName, fileName, node.getLineNumber())
-                .toString();
-    }
-
     private void writeDetailEntries(List<Trace.DetailEntry> detailEntries) throws IOException {
         jg.writeStartObject();
         for (Trace.DetailEntry detailEntry : detailEntries) {
@@ -264,7 +562,8 @@ class TraceWriter {
     private void writeValue(Trace.DetailValue value) throws IOException {
         switch (value.getValCase()) {
             case STRING:
-                jg.writeString(value.getString());
+                jg.writeString(budget == null ? value.getString()
+                        : budget.truncate(value.getString()));
                 break;
             case DOUBLE:
                 jg.writeNumber(value.getDouble());
@@ -282,104 +581,38 @@ class TraceWriter {
 
     private void writeError(Trace.Error error) throws IOException {
         jg.writeStartObject();
-        jg.writeStringField("message", error.getMessage());
+        common.writeStringField(MESSAGE, error.getMessage());
         if (error.hasException()) {
-            jg.writeFieldName("exception");
-            writeThrowable(error.getException(), false);
+            jg.writeFieldName(EXCEPTION);
+            writeThrowable(error.getException(), 0);
         }
         jg.writeEndObject();
     }
 
-    private void writeThrowable(Proto.Throwable throwable, boolean hasEnclosing)
-            throws IOException {
+    // depth is 0 for the top level exception, 1 for its cause, and so on
+    private void writeThrowable(Proto.Throwable throwable, int depth) throws IOException {
+        boolean hasEnclosing = depth > 0;
         jg.writeStartObject();
-        jg.writeStringField("className", throwable.getClassName());
-        jg.writeStringField("message", throwable.getMessage());
-        jg.writeArrayFieldStart("stackTraceElements");
-        for (Proto.StackTraceElement stackTraceElement : throwable.getStackTraceElementList()) {
-            writeStackTraceElement(stackTraceElement);
+        common.writeStringField(CLASS_NAME, throwable.getClassName());
+        common.writeStringField(MESSAGE, throwable.getMessage());
+        if (stackTraceDictionary == null) {
+            common.writeArrayFieldStart(STACK_TRACE_ELEMENTS);
+            for (Proto.StackTraceElement stackTraceElement : throwable.getStackTraceElementList()) {
+                common.writeStackTraceElement(stackTraceElement);
+            }
+            jg.writeEndArray();
+        } else {
+            common.writeStringField(STACK_HASH,
+                    stackTraceDictionary.reference(throwable, hasEnclosing));
         }
-        jg.writeEndArray();
         if (hasEnclosing) {
-            jg.writeNumberField("framesInCommonWithEnclosing",
+            common.writeNumberField(FRAMES_IN_COMMON_WITH_ENCLOSING,
                     throwable.getFramesInCommonWithEnclosing());
         }
-        if (throwable.hasCause()) {
-            jg.writeFieldName("cause");
-            writeThrowable(throwable.getCause(), true);
+        if (throwable.hasCause() && (budget == null || budget.allowExceptionCause(depth + 1))) {
+            jg.writeFieldName(CAUSE);
+            writeThrowable(throwable.getCause(), depth + 1);
         }
         jg.writeEndObject();
     }
-
-    private void writeStackTraceElement(Proto.StackTraceElement stackTraceElement)
-            throws IOException {
-        jg.writeString(new StackTraceElement(stackTraceElement.getClassName(),
-                stackTraceElement.getMethodName(), stackTraceElement.getFileName(),
-                stackTraceElement.getLineNumber()).toString());
-    }
-
-    private void writeFlattenedTimers(Trace.Timer rootTimer) throws IOException {
-        Map<String, FlattenedTimer> flattenedTimers = new HashMap<String, FlattenedTimer>();
-        flattenTimer(rootTimer, flattenedTimers, new HashSet<String>());
-        writeFlattenedTimers(flattenedTimers);
-    }
-
-    // need to keep track of parent timer names since the same timer can be nested underneath itself
-    // when separated by another timer, e.g. abc > xyz > abc
-    private void flattenTimer(Trace.Timer timer, Map<String, FlattenedTimer> flattenedTimers,
-            Set<String> parentTimerNames) {
-        FlattenedTimer flattenedTimer = flattenedTimers.get(timer.getName());
-        if (flattenedTimer == null) {
-            flattenedTimer = new FlattenedTimer();
-            flattenedTimers.put(timer.getName(), flattenedTimer);
-        }
-        flattenedTimer.totalNanos += timer.getTotalNanos();
-        flattenedTimer.count += timer.getCount();
-        List<Trace.Timer> childTimers = timer.getChildTimerList();
-        if (!childTimers.isEmpty()) {
-            parentTimerNames.add(timer.getName());
-            for (Trace.Timer childTimer : childTimers) {
-                if (!parentTimerNames.contains(childTimer.getName())) {
-                    flattenTimer(childTimer, flattenedTimers, parentTimerNames);
-                }
-            }
-            parentTimerNames.remove(timer.getName());
-        }
-    }
-
-    private void writeFlattenedTimers(Map<String, FlattenedTimer> flattenedTimers)
-            throws IOException {
-        for (Map.Entry<String, FlattenedTimer> entry : flattenedTimers.entrySet()) {
-            FlattenedTimer flattenedTimer = entry.getValue();
-            jg.writeStartObject();
-            jg.writeStringField("name", entry.getKey());
-            jg.writeNumberField("totalNanos", flattenedTimer.totalNanos);
-            jg.writeNumberField("count", flattenedTimer.count);
-            jg.writeEndObject();
-        }
-    }
-
-    private void writeAsyncTimers(List<Trace.Timer> asyncTimers) throws IOException {
-        for (Trace.Timer asyncTimer : asyncTimers) {
-            jg.writeStartObject();
-            jg.writeStringField("name", asyncTimer.getName());
-            jg.writeNumberField("totalNanos", asyncTimer.getTotalNanos());
-            jg.writeNumberField("count", asyncTimer.getCount());
-            jg.writeEndObject();
-        }
-    }
-
-    private void writeThreadStats(Trace.ThreadStats threadStats) throws IOException {
-        jg.writeStartObject();
-        jg.writeNumberField("cpuNanos", threadStats.getCpuNanos());
-        jg.writeNumberField("blockedNanos", threadStats.getBlockedNanos());
-        jg.writeNumberField("waitedNanos", threadStats.getWaitedNanos());
-        jg.writeNumberField("allocatedBytes", threadStats.getAllocatedBytes());
-        jg.writeEndObject();
-    }
-
-    private static class FlattenedTimer {
-        private long totalNanos;
-        private long count;
-    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.com.google.common.collect.ImmutableList;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AggregateRollupTest {
+
+    @Test
+    public void shouldEmitEachTierWhenItCloses() {
+        AggregateRollup rollup =
+                new AggregateRollup(new long[] {300000, 60000}, 100, 500, 10000);
+
+        assertTrue(add(rollup, 30000, 1, "select 1").isEmpty());
+        assertTrue(add(rollup, 60000, 2, "select 2").isEmpty());
+        List<AggregateRollup.RolledUpAggregate> closed = add(rollup, 90000, 4, "select 1");
+
+        assertEquals(1, closed.size());
+        assertEquals(60000, closed.get(0).captureTime());
+        CollectedAggregate collectedAggregate = closed.get(0).collectedAggregate();
+        assertEquals(60000, collectedAggregate.rollupIntervalMillis());
+        assertEquals(3, collectedAggregate.aggregate().getTransactionCount());
+        assertEquals(2, collectedAggregate.aggregate().getQueryCount());
+        assertEquals(ImmutableList.of("select 1", "select 2"),
+                collectedAggregate.sharedQueryTexts());
+
+        closed = add(rollup, 310000, 8, "select 1");
+        assertEquals(2, closed.size());
+        assertEquals(120000, closed.get(0).captureTime());
+        assertEquals(4, closed.get(0).collectedAggregate().aggregate().getTransactionCount());
+        assertEquals(300000, closed.get(1).captureTime());
+        assertEquals(7, closed.get(1).collectedAggregate().aggregate().getTransactionCount());
+
+        closed = rollup.flush();
+        assertEquals(2, closed.size());
+        assertEquals(8, closed.get(0).collectedAggregate().aggregate().getTransactionCount());
+        assertEquals(8, closed.get(1).collectedAggregate().aggregate().getTransactionCount());
+    }
+
+    @Test
+    public void shouldNotMergeLateAggregateIntoLaterWindow() {
+        AggregateRollup rollup =
+                new AggregateRollup(new long[] {300000, 60000}, 100, 500, 10000);
+
+        add(rollup, 30000, 1, "select 1");
+        assertEquals(1, add(rollup, 90000, 2, "select 1").size());
+        // the 1 minute window ending at 60000 has been written already
+        assertTrue(add(rollup, 50000, 4, "select 1").isEmpty());
+
+        assertEquals(1, rollup.getLateCount());
+        List<AggregateRollup.RolledUpAggregate> closed = rollup.flush();
+        assertEquals(2, closed.size());
+        assertEquals(120000, closed.get(0).captureTime());
+        assertEquals(2, closed.get(0).collectedAggregate().aggregate().getTransactionCount());
+        // the 5 minute window was still open, so it does include the late aggregate
+        assertEquals(300000, closed.get(1).captureTime());
+        assertEquals(7, closed.get(1).collectedAggregate().aggregate().getTransactionCount());
+    }
+
+    @Test
+    public void shouldMergeQueriesByQueryText() {
+        AggregateMerger merger = new AggregateMerger(1, 10000);
+        merger.merge(createAggregate(1, 0), ImmutableList.of("select 1"));
+        merger.merge(createAggregate(1, 0), ImmutableList.of("select 1"));
+        merger.merge(createAggregate(1, 0), ImmutableList.of("select 2"));
+
+        Aggregate aggregate = merger.toAggregate();
+        assertEquals(1, aggregate.getQueryCount());
+        assertEquals(2, aggregate.getQueryList().get(0).getExecutionCount());
+        assertEquals(1, merger.getDroppedQueryCount());
+    }
+
+    private static List<AggregateRollup.RolledUpAggregate> add(AggregateRollup rollup,
+            long captureTime, long transactionCount, String queryText) {
+        return rollup.add(captureTime, "Web", createAggregate(transactionCount, 0),
+                ImmutableList.of(queryText));
+    }
+
+    private static Aggregate createAggregate(long transactionCount, int sharedQueryTextIndex) {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(transactionCount * 1000)
+                .setTransactionCount(transactionCount)
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(sharedQueryTextIndex)
+                        .setTotalDurationNanos(100)
+                        .setExecutionCount(1)
+                        .build())
+                .build();
+    }
+}
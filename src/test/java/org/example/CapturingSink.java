@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// keeps everything written, both as one payload (decoded as utf-8) per write and as the
+// concatenated bytes
+class CapturingSink implements Sink {
+
+    private final List<String> written = new ArrayList<String>();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void write(long captureTime, byte[] bytes, int offset, int length)
+            throws IOException {
+        written.add(new String(bytes, offset, length, "UTF-8"));
+        out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() {}
+
+    synchronized List<String> getWritten() {
+        return new ArrayList<String>(written);
+    }
+
+    synchronized int getWriteCount() {
+        return written.size();
+    }
+
+    synchronized byte[] toByteArray() {
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommonJsonWriterTest {
+
+    private static final String FOO_RUN = "Foo.run(Foo.java:1)";
+    private static final String BAR_CALL = "Bar.call(Bar.java:2)";
+    private static final String FOO_IDLE = "Foo.idle(Foo.java:3)";
+    private static final String BAZ_GET = "Baz.get(Baz.java:5)";
+    private static final String QUX_MAIN = "Qux.main(Qux.java:7)";
+
+    @Test
+    public void shouldWriteFoldedProfile() throws Exception {
+        assertEquals("[\"" + FOO_RUN + ";" + BAR_CALL + ";" + BAZ_GET + " 5\","
+                + "\"" + FOO_RUN + ";" + BAR_CALL + " 1\","
+                + "\"" + FOO_RUN + ";" + FOO_IDLE + " 1\","
+                + "\"" + FOO_RUN + " 3\","
+                + "\"" + QUX_MAIN + " 2\"]",
+                writeProfile(createProfile(), true, 0, null, null, null));
+    }
+
+    @Test
+    public void shouldWritePrunedNestedProfile() throws Exception {
+        // 20% of the 12 samples, so nodes with fewer than 3 samples are pruned
+        assertEquals("[{\"stackTraceElement\":\"" + FOO_RUN + "\",\"sampleCount\":10,"
+                + "\"childNodes\":[{\"stackTraceElement\":\"" + BAR_CALL + "\","
+                + "\"sampleCount\":6,\"childNodes\":[{\"stackTraceElement\":\"" + BAZ_GET
+                + "\",\"sampleCount\":5}]}]}]",
+                writeProfile(createProfile(), false, 0.2, null, null, null));
+    }
+
+    @Test
+    public void shouldFoldPrunedSamplesIntoParent() throws Exception {
+        // the sample of the pruned Foo.idle stays with Foo.run
+        assertEquals("[\"" + FOO_RUN + ";" + BAR_CALL + ";" + BAZ_GET + " 5\","
+                + "\"" + FOO_RUN + ";" + BAR_CALL + " 1\","
+                + "\"" + FOO_RUN + " 4\"]",
+                writeProfile(createProfile(), true, 0.2, null, null, null));
+    }
+
+    @Test
+    public void shouldStopAtProfileNodeBudget() throws Exception {
+        assertEquals("[{\"stackTraceElement\":\"" + FOO_RUN + "\",\"sampleCount\":10,"
+                + "\"childNodes\":[{\"stackTraceElement\":\"" + BAR_CALL + "\","
+                + "\"sampleCount\":6}]}]",
+                writeProfile(createProfile(), false, 0, new TraceBudget(0, 0, 2, 0, 0, null),
+                        null, null));
+        // in the folded form the samples of the nodes that were cut stay with their parent (but
+        // those of a root that was cut are not counted anywhere)
+        assertEquals("[\"" + FOO_RUN + ";" + BAR_CALL + " 6\",\"" + FOO_RUN + " 4\"]",
+                writeProfile(createProfile(), true, 0, new TraceBudget(0, 0, 2, 0, 0, null),
+                        null, null));
+    }
+
+    @Test
+    public void shouldWriteOnlyNodesThatGainedSamples() throws Exception {
+        TraceUpdates.ProfileSampleCounts sampleCounts = new TraceUpdates.ProfileSampleCounts(3);
+        writeProfile(createEarlierProfile(), false, 0, null, null, sampleCounts);
+
+        // the later profile has its string tables in a different order
+        assertEquals("[{\"stackTraceElement\":\"Foo.run(Foo.java:1)\",\"sampleCount\":3,"
+                + "\"childNodes\":[{\"stackTraceElement\":\"Foo.idle(Foo.java:3)\","
+                + "\"sampleCount\":1},{\"stackTraceElement\":\"Bar.init(Bar.java:4)\","
+                + "\"sampleCount\":2}]}]",
+                writeProfile(createLaterProfile(), false, 0, null, sampleCounts, null));
+    }
+
+    @Test
+    public void shouldWriteOnlyFoldedStacksThatGainedSamples() throws Exception {
+        TraceUpdates.ProfileSampleCounts sampleCounts = new TraceUpdates.ProfileSampleCounts(3);
+        writeProfile(createEarlierProfile(), true, 0, null, null, sampleCounts);
+
+        assertEquals("[\"Foo.run(Foo.java:1);Foo.idle(Foo.java:3) 1\","
+                + "\"Foo.run(Foo.java:1);Bar.init(Bar.java:4) 2\"]",
+                writeProfile(createLaterProfile(), true, 0, null, sampleCounts, null));
+    }
+
+    @Test
+    public void shouldWriteAggregateFlattenedTimerTotalsAsWholeNanos() throws Exception {
+        Aggregate.Timer rootTimer = Aggregate.Timer.newBuilder()
+                .setName("http request")
+                .setTotalNanos(12345678.9)
+                .setCount(2)
+                .addChildTimer(Aggregate.Timer.newBuilder()
+                        .setName("jdbc query")
+                        .setTotalNanos(0.6)
+                        .setCount(1)
+                        .build())
+                .addChildTimer(Aggregate.Timer.newBuilder()
+                        .setName("jdbc query")
+                        .setTotalNanos(0.6)
+                        .setCount(1)
+                        .build())
+                .build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        CommonJsonWriter common = new CommonJsonWriter(jg, new StackFrameCache(100));
+        common.writeFlattenedTimers(rootTimer);
+        jg.close();
+
+        // each total is truncated as it is added, so the two 0.6 nanos add up to 0
+        assertEquals("[{\"name\":\"http request\",\"totalNanos\":12345678,\"count\":2},"
+                + "{\"name\":\"jdbc query\",\"totalNanos\":0,\"count\":2}]",
+                out.toString("UTF-8"));
+    }
+
+    private static String writeProfile(Profile profile, boolean foldProfiles,
+            double pruneBelowFraction, TraceBudget budget,
+            TraceUpdates.ProfileSampleCounts previous, TraceUpdates.ProfileSampleCounts current)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        CommonJsonWriter common = new CommonJsonWriter(jg, new StackFrameCache(100));
+        common.setProfileEncoding(foldProfiles, pruneBelowFraction);
+        common.writeProfile(profile, budget, previous, current);
+        jg.close();
+        return out.toString("UTF-8");
+    }
+
+    // Foo.run 10
+    //   Bar.call 6
+    //     Baz.get 5
+    //   Foo.idle 1
+    // Qux.main 2
+    private static Profile createProfile() {
+        return Profile.newBuilder()
+                .addClassName("Foo")
+                .addClassName("Bar")
+                .addClassName("Baz")
+                .addClassName("Qux")
+                .addMethodName("run")
+                .addMethodName("call")
+                .addMethodName("idle")
+                .addMethodName("get")
+                .addMethodName("main")
+                .addFileName("Foo.java")
+                .addFileName("Bar.java")
+                .addFileName("Baz.java")
+                .addFileName("Qux.java")
+                .addNode(createNode(0, 0, 0, 0, 1, 10))
+                .addNode(createNode(1, 1, 1, 1, 2, 6))
+                .addNode(createNode(2, 2, 3, 2, 5, 5))
+                .addNode(createNode(1, 0, 2, 0, 3, 1))
+                .addNode(createNode(0, 3, 4, 3, 7, 2))
+                .build();
+    }
+
+    // Foo.run 10
+    //   Bar.call 6
+    //   Foo.idle 4
+    private static Profile createEarlierProfile() {
+        return Profile.newBuilder()
+                .addClassName("Foo")
+                .addClassName("Bar")
+                .addMethodName("run")
+                .addMethodName("call")
+                .addMethodName("idle")
+                .addFileName("Foo.java")
+                .addFileName("Bar.java")
+                .addNode(createNode(0, 0, 0, 0, 1, 10))
+                .addNode(createNode(1, 1, 1, 1, 2, 6))
+                .addNode(createNode(1, 0, 2, 0, 3, 4))
+                .build();
+    }
+
+    // Foo.run 13
+    //   Bar.call 6
+    //   Foo.idle 5
+    //   Bar.init 2
+    private static Profile createLaterProfile() {
+        return Profile.newBuilder()
+                .addClassName("Bar")
+                .addClassName("Foo")
+                .addMethodName("init")
+                .addMethodName("idle")
+                .addMethodName("call")
+                .addMethodName("run")
+                .addFileName("Bar.java")
+                .addFileName("Foo.java")
+                .addNode(createNode(0, 1, 3, 1, 1, 13))
+                .addNode(createNode(1, 0, 2, 0, 2, 6))
+                .addNode(createNode(1, 1, 1, 1, 3, 5))
+                .addNode(createNode(1, 0, 0, 0, 4, 2))
+                .build();
+    }
+
+    private static ProfileNode createNode(int depth, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, long sampleCount) {
+        return ProfileNode.newBuilder()
+                .setDepth(depth)
+                .setClassNameIndex(classNameIndex)
+                .setMethodNameIndex(methodNameIndex)
+                .setFileNameIndex(fileNameIndex)
+                .setLineNumber(lineNumber)
+                .setSampleCount(sampleCount)
+                .build();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressingSinkTest {
+
+    private static final String PAYLOAD = "{\"transactionType\":\"Web\",\"transactionName\":"
+            + "\"/orders\",\"stackTraceElement\":\"org.example.OrderService.find"
+            + "(OrderService.java:42)\"}";
+
+    @Test
+    public void shouldRoundTripBlocks() throws Exception {
+        CapturingSink capturingSink = new CapturingSink();
+        CompressingSink sink =
+                new CompressingSink(capturingSink, new byte[] {'\n'}, -1, 1024, 60000, null);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            write(sink, PAYLOAD + i);
+            expected.append(PAYLOAD).append(i).append('\n');
+        }
+        sink.close();
+
+        assertTrue(capturingSink.getWriteCount() > 1);
+        assertTrue(capturingSink.toByteArray().length < expected.length() / 2);
+        assertEquals(expected.toString(), readAll(capturingSink.toByteArray(), null));
+    }
+
+    @Test
+    public void shouldGiveOversizedPayloadItsOwnBlock() throws Exception {
+        CapturingSink capturingSink = new CapturingSink();
+        CompressingSink sink =
+                new CompressingSink(capturingSink, new byte[] {'\n'}, 1, 16, 60000, null);
+
+        write(sink, "small");
+        write(sink, PAYLOAD);
+        write(sink, "small");
+        sink.close();
+
+        assertEquals(3, capturingSink.getWriteCount());
+        assertEquals("small\n" + PAYLOAD + "\nsmall\n",
+                readAll(capturingSink.toByteArray(), null));
+    }
+
+    @Test
+    public void shouldWriteOldBlockWithoutFurtherPayloads() throws Exception {
+        CapturingSink capturingSink = new CapturingSink();
+        CompressingSink sink =
+                new CompressingSink(capturingSink, new byte[] {'\n'}, -1, 1024, 50, null);
+
+        write(sink, PAYLOAD);
+        long startMillis = System.currentTimeMillis();
+        while (capturingSink.getWriteCount() == 0
+                && System.currentTimeMillis() - startMillis < 5000) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, capturingSink.getWriteCount());
+        assertEquals(PAYLOAD + "\n", readAll(capturingSink.toByteArray(), null));
+        sink.close();
+        assertEquals(1, capturingSink.getWriteCount());
+    }
+
+    @Test
+    public void shouldKeepOrderOfEachThreadsPayloads() throws Exception {
+        CapturingSink capturingSink = new CapturingSink();
+        final CompressingSink sink =
+                new CompressingSink(capturingSink, new byte[] {'\n'}, -1, 256, 60000, null);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int threadNum = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            write(sink, threadNum + ":" + j);
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sink.close();
+
+        int[] next = new int[4];
+        for (String line : readAll(capturingSink.toByteArray(), null).split("\n")) {
+            int separator = line.indexOf(':');
+            int threadNum = Integer.parseInt(line.substring(0, separator));
+            assertEquals(next[threadNum]++, Integer.parseInt(line.substring(separator + 1)));
+        }
+        for (int count : next) {
+            assertEquals(500, count);
+        }
+        try {
+            write(sink, PAYLOAD);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Sink is closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldDecompressOnlyIfCompressed() throws Exception {
+        CapturingSink capturingSink = new CapturingSink();
+        CompressingSink sink = new CompressingSink(capturingSink, new byte[0], -1, 64, 60000, null);
+        for (int i = 0; i < 10; i++) {
+            write(sink, PAYLOAD + i);
+        }
+        sink.close();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append(PAYLOAD).append(i);
+        }
+
+        assertEquals(expected.toString(), readStream(CompressedBlocks.decompressIfCompressed(
+                new ByteArrayInputStream(capturingSink.toByteArray()), null)));
+        assertEquals(expected.toString(), readStream(CompressedBlocks.decompressIfCompressed(
+                new ByteArrayInputStream(expected.toString().getBytes("UTF-8")), null)));
+        assertEquals("", readStream(CompressedBlocks.decompressIfCompressed(
+                new ByteArrayInputStream(new byte[0]), null)));
+    }
+
+    @Test
+    public void shouldUseTrainedDictionary() throws Exception {
+        CompressionDictionary trainer = new CompressionDictionary();
+        trainer.addSample((PAYLOAD + "\n" + PAYLOAD + "\n").getBytes("UTF-8"));
+        byte[] dictionary = trainer.build(CompressionDictionary.MAX_SIZE);
+        // the longest strings save the most, and so are nearest the end
+        assertTrue(new String(dictionary, "UTF-8").startsWith("\"Web\""));
+        assertTrue(new String(dictionary, "UTF-8").endsWith("(OrderService.java:42)\""));
+
+        CapturingSink plainSink = new CapturingSink();
+        CompressingSink sink = new CompressingSink(plainSink, new byte[0], -1, 4096, 0, null);
+        write(sink, PAYLOAD);
+        sink.close();
+        CapturingSink dictionarySink = new CapturingSink();
+        sink = new CompressingSink(dictionarySink, new byte[0], -1, 4096, 0, dictionary);
+        write(sink, PAYLOAD);
+        sink.close();
+
+        assertTrue(dictionarySink.toByteArray().length < plainSink.toByteArray().length);
+        assertEquals(PAYLOAD, readAll(dictionarySink.toByteArray(), dictionary));
+        try {
+            readAll(dictionarySink.toByteArray(), null);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("dictionary"));
+        }
+    }
+
+    private static void write(CompressingSink sink, String payload) throws IOException {
+        byte[] bytes = payload.getBytes("UTF-8");
+        sink.write(0, bytes, 0, bytes.length);
+    }
+
+    private static String readStream(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static String readAll(byte[] bytes, byte[] dictionary) throws IOException {
+        CompressedBlocks blocks =
+                new CompressedBlocks(new ByteArrayInputStream(bytes), dictionary);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block;
+        while ((block = blocks.readBlock()) != null) {
+            out.write(block);
+        }
+        blocks.close();
+        assertNull(blocks.readBlock());
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
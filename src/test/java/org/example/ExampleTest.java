@@ -15,8 +15,11 @@
  */
 package org.example;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -38,6 +41,8 @@ import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Tra
 import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace.QueryEntryMessage;
 
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ExampleTest {
 
@@ -57,6 +62,93 @@ public class ExampleTest {
         gaugeValues.add(createGaugeValue("java.lang:type=OperatingSystem:ProcessCpuLoad"));
         gaugeValues.add(createGaugeValue("java.lang:type=OperatingSystem:SystemCpuLoad"));
         collector.collectGaugeValues(gaugeValues);
+
+        // drain the export queue so the output is written before the test exits
+        ((ExampleCollector) collector).close();
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        File file = File.createTempFile("example-collector", ".json");
+        System.setProperty("example.collector.trace.streaming", "true");
+        System.setProperty("example.collector.output.file", file.getAbsolutePath());
+        try {
+            ExampleCollector collector = new ExampleCollector();
+            collector.init(new ArrayList<File>(), Environment.getDefaultInstance(),
+                    AgentConfig.getDefaultInstance(), new NopAgentConfigUpdater());
+            TraceReaderImpl traceReader =
+                    new TraceReaderImpl(1000000 + random.nextInt(2000000000));
+            collector.collectTrace(traceReader);
+            // the reader of an in-flight trace must not be used once collectTrace() has returned
+            traceReader.expired = true;
+            collector.close();
+
+            String[] lines = read(file).split("\n");
+            assertEquals(1, lines.length);
+            assertTrue(lines[0].startsWith("{\"entries\":[{\"startOffsetNanos\":6,"
+                    + "\"durationNanos\":5,\"message\":\"a non query entry\"},"
+                    + "{\"startOffsetNanos\":20,\"durationNanos\":50,"
+                    + "\"message\":\"a parent entry\",\"childEntries\":[{"
+                    + "\"startOffsetNanos\":21,\"durationNanos\":10,\"queryMessage\":{"
+                    + "\"sharedQueryTextIndex\":0,\"prefix\":\"jdbc execute: \","
+                    + "\"suffix\":\" [61279943, 'a bind var'] => 0 rows\"}}]}],"
+                    + "\"sharedQueryTexts\":[\"select 1 from table\"],\"header\":{"));
+            assertTrue(lines[0].contains("\"transactionType\":\"Web\""));
+            assertTrue(lines[0].contains("\"queries\":["));
+        } finally {
+            System.clearProperty("example.collector.trace.streaming");
+            System.clearProperty("example.collector.output.file");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProtobuf() throws Exception {
+        File file = File.createTempFile("example-collector", ".bin");
+        System.setProperty("example.collector.output.format", "protobuf");
+        System.setProperty("example.collector.output.file", file.getAbsolutePath());
+        try {
+            ExampleCollector collector = new ExampleCollector();
+            collector.init(new ArrayList<File>(), Environment.getDefaultInstance(),
+                    AgentConfig.getDefaultInstance(), new NopAgentConfigUpdater());
+            collector.collectTrace(new TraceReaderImpl(1000000 + random.nextInt(2000000000)));
+            List<GaugeValue> gaugeValues = new ArrayList<GaugeValue>();
+            gaugeValues.add(createGaugeValue("java.lang:type=Memory:HeapMemoryUsage.used"));
+            collector.collectGaugeValues(gaugeValues);
+            collector.close();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            InputStream in = new FileInputStream(file);
+            try {
+                new ProtobufToJson(in, baos).convert();
+            } finally {
+                in.close();
+            }
+            String[] lines = baos.toString("UTF-8").split("\n");
+            assertEquals(2, lines.length);
+            assertTrue(lines[0].startsWith("{\"traceId\":\""));
+            assertTrue(lines[0].contains(",\"header\":{"));
+            assertTrue(lines[0].contains("\"queryText\":\"select 1 from table\""));
+            assertTrue(lines[1].startsWith("[{\"gaugeName\":"));
+        } finally {
+            System.clearProperty("example.collector.output.format");
+            System.clearProperty("example.collector.output.file");
+            file.delete();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
     }
 
     private static GaugeValue createGaugeValue(String name) throws InterruptedException {
@@ -78,6 +170,8 @@ public class ExampleTest {
         private final long startTime;
         private final String traceId;
 
+        private volatile boolean expired;
+
         private TraceReaderImpl(long durationNanos) {
             this.durationNanos = durationNanos;
             captureTime = System.currentTimeMillis();
@@ -107,6 +201,9 @@ public class ExampleTest {
 
         @Override
         public void accept(TraceVisitor traceVisitor) throws Exception {
+            if (expired) {
+                throw new IllegalStateException("Trace reader used after collectTrace()");
+            }
             traceVisitor.visitEntry(Trace.Entry.newBuilder()
                     .setDepth(0)
                     .setStartOffsetNanos(6)
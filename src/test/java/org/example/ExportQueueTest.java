@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ExportQueueTest {
+
+    @Test
+    public void shouldDropOldest() throws Exception {
+        ExportQueue queue = new ExportQueue(2, ExportQueue.OverflowPolicy.DROP_OLDEST);
+        ExportTask task1 = new NopExportTask();
+        ExportTask task2 = new NopExportTask();
+        ExportTask task3 = new NopExportTask();
+
+        assertTrue(queue.offer(task1));
+        assertTrue(queue.offer(task2));
+        assertTrue(queue.offer(task3));
+
+        assertSame(task2, queue.take());
+        assertSame(task3, queue.take());
+        assertEquals(3, queue.getEnqueuedCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDropNewest() throws Exception {
+        ExportQueue queue = new ExportQueue(2, ExportQueue.OverflowPolicy.DROP_NEWEST);
+        ExportTask task1 = new NopExportTask();
+        ExportTask task2 = new NopExportTask();
+
+        assertTrue(queue.offer(task1));
+        assertTrue(queue.offer(task2));
+        assertFalse(queue.offer(new NopExportTask()));
+
+        assertSame(task1, queue.take());
+        assertSame(task2, queue.take());
+        assertEquals(2, queue.getEnqueuedCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDropIfFullOnlyWhenNewestWouldBeDropped() throws Exception {
+        ExportQueue dropNewestQueue = new ExportQueue(1, ExportQueue.OverflowPolicy.DROP_NEWEST);
+        ExportQueue dropOldestQueue = new ExportQueue(1, ExportQueue.OverflowPolicy.DROP_OLDEST);
+
+        assertFalse(dropNewestQueue.dropIfFull());
+        dropNewestQueue.offer(new NopExportTask());
+        dropOldestQueue.offer(new NopExportTask());
+
+        assertTrue(dropNewestQueue.dropIfFull());
+        assertFalse(dropOldestQueue.dropIfFull());
+        assertEquals(1, dropNewestQueue.getDroppedCount());
+    }
+
+    @Test
+    public void shouldBlockUntilSpaceAvailable() throws Exception {
+        final ExportQueue queue = new ExportQueue(1, ExportQueue.OverflowPolicy.BLOCK);
+        ExportTask task1 = new NopExportTask();
+        ExportTask task2 = new NopExportTask();
+        queue.offer(task1);
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        assertTrue(queue.offer(task2));
+        consumer.join();
+
+        assertSame(task2, queue.take());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDrainAfterClose() throws Exception {
+        ExportQueue queue = new ExportQueue(4, ExportQueue.OverflowPolicy.DROP_OLDEST);
+        ExportTask task1 = new NopExportTask();
+        queue.offer(task1);
+        queue.close();
+
+        assertFalse(queue.offer(new NopExportTask()));
+        assertSame(task1, queue.take());
+        assertNull(queue.take());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDrainPipelineOnShutdown() throws Exception {
+        ExportPipeline pipeline = new ExportPipeline(16, ExportQueue.OverflowPolicy.BLOCK, 2,
+                new SelfTelemetry(false));
+        pipeline.start();
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(new NopExportTask());
+        }
+        pipeline.shutdown(10000);
+
+        assertEquals(10, pipeline.getQueue().getFlushedCount());
+        assertEquals(0, pipeline.getQueue().getDroppedCount());
+    }
+
+    private static class NopExportTask implements ExportTask {
+        @Override
+        public void export() {}
+    }
+}
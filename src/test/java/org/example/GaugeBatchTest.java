@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GaugeBatchTest {
+
+    @Test
+    public void shouldWriteColumnsWithDeltaEncodedCaptureTimes() throws Exception {
+        GaugeBatch batch = createBatch();
+
+        assertEquals("{\"gauges\":["
+                + "{\"gaugeName\":\"heap\",\"captureTimes\":[1000,5000,4999],"
+                + "\"values\":[1.5,2.0,3.0],\"weights\":[1,1,2]},"
+                + "{\"gaugeName\":\"cpu\",\"captureTimes\":[1000],\"values\":[0.25],"
+                + "\"weights\":[1]}]}", writeJson(batch));
+    }
+
+    @Test
+    public void shouldConvertProtobufBatchToSameJson() throws Exception {
+        GaugeBatch batch = createBatch();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ProtobufWriter(bytes).writeGaugeBatch(batch);
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new ProtobufToJson(new ByteArrayInputStream(bytes.toByteArray()), json).convert();
+
+        assertEquals(writeJson(batch) + "\n", json.toString("UTF-8"));
+    }
+
+    private static GaugeBatch createBatch() {
+        GaugeBatch batch = new GaugeBatch(0);
+        batch.add("heap", 1000, 1.5, 1);
+        batch.add("cpu", 1000, 0.25, 1);
+        batch.add("heap", 6000, 2, 1);
+        batch.add("heap", 10999, 3, 2);
+        return batch;
+    }
+
+    private static String writeJson(GaugeBatch batch) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        new GaugeValueWriter(jg).write(batch);
+        jg.close();
+        return out.toString("UTF-8");
+    }
+}
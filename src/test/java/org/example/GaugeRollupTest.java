@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GaugeRollupTest {
+
+    private static final String HEAP_USED = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+    @Test
+    public void shouldRollUpMatchingGaugesPerWindow() {
+        GaugeRollup gaugeRollup = new GaugeRollup(Arrays.asList("java.lang:type=Memory:*"), 60000);
+
+        List<GaugeValue> notMatched = gaugeRollup.add(Arrays.asList(
+                createGaugeValue(HEAP_USED, 5000, 10, 1),
+                createGaugeValue("java.lang:type=Threading:ThreadCount", 5000, 50, 1)), 5000);
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 10000, 40, 2)), 10000);
+
+        assertEquals(1, notMatched.size());
+        assertTrue(gaugeRollup.drainClosed().isEmpty());
+
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 65000, 20, 1)), 65000);
+        List<GaugeRollup.Point> points = gaugeRollup.drainClosed();
+
+        assertEquals(1, points.size());
+        GaugeRollup.Point point = points.get(0);
+        assertEquals(HEAP_USED, point.gaugeName());
+        assertEquals(60000, point.captureTime());
+        assertEquals(30, point.mean(), 0);
+        assertEquals(10, point.min(), 0);
+        assertEquals(40, point.max(), 0);
+        assertEquals(40, point.last(), 0);
+        assertEquals(3, point.weight());
+
+        points = gaugeRollup.flush();
+        assertEquals(1, points.size());
+        assertEquals(120000, points.get(0).captureTime());
+    }
+
+    @Test
+    public void shouldMatchSingleCharacterWildcardOnly() {
+        GaugeRollup gaugeRollup = new GaugeRollup(Arrays.asList("a?c"), 60000);
+
+        List<GaugeValue> notMatched = gaugeRollup.add(Arrays.asList(
+                createGaugeValue("abc", 1000, 1, 1), createGaugeValue("abbc", 1000, 1, 1),
+                createGaugeValue("a.c", 1000, 1, 1)), 1000);
+
+        assertEquals(1, notMatched.size());
+        assertEquals("abbc", notMatched.get(0).getGaugeName());
+        assertEquals(2, gaugeRollup.flush().size());
+    }
+
+    @Test
+    public void shouldCloseWindowsAtCollectTime() {
+        GaugeRollup gaugeRollup = new GaugeRollup(Arrays.asList("java.lang:type=Memory:*"), 60000);
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 5000, 10, 1)), 5000);
+
+        // only gauges that are not rolled up are collected past the end of the window
+        gaugeRollup.add(Arrays.asList(createGaugeValue("abc", 61000, 1, 1)), 61000);
+        List<GaugeRollup.Point> points = gaugeRollup.drainClosed();
+        assertEquals(1, points.size());
+        assertEquals(60000, points.get(0).captureTime());
+
+        // nothing to collect at all
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 62000, 20, 1)), 62000);
+        gaugeRollup.add(Collections.<GaugeValue>emptyList(), 125000);
+        points = gaugeRollup.drainClosed();
+        assertEquals(1, points.size());
+        assertEquals(120000, points.get(0).captureTime());
+        assertTrue(gaugeRollup.flush().isEmpty());
+    }
+
+    @Test
+    public void shouldDropValuesForWindowsAlreadyEmitted() {
+        GaugeRollup gaugeRollup = new GaugeRollup(Arrays.asList("java.lang:type=Memory:*"), 60000);
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 5000, 10, 1)), 5000);
+        gaugeRollup.add(Collections.<GaugeValue>emptyList(), 61000);
+        assertEquals(1, gaugeRollup.drainClosed().size());
+
+        // late for the window that was closed by collect time, and then for the window that was
+        // closed by a later value
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 59000, 20, 1)), 61000);
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 130000, 30, 1)), 130000);
+        gaugeRollup.add(Arrays.asList(createGaugeValue(HEAP_USED, 70000, 40, 1)), 130000);
+
+        assertTrue(gaugeRollup.drainClosed().isEmpty());
+        assertEquals(2, gaugeRollup.getLateCount());
+        List<GaugeRollup.Point> points = gaugeRollup.flush();
+        assertEquals(1, points.size());
+        assertEquals(180000, points.get(0).captureTime());
+        assertEquals(30, points.get(0).mean(), 0);
+    }
+
+    private static GaugeValue createGaugeValue(String gaugeName, long captureTime, double value,
+            long weight) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
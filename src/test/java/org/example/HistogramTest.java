@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldMapEachValueIntoItsBucket() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.getIndex(value);
+            assertTrue(Histogram.getLowestValue(index) <= value);
+            if (value != Long.MAX_VALUE) {
+                assertTrue(Histogram.getLowestValue(index + 1) > value);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertEquals(1000, snapshot.getTotalCount());
+        assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 / 32.0);
+        assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 / 32.0);
+        assertEquals(1000000, snapshot.getMax(), 1000000 / 32.0);
+    }
+
+    @Test
+    public void shouldResetAfterSnapshot() {
+        Histogram histogram = new Histogram();
+        histogram.record(42);
+        histogram.snapshotAndReset();
+
+        Histogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertEquals(0, snapshot.getTotalCount());
+        assertEquals(0, snapshot.getMax(), 0);
+    }
+}
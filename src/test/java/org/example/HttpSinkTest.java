@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpSinkTest {
+
+    private HttpServer server;
+    private Backend backend;
+    private URL url;
+
+    @Before
+    public void beforeEach() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backend = new Backend();
+        server.createContext("/", backend);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void afterEach() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldBatchByRecordCount() throws Exception {
+        HttpSink sink = createSink(10, 60000, 0);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            write(sink, "{\"value\":" + i + "}");
+            expected.append("{\"value\":").append(i).append("}\n");
+        }
+        sink.close();
+
+        // the last, partial batch is sent on close
+        assertEquals(3, backend.getBodies().size());
+        assertEquals(expected.toString(), backend.getBodies().get(0) + backend.getBodies().get(1)
+                + backend.getBodies().get(2));
+        assertEquals(25, sink.getSentRecordCount());
+    }
+
+    @Test
+    public void shouldSendPartialBatchAfterLinger() throws Exception {
+        HttpSink sink = createSink(10, 50, 0);
+
+        write(sink, "{}");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (backend.getBodies().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, backend.getBodies().size());
+        sink.close();
+    }
+
+    @Test
+    public void shouldRetryServerErrors() throws Exception {
+        backend.failuresRemaining.set(2);
+        backend.failureStatus = 503;
+        HttpSink sink = createSink(10, 60000, 5);
+
+        write(sink, "{}");
+        sink.close();
+
+        assertEquals(2, sink.getRetryCount());
+        assertEquals(1, sink.getSentBatchCount());
+        assertEquals(0, sink.getDroppedBatchCount());
+        assertEquals(1, backend.getBodies().size());
+    }
+
+    @Test
+    public void shouldNotRetryClientErrors() throws Exception {
+        backend.failuresRemaining.set(1);
+        backend.failureStatus = 400;
+        HttpSink sink = createSink(10, 60000, 5);
+
+        write(sink, "{}");
+        sink.close();
+
+        assertEquals(0, sink.getRetryCount());
+        assertEquals(1, sink.getDroppedBatchCount());
+    }
+
+    @Test
+    public void shouldSpillWhileBackendIsDown() throws Exception {
+        backend.failuresRemaining.set(5);
+        backend.failureStatus = 503;
+        File spillDir = File.createTempFile("spill", "");
+        spillDir.delete();
+        SpillQueue spillQueue = new SpillQueue(spillDir, 1024, 1024 * 1024);
+        HttpSink sink = new HttpSink(url, "application/x-ndjson", new byte[] {'\n'}, 1, 1,
+                1024 * 1024, 60000, 1, 0, 1000, spillQueue);
+
+        for (int i = 0; i < 10; i++) {
+            write(sink, "{\"value\":" + i + "}");
+        }
+        sink.close();
+
+        assertTrue(sink.getSpilledBatchCount() > 0);
+        assertEquals(0, sink.getDroppedBatchCount());
+        Set<String> bodies = new HashSet<String>(backend.getBodies());
+        assertEquals(10, bodies.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bodies.contains("{\"value\":" + i + "}\n"));
+        }
+        for (File file : spillDir.listFiles()) {
+            file.delete();
+        }
+        spillDir.delete();
+    }
+
+    @Test
+    public void shouldSpillBatchBeingRetriedOnClose() throws Exception {
+        backend.failuresRemaining.set(Integer.MAX_VALUE);
+        backend.failureStatus = 503;
+        File spillDir = File.createTempFile("spill", "");
+        spillDir.delete();
+        HttpSink sink = new HttpSink(url, "application/x-ndjson", new byte[] {'\n'}, 1, 1,
+                1024 * 1024, 60000, 1, 100, 60000,
+                new SpillQueue(spillDir, 1024, 1024 * 1024));
+
+        write(sink, "{\"value\":0}");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.getRetryCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long closeStartMillis = System.currentTimeMillis();
+        sink.close();
+
+        // the batch does not wait out the backoff (or the close timeout)
+        assertTrue(System.currentTimeMillis() - closeStartMillis < 5000);
+        assertEquals(1, sink.getSpilledBatchCount());
+        assertEquals(0, sink.getDroppedBatchCount());
+        SpillQueue spillQueue = new SpillQueue(spillDir, 1024, 1024 * 1024);
+        byte[] spillRecord = spillQueue.poll();
+        // after the record count
+        assertEquals("{\"value\":0}\n",
+                new String(spillRecord, 4, spillRecord.length - 4, "UTF-8"));
+        assertNull(spillQueue.poll());
+        spillQueue.close();
+        for (File file : spillDir.listFiles()) {
+            file.delete();
+        }
+        spillDir.delete();
+    }
+
+    private HttpSink createSink(int batchMaxRecords, long lingerMillis, int maxRetries) {
+        // a single sender thread, so that batches arrive in order
+        return new HttpSink(url, "application/x-ndjson", new byte[] {'\n'}, 1, batchMaxRecords,
+                1024 * 1024, lingerMillis, 4, maxRetries, 1000, null);
+    }
+
+    private static void write(HttpSink sink, String payload) throws IOException {
+        byte[] bytes = payload.getBytes("UTF-8");
+        sink.write(0, bytes, 0, bytes.length);
+    }
+
+    private static class Backend implements HttpHandler {
+
+        private final List<String> bodies = new ArrayList<String>();
+        private final AtomicInteger failuresRemaining = new AtomicInteger();
+        private volatile int failureStatus;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+            in.close();
+            if (failuresRemaining.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(failureStatus, -1);
+            } else {
+                synchronized (bodies) {
+                    bodies.add(new String(body.toByteArray(), "UTF-8"));
+                }
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        }
+
+        private List<String> getBodies() {
+            synchronized (bodies) {
+                return new ArrayList<String>(bodies);
+            }
+        }
+    }
+}
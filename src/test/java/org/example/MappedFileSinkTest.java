@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.example.CollectorConfig.FsyncPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileSinkTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEach() throws IOException {
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void afterEach() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldRollOnSize() throws Exception {
+        MappedFileSink sink = new MappedFileSink(dir, ".json", new byte[] {'\n'}, 16, 3600000,
+                FsyncPolicy.PER_SEGMENT, 1000);
+        write(sink, 1546300800000L, "{\"a\":1}");
+        write(sink, 1546300800001L, "{\"b\":2}");
+        write(sink, 1546300800002L, "{\"c\":3}");
+        sink.close();
+
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+        assertEquals("20190101T000000.000Z_20190101T000000.001Z_000001.json",
+                files[0].getName());
+        assertEquals("{\"a\":1}\n{\"b\":2}\n", read(files[0]));
+        assertEquals("20190101T000000.002Z_20190101T000000.002Z_000002.json",
+                files[1].getName());
+        assertEquals("{\"c\":3}\n", read(files[1]));
+    }
+
+    @Test
+    public void shouldGiveOversizedRecordItsOwnSegment() throws Exception {
+        MappedFileSink sink = new MappedFileSink(dir, ".json", new byte[] {'\n'}, 4, 3600000,
+                FsyncPolicy.NONE, 1000);
+        write(sink, 1546300800000L, "{\"abc\":123}");
+        sink.close();
+
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        assertEquals("{\"abc\":123}\n", read(files[0]));
+    }
+
+    @Test
+    public void shouldRecoverActiveSegment() throws Exception {
+        writeActiveSegment("000007.active", "{\"a\":1}\n".getBytes("UTF-8"), 1024,
+                1546300800000L, 1546300802000L);
+
+        MappedFileSink sink = new MappedFileSink(dir, ".json", new byte[] {'\n'}, 1024,
+                3600000, FsyncPolicy.NONE, 1000);
+        write(sink, 1546300800000L, "{\"b\":2}");
+        sink.close();
+
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+        assertEquals("20190101T000000.000Z_20190101T000000.000Z_000008.json",
+                files[0].getName());
+        assertEquals("20190101T000000.000Z_20190101T000002.000Z_000007.json",
+                files[1].getName());
+        assertEquals("{\"a\":1}\n", read(files[1]));
+    }
+
+    @Test
+    public void shouldRecoverActiveSegmentEndingInZeroBytes() throws Exception {
+        // e.g. a protobuf trace record, which ends with a zero end of section marker
+        byte[] record = new byte[] {0x0a, 0x03, 'a', 'b', 'c', 0x00, 0x00};
+        writeActiveSegment("000003.active", record, 1024, 1546300800000L, 1546300800000L);
+
+        MappedFileSink sink = new MappedFileSink(dir, ".bin", new byte[0], 1024, 3600000,
+                FsyncPolicy.NONE, 1000);
+        sink.close();
+
+        File recoveredFile = new File(dir, "20190101T000000.000Z_20190101T000000.000Z_000003.bin");
+        assertEquals(record.length, recoveredFile.length());
+        assertEquals(new String(record, "UTF-8"), read(recoveredFile));
+    }
+
+    @Test
+    public void shouldContinueSequenceWithMultiDotExtension() throws Exception {
+        MappedFileSink sink = new MappedFileSink(dir, ".json.blocks", new byte[0], 1024,
+                3600000, FsyncPolicy.NONE, 1000);
+        write(sink, 1546300800000L, "a");
+        sink.close();
+        writeActiveSegment("000002.active", "b".getBytes("UTF-8"), 1024, 1546300800000L,
+                1546300800000L);
+        sink = new MappedFileSink(dir, ".json.blocks", new byte[0], 1024, 3600000,
+                FsyncPolicy.NONE, 1000);
+        write(sink, 1546300800001L, "c");
+        sink.close();
+        writeActiveSegment("000004.active", "d".getBytes("UTF-8"), 1024, 1546300800002L,
+                1546300800002L);
+        sink = new MappedFileSink(dir, ".json.blocks", new byte[0], 1024, 3600000,
+                FsyncPolicy.NONE, 1000);
+        sink.close();
+
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        assertEquals(4, files.length);
+        assertTrue(files[0].getName().endsWith("_000001.json.blocks"));
+        assertTrue(files[1].getName().endsWith("_000002.json.blocks"));
+        assertEquals("b", read(files[1]));
+        assertTrue(files[2].getName().endsWith("_000003.json.blocks"));
+        assertEquals("c", read(files[2]));
+        assertEquals("20190101T000000.002Z_20190101T000000.002Z_000004.json.blocks",
+                files[3].getName());
+        assertEquals("d", read(files[3]));
+    }
+
+    @Test
+    public void shouldKeepSegmentWithoutValidTrailer() throws Exception {
+        // e.g. the crash happened while the segment was being created
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "000005.active"), "rw");
+        try {
+            raf.write("abc".getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+
+        MappedFileSink sink = new MappedFileSink(dir, ".json", new byte[] {'\n'}, 1024,
+                3600000, FsyncPolicy.NONE, 1000);
+        sink.close();
+
+        assertEquals("abc", read(new File(dir, "recovered_000005.json")));
+    }
+
+    @Test
+    public void shouldRecoverSegmentWithCommittedLengthOnlyTrailer() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "000006.active"), "rw");
+        try {
+            raf.write("abc".getBytes("UTF-8"));
+            raf.setLength(1024 + 8);
+            raf.seek(1024);
+            raf.writeLong(3);
+        } finally {
+            raf.close();
+        }
+
+        MappedFileSink sink = new MappedFileSink(dir, ".json", new byte[] {'\n'}, 1024,
+                3600000, FsyncPolicy.NONE, 1000);
+        sink.close();
+
+        assertEquals("abc", read(new File(dir, "recovered_000006.json")));
+    }
+
+    // what a crash leaves behind: the pre-allocated segment with the capture time range and
+    // committed length trailer
+    private void writeActiveSegment(String name, byte[] bytes, int size, long minCaptureTime,
+            long maxCaptureTime) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw");
+        try {
+            raf.write(bytes);
+            raf.setLength(size + 24);
+            raf.seek(size);
+            raf.writeLong(minCaptureTime);
+            raf.writeLong(maxCaptureTime);
+            raf.writeLong(bytes.length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(Sink sink, long captureTime, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        sink.write(captureTime, bytes, 0, bytes.length);
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutputBufferTest {
+
+    @Test
+    public void shouldReuseGeneratorAcrossDocuments() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        outputBuffer.startJson();
+        long generatorsCreated = OutputBuffer.getGeneratorsCreated();
+
+        for (int i = 0; i < 3; i++) {
+            JsonGenerator jg = outputBuffer.startJson();
+            jg.writeStartObject();
+            jg.writeNumberField("i", i);
+            jg.writeEndObject();
+            outputBuffer.writeTo(sink, 0);
+        }
+
+        assertEquals(generatorsCreated, OutputBuffer.getGeneratorsCreated());
+        assertEquals("{\"i\":0}", sink.getWritten().get(0));
+        assertEquals("{\"i\":1}", sink.getWritten().get(1));
+        assertEquals("{\"i\":2}", sink.getWritten().get(2));
+    }
+
+    @Test
+    public void shouldRecreateGeneratorAfterAbandonedDocument() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        JsonGenerator jg = outputBuffer.startJson();
+        jg.writeStartObject();
+        jg.writeFieldName("abandoned");
+        long generatorsCreated = OutputBuffer.getGeneratorsCreated();
+
+        jg = outputBuffer.startJson();
+        jg.writeStartArray();
+        jg.writeEndArray();
+        outputBuffer.writeTo(sink, 0);
+
+        assertEquals(generatorsCreated + 1, OutputBuffer.getGeneratorsCreated());
+        assertEquals("[]", sink.getWritten().get(0));
+    }
+}
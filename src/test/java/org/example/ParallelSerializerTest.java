@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelSerializerTest {
+
+    @Test
+    public void shouldWriteSameOutputInSameOrderAsInline() throws Exception {
+        List<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(i);
+        }
+        CapturingSink inlineSink = new CapturingSink();
+        CapturingSink parallelSink = new CapturingSink();
+
+        ParallelSerializer inline = new ParallelSerializer(0, 1);
+        inline.serialize(batch, new SlowSerializer(-1), inlineSink, 0);
+        ParallelSerializer parallel = new ParallelSerializer(4, 1);
+        try {
+            parallel.serialize(batch, new SlowSerializer(-1), parallelSink, 0);
+        } finally {
+            parallel.shutdown();
+        }
+
+        assertEquals(100, inlineSink.getWritten().size());
+        assertEquals(inlineSink.getWritten(), parallelSink.getWritten());
+    }
+
+    @Test
+    public void shouldWriteRestOfBatchThenThrowFirstFailure() throws Exception {
+        List<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(i);
+        }
+        CapturingSink sink = new CapturingSink();
+        ParallelSerializer parallel = new ParallelSerializer(4, 1);
+        try {
+            parallel.serialize(batch, new SlowSerializer(3), sink, 0);
+            fail();
+        } catch (IOException e) {
+            assertEquals("could not serialize 3", e.getMessage());
+        } finally {
+            parallel.shutdown();
+        }
+
+        assertEquals(9, sink.getWritten().size());
+        assertEquals("{\"item\":2}", sink.getWritten().get(2));
+        assertEquals("{\"item\":4}", sink.getWritten().get(3));
+    }
+
+    // takes a random amount of time per item, so that items complete out of order
+    private static class SlowSerializer implements ParallelSerializer.Serializer<Integer> {
+
+        private final Random random = new Random();
+        private final int failingItem;
+
+        private SlowSerializer(int failingItem) {
+            this.failingItem = failingItem;
+        }
+
+        @Override
+        public void serialize(Integer item, OutputBuffer outputBuffer) throws Exception {
+            int sleepMillis;
+            synchronized (random) {
+                sleepMillis = random.nextInt(3);
+            }
+            Thread.sleep(sleepMillis);
+            JsonGenerator jg = outputBuffer.startJson();
+            jg.writeStartObject();
+            jg.writeNumberField("item", item);
+            if (item == failingItem) {
+                throw new IOException("could not serialize " + item);
+            }
+            jg.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class QueryTextDictionaryTest {
+
+    @Test
+    public void shouldWriteEachQueryTextOnce() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        QueryTextDictionary dictionary = new QueryTextDictionary(sink, 100);
+
+        String queryTextHash = dictionary.reference("select * from orders where id = ?");
+
+        assertEquals(queryTextHash, dictionary.reference("select * from orders where id = ?"));
+        assertFalse(queryTextHash.equals(dictionary.reference("select * from orders")));
+        assertEquals(2, sink.getWritten().size());
+        assertEquals("{\"queryTextHash\":\"" + queryTextHash
+                + "\",\"queryText\":\"select * from orders where id = ?\"}",
+                sink.getWritten().get(0));
+        assertEquals(1, dictionary.getHitCount());
+    }
+
+    @Test
+    public void shouldWriteQueryTextAgainAfterEviction() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        QueryTextDictionary dictionary = new QueryTextDictionary(sink, 1);
+
+        dictionary.reference("select a from t");
+        dictionary.reference("select b from t");
+        dictionary.reference("select a from t");
+
+        assertEquals(3, sink.getWritten().size());
+        assertEquals(0, dictionary.getHitCount());
+    }
+}
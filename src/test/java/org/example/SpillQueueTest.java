@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillQueueTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEach() throws IOException {
+        dir = File.createTempFile("spill", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void afterEach() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldPollInOrderAcrossSegments() throws Exception {
+        SpillQueue queue = new SpillQueue(dir, 32, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            append(queue, "record-" + i);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("record-" + i, poll(queue));
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void shouldResumeFromCursorAfterReopen() throws Exception {
+        SpillQueue queue = new SpillQueue(dir, 32, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            append(queue, "record-" + i);
+        }
+        assertEquals("record-0", poll(queue));
+        assertEquals("record-1", poll(queue));
+        queue.close();
+        assertTrue(new File(dir, "00000000000000000002.index").exists());
+
+        queue = new SpillQueue(dir, 32, 1024 * 1024);
+        append(queue, "record-5");
+        for (int i = 2; i < 6; i++) {
+            assertEquals("record-" + i, poll(queue));
+        }
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void shouldTruncateTornRecordOnRecovery() throws Exception {
+        SpillQueue queue = new SpillQueue(dir, 1024, 1024 * 1024);
+        append(queue, "record-0");
+        append(queue, "record-1");
+        // as if the jvm had died part way through appending a record, without a close()
+        RandomAccessFile file =
+                new RandomAccessFile(new File(dir, "00000000000000000001.spill"), "rw");
+        file.seek(file.length());
+        file.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        file.close();
+
+        queue = new SpillQueue(dir, 1024, 1024 * 1024);
+        append(queue, "record-2");
+        assertEquals("record-0", poll(queue));
+        assertEquals("record-1", poll(queue));
+        assertEquals("record-2", poll(queue));
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void shouldEvictOldestSegments() throws Exception {
+        // each record takes 16 bytes (with its header), so each segment holds two
+        SpillQueue queue = new SpillQueue(dir, 32, 64);
+        for (int i = 0; i < 10; i++) {
+            append(queue, "record-" + i);
+        }
+
+        assertTrue(queue.getBytes() <= 64);
+        assertEquals(6, queue.getEvictedCount());
+        for (int i = 6; i < 10; i++) {
+            assertEquals("record-" + i, poll(queue));
+        }
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    private static void append(SpillQueue queue, String record) throws IOException {
+        byte[] bytes = record.getBytes("UTF-8");
+        queue.append(bytes, 0, bytes.length);
+    }
+
+    private static String poll(SpillQueue queue) throws IOException {
+        return new String(queue.poll(), "UTF-8");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StackFrameCacheTest {
+
+    @Test
+    public void shouldReturnCachedFrameOnHit() {
+        StackFrameCache cache = new StackFrameCache(100);
+
+        SerializedString frame = cache.get("com.example.Foo", "bar", "Foo.java", 12);
+
+        assertEquals("com.example.Foo.bar(Foo.java:12)", frame.getValue());
+        assertSame(frame, cache.get("com.example.Foo", "bar", "Foo.java", 12));
+        assertEquals("com.example.Foo.bar(Unknown Source)",
+                cache.get("com.example.Foo", "bar", null, -1).getValue());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void shouldEvictBeyondMaxSize() {
+        // 16 segments of one frame each
+        StackFrameCache cache = new StackFrameCache(16);
+
+        for (int i = 0; i < 100; i++) {
+            cache.get("com.example.Foo", "bar", "Foo.java", i);
+        }
+        for (int i = 0; i < 100; i++) {
+            cache.get("com.example.Foo", "bar", "Foo.java", i);
+        }
+
+        assertEquals(200, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.getMissCount() >= 184);
+        // whatever is not evicted is still cached, which is at most one frame per segment
+        assertTrue(cache.getMissCount() - cache.getEvictionCount() <= 16);
+    }
+
+    @Test
+    public void shouldKeepLookupsCorrectWithinOneFullSegment() {
+        // 16 segments of 64 frames each
+        StackFrameCache cache = new StackFrameCache(1024);
+        List<Integer> lineNumbers = new ArrayList<Integer>();
+        for (int i = 0; lineNumbers.size() < 65; i++) {
+            if (StackFrameCache.segmentIndex("com.example.Foo", "bar", "Foo.java", i) == 0) {
+                lineNumbers.add(i);
+            }
+        }
+
+        for (int i = 0; i < 64; i++) {
+            cache.get("com.example.Foo", "bar", "Foo.java", lineNumbers.get(i));
+        }
+        for (int i = 0; i < 64; i++) {
+            assertEquals("com.example.Foo.bar(Foo.java:" + lineNumbers.get(i) + ")",
+                    cache.get("com.example.Foo", "bar", "Foo.java", lineNumbers.get(i))
+                            .getValue());
+        }
+        assertEquals(64, cache.getHitCount());
+        assertEquals(0, cache.getEvictionCount());
+
+        // one more frame in the same segment evicts the least recently used one only
+        cache.get("com.example.Foo", "bar", "Foo.java", lineNumbers.get(64));
+        assertEquals(1, cache.getEvictionCount());
+        for (int i = 1; i < 65; i++) {
+            assertEquals("com.example.Foo.bar(Foo.java:" + lineNumbers.get(i) + ")",
+                    cache.get("com.example.Foo", "bar", "Foo.java", lineNumbers.get(i))
+                            .getValue());
+        }
+        assertEquals(128, cache.getHitCount());
+        cache.get("com.example.Foo", "bar", "Foo.java", lineNumbers.get(0));
+        assertEquals(66, cache.getMissCount());
+    }
+
+    @Test
+    public void shouldResolveProfileFramesByIndex() {
+        StackFrameCache cache = new StackFrameCache(100);
+        Profile profile = Profile.newBuilder()
+                .addClassName("com.example.Foo")
+                .addClassName("com.example.Bar")
+                .addMethodName("run")
+                .addFileName("Foo.java")
+                .addFileName("Bar.java")
+                .addNode(createNode(0, 0, 0, 10))
+                .addNode(createNode(1, 1, 1, 20))
+                .addNode(createNode(2, 0, 0, 10))
+                .build();
+        StackFrameCache.ProfileFrames profileFrames = cache.newProfileFrames(profile);
+
+        SerializedString frame = profileFrames.get(profile.getNode(0));
+
+        assertEquals("com.example.Foo.run(Foo.java:10)", frame.getValue());
+        assertEquals("com.example.Bar.run(Bar.java:20)",
+                profileFrames.get(profile.getNode(1)).getValue());
+        // repeats within the profile do not go to the shared cache at all
+        assertSame(frame, profileFrames.get(profile.getNode(2)));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        // but a later profile with the same frame does
+        assertSame(frame, cache.newProfileFrames(profile).get(profile.getNode(0)));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    private static ProfileNode createNode(int depth, int classNameIndex, int fileNameIndex,
+            int lineNumber) {
+        return ProfileNode.newBuilder()
+                .setDepth(depth)
+                .setClassNameIndex(classNameIndex)
+                .setMethodNameIndex(0)
+                .setFileNameIndex(fileNameIndex)
+                .setLineNumber(lineNumber)
+                .setSampleCount(1)
+                .build();
+    }
+}
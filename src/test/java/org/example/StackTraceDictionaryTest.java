@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.Proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StackTraceDictionaryTest {
+
+    @Test
+    public void shouldWriteEachStackOnce() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        StackTraceDictionary dictionary =
+                new StackTraceDictionary(sink, new StackFrameCache(100), 100);
+        Proto.Throwable throwable = createThrowable("a", 0);
+
+        String stackHash = dictionary.reference(throwable, false);
+
+        assertEquals(stackHash, dictionary.reference(throwable, false));
+        assertEquals(stackHash, dictionary.reference(createThrowable("a", 0), false));
+        assertEquals(1, sink.getWritten().size());
+        assertTrue(sink.getWritten().get(0).startsWith("{\"stackHash\":\"" + stackHash + "\""));
+    }
+
+    @Test
+    public void shouldDistinguishFramesInCommonWithEnclosing() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        StackTraceDictionary dictionary =
+                new StackTraceDictionary(sink, new StackFrameCache(100), 100);
+
+        String stackHash1 = dictionary.reference(createThrowable("a", 1), true);
+        String stackHash2 = dictionary.reference(createThrowable("a", 2), true);
+
+        assertFalse(stackHash1.equals(stackHash2));
+        assertEquals(2, sink.getWritten().size());
+        assertTrue(sink.getWritten().get(1).contains("\"framesInCommonWithEnclosing\":2"));
+    }
+
+    @Test
+    public void shouldWriteStackAgainAfterEviction() throws Exception {
+        CapturingSink sink = new CapturingSink();
+        StackTraceDictionary dictionary =
+                new StackTraceDictionary(sink, new StackFrameCache(100), 1);
+
+        dictionary.reference(createThrowable("a", 0), false);
+        dictionary.reference(createThrowable("b", 0), false);
+        dictionary.reference(createThrowable("a", 0), false);
+
+        assertEquals(3, sink.getWritten().size());
+        assertEquals(0, dictionary.getHitCount());
+    }
+
+    private static Proto.Throwable createThrowable(String methodName, int framesInCommon) {
+        return Proto.Throwable.newBuilder()
+                .setClassName("java.lang.IllegalStateException")
+                .setMessage("the message")
+                .addStackTraceElement(createStackTraceElement(methodName, 10))
+                .addStackTraceElement(createStackTraceElement("caller", 20))
+                .setFramesInCommonWithEnclosing(framesInCommon)
+                .build();
+    }
+
+    private static Proto.StackTraceElement createStackTraceElement(String methodName,
+            int lineNumber) {
+        return Proto.StackTraceElement.newBuilder()
+                .setClassName("org.example.Service")
+                .setMethodName(methodName)
+                .setFileName("Service.java")
+                .setLineNumber(lineNumber)
+                .build();
+    }
+}
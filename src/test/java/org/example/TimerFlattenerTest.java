@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimerFlattenerTest {
+
+    @Test
+    public void shouldNotCountTimerNestedUnderItselfAgain() {
+        // abc > xyz > abc
+        Trace.Timer rootTimer = timer("abc", 100, 1, timer("xyz", 60, 2, timer("abc", 20, 3)));
+
+        TimerFlattener flattener = TimerFlattener.get();
+        flattener.add(rootTimer);
+
+        assertEquals(2, flattener.size());
+        assertEquals("abc", flattener.name(0));
+        assertEquals(100, flattener.totalNanos(0));
+        assertEquals(1, flattener.count(0));
+        assertEquals("xyz", flattener.name(1));
+        assertEquals(60, flattener.totalNanos(1));
+        assertEquals(2, flattener.count(1));
+    }
+
+    @Test
+    public void shouldSumSiblingsAndResetBetweenUses() {
+        Trace.Timer rootTimer = timer("http request", 100, 1, timer("jdbc query", 30, 2),
+                timer("jdbc query", 20, 3));
+
+        TimerFlattener flattener = TimerFlattener.get();
+        flattener.add(rootTimer);
+        flattener.add(rootTimer);
+        assertEquals(2, flattener.size());
+        assertEquals(100, flattener.totalNanos(1));
+        assertEquals(10, flattener.count(1));
+
+        flattener = TimerFlattener.get();
+        flattener.add(timer("jdbc query", 5, 1));
+        assertEquals(1, flattener.size());
+        assertEquals(5, flattener.totalNanos(0));
+    }
+
+    private static Trace.Timer timer(String name, long totalNanos, long count,
+            Trace.Timer... childTimers) {
+        Trace.Timer.Builder builder = Trace.Timer.newBuilder()
+                .setName(name)
+                .setTotalNanos(totalNanos)
+                .setCount(count);
+        for (Trace.Timer childTimer : childTimers) {
+            builder.addChildTimer(childTimer);
+        }
+        return builder.build();
+    }
+}
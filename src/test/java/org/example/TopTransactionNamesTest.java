@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.com.google.common.collect.ImmutableList;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TopTransactionNamesTest {
+
+    @Test
+    public void shouldKeepTopNAndMergeTheRest() {
+        TopTransactionNames topTransactionNames =
+                new TopTransactionNames(2, TopTransactionNames.RankBy.TOTAL_DURATION, 100,
+                        100);
+        topTransactionNames.add("Web", "/a", createAggregate(30, 1), ImmutableList.<String>of());
+        topTransactionNames.add("Web", "/b", createAggregate(10, 2), ImmutableList.<String>of());
+        topTransactionNames.add("Web", "/c", createAggregate(50, 3), ImmutableList.<String>of());
+        topTransactionNames.add("Web", "/d", createAggregate(20, 4), ImmutableList.<String>of());
+
+        List<TopTransactionNames.RankedAggregate> top = topTransactionNames.getTop("Web");
+        assertEquals(2, top.size());
+        assertEquals("/c", top.get(0).transactionName());
+        assertEquals("/a", top.get(1).transactionName());
+        TopTransactionNames.OtherAggregate other = topTransactionNames.getOther("Web");
+        assertEquals(2, other.transactionNameCount());
+        Aggregate otherAggregate = other.toAggregate();
+        assertEquals(30, otherAggregate.getTotalDurationNanos(), 0);
+        assertEquals(6, otherAggregate.getTransactionCount());
+    }
+
+    @Test
+    public void shouldRankByTransactionCountPerTransactionType() {
+        TopTransactionNames topTransactionNames =
+                new TopTransactionNames(1, TopTransactionNames.RankBy.TRANSACTION_COUNT, 100,
+                        100);
+        topTransactionNames.add("Web", "/a", createAggregate(30, 1), ImmutableList.<String>of());
+        topTransactionNames.add("Web", "/b", createAggregate(10, 2), ImmutableList.<String>of());
+        topTransactionNames.add("Background", "job", createAggregate(10, 1),
+                ImmutableList.<String>of());
+
+        assertEquals("/b", topTransactionNames.getTop("Web").get(0).transactionName());
+        assertEquals("job", topTransactionNames.getTop("Background").get(0).transactionName());
+        assertNull(topTransactionNames.getOther("Background"));
+    }
+
+    @Test
+    public void shouldKeepTimersAndQueriesOfOther() {
+        TopTransactionNames topTransactionNames =
+                new TopTransactionNames(1, TopTransactionNames.RankBy.TOTAL_DURATION, 100,
+                        100);
+        topTransactionNames.add("Web", "/a", createAggregate(30, 1), ImmutableList.<String>of());
+        topTransactionNames.add("Web", "/b", createAggregateWithQuery(10, "select 1"),
+                ImmutableList.of("select 1"));
+        topTransactionNames.add("Web", "/c", createAggregateWithQuery(20, "select 1"),
+                ImmutableList.of("select 1"));
+
+        TopTransactionNames.OtherAggregate other = topTransactionNames.getOther("Web");
+        assertEquals(2, other.transactionNameCount());
+        Aggregate otherAggregate = other.toAggregate();
+        assertEquals(1, otherAggregate.getMainThreadRootTimerCount());
+        Aggregate.Timer rootTimer = otherAggregate.getMainThreadRootTimerList().get(0);
+        assertEquals(30, rootTimer.getTotalNanos(), 0);
+        assertEquals(2, rootTimer.getCount());
+        assertEquals(1, otherAggregate.getQueryCount());
+        Aggregate.Query query = otherAggregate.getQueryList().get(0);
+        assertEquals(2, query.getExecutionCount());
+        assertEquals("select 1", other.sharedQueryTexts().get(query.getSharedQueryTextIndex()));
+    }
+
+    private static Aggregate createAggregateWithQuery(double totalDurationNanos,
+            String queryText) {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(1)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(totalDurationNanos)
+                        .setCount(1)
+                        .build())
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(totalDurationNanos / 2)
+                        .setExecutionCount(1)
+                        .build())
+                .build();
+    }
+
+    private static Aggregate createAggregate(double totalDurationNanos, long transactionCount) {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .build();
+    }
+}
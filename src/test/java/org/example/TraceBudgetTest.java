@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceBudgetTest {
+
+    @Test
+    public void shouldRecordWhatWasCut() throws Exception {
+        TraceBudget budget = new TraceBudget(0, 2, 1, 3, 2, null);
+
+        assertTrue(budget.allowEntry());
+        assertTrue(budget.allowEntry());
+        assertFalse(budget.allowEntry());
+        assertTrue(budget.allowProfileNode());
+        assertFalse(budget.allowProfileNode());
+        assertFalse(budget.allowProfileNode());
+        assertEquals("abc", budget.truncate("abcdef"));
+        assertEquals("ab", budget.truncate("ab"));
+        assertTrue(budget.allowExceptionCause(1));
+        assertFalse(budget.allowExceptionCause(2));
+
+        assertEquals("{\"truncated\":{\"entries\":1,\"profileNodes\":2,\"strings\":1,"
+                + "\"exceptionCauses\":1}}", writeTruncated(budget));
+    }
+
+    @Test
+    public void shouldStopEntriesOnceOutputSizeIsReached() throws Exception {
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        JsonGenerator jg = outputBuffer.startJson();
+        TraceBudget budget = new TraceBudget(10, 0, 0, 0, 0, outputBuffer);
+        jg.writeStartArray();
+
+        assertTrue(budget.allowEntry());
+        jg.writeString("0123456789");
+        assertFalse(budget.allowEntry());
+        assertFalse(budget.allowProfileNode());
+
+        jg.writeEndArray();
+        outputBuffer.toByteArray();
+        assertEquals("{\"truncated\":{\"maxBytesExceeded\":true,\"entries\":1,"
+                + "\"profileNodes\":1}}", writeTruncated(budget));
+    }
+
+    @Test
+    public void shouldNotWriteTruncatedIfNothingWasCut() throws Exception {
+        TraceBudget budget = new TraceBudget(0, 2, 0, 0, 0, null);
+
+        budget.allowEntry();
+
+        assertEquals("{}", writeTruncated(budget));
+    }
+
+    private static String writeTruncated(TraceBudget budget) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        jg.writeStartObject();
+        budget.writeTruncated(jg);
+        jg.writeEndObject();
+        jg.close();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceSamplerTest {
+
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void shouldApplyFirstMatchingRule() {
+        TraceSampler traceSampler = new TraceSampler(true,
+                Arrays.asList(new TraceSampler.Rule("Web", "/health*", 10000, 0, 0),
+                        new TraceSampler.Rule("Web", null, 500, 0, 0)),
+                new TraceSampler.Rule(null, null, 0, 1, 0));
+
+        assertFalse(traceSampler.keep("a", "Web", "/health/live", 5000 * MILLIS, false, false, 0));
+        assertFalse(traceSampler.keep("b", "Web", "/orders", 100 * MILLIS, false, false, 0));
+        assertTrue(traceSampler.keep("c", "Web", "/orders", 500 * MILLIS, false, false, 0));
+        assertTrue(traceSampler.keep("d", "Background", "job", 1, false, false, 0));
+        assertTrue(traceSampler.keep("e", "Web", "/health/live", 1, true, false, 0));
+    }
+
+    @Test
+    public void shouldLimitRatePerTransactionType() {
+        TraceSampler traceSampler = new TraceSampler(false,
+                Collections.<TraceSampler.Rule>emptyList(),
+                new TraceSampler.Rule(null, null, 0, 1, 2));
+
+        assertTrue(traceSampler.keep("a", "Web", "x", 0, false, false, 0));
+        assertTrue(traceSampler.keep("b", "Web", "x", 0, false, false, 0));
+        assertFalse(traceSampler.keep("c", "Web", "x", 0, false, false, 0));
+        assertTrue(traceSampler.keep("d", "Background", "x", 0, false, false, 0));
+        // one token is refilled every half second
+        assertTrue(traceSampler.keep("e", "Web", "x", 0, false, false, 500 * MILLIS));
+        assertFalse(traceSampler.keep("f", "Web", "x", 0, false, false, 500 * MILLIS));
+    }
+
+    @Test
+    public void shouldKeepDecisionForInFlightTrace() {
+        TraceSampler traceSampler = new TraceSampler(true,
+                Collections.<TraceSampler.Rule>emptyList(),
+                new TraceSampler.Rule(null, null, 1000, 0, 1));
+
+        assertTrue(traceSampler.keep("a", "Web", "x", 2000 * MILLIS, false, true, 0));
+        // the token bucket is empty, but the later snapshots of the same trace are still kept
+        assertFalse(traceSampler.keep("b", "Web", "x", 2000 * MILLIS, false, true, 0));
+        assertTrue(traceSampler.keep("a", "Web", "x", 3000 * MILLIS, false, true, 0));
+        assertTrue(traceSampler.keep("a", "Web", "x", 4000 * MILLIS, false, false, 0));
+        // the completed trace is forgotten, so is decided again (and the token bucket is empty)
+        assertFalse(traceSampler.keep("a", "Web", "x", 2000 * MILLIS, false, true, 0));
+        // and the snapshots of a trace that was not kept are not kept, until it has an error
+        assertFalse(traceSampler.keep("b", "Web", "x", 3000 * MILLIS, false, true, 1000 * MILLIS));
+        assertTrue(traceSampler.keep("b", "Web", "x", 4000 * MILLIS, true, false, 1000 * MILLIS));
+    }
+
+    @Test
+    public void shouldSampleDeterministicallyOnTraceId() {
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            String traceId = Integer.toHexString(i * 7919);
+            boolean first = TraceSampler.isSampled(traceId, 0.1);
+            assertEquals(first, TraceSampler.isSampled(traceId, 0.1));
+            if (first) {
+                sampled++;
+            }
+        }
+        assertTrue(sampled > 800 && sampled < 1200);
+    }
+}
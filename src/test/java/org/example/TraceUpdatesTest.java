@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TraceUpdatesTest {
+
+    @Test
+    public void shouldReturnPreviousOnlyForLaterUpdates() {
+        TraceUpdates traceUpdates = new TraceUpdates(10, 60000, 100);
+        TraceUpdates.Emitted emitted = createEmitted(1000);
+        traceUpdates.written("abc", true, emitted, 0);
+
+        assertSame(emitted, traceUpdates.getPrevious("abc", true, 2000, 0));
+        assertNull(traceUpdates.getPrevious("abc", false, 2000, 0));
+        assertNull(traceUpdates.getPrevious("abc", true, 1000, 0));
+        assertNull(traceUpdates.getPrevious("xyz", true, 2000, 0));
+
+        traceUpdates.written("abc", false, createEmitted(2000), 0);
+        assertEquals(0, traceUpdates.size());
+    }
+
+    @Test
+    public void shouldEvictAndExpire() {
+        TraceUpdates traceUpdates = new TraceUpdates(2, 60000, 100);
+        traceUpdates.written("a", true, createEmitted(1000), 0);
+        traceUpdates.written("b", true, createEmitted(1000), 10000);
+        traceUpdates.written("c", true, createEmitted(1000), 20000);
+
+        assertEquals(1, traceUpdates.getEvictedCount());
+        assertNull(traceUpdates.getPrevious("a", true, 2000, 20000));
+
+        assertNull(traceUpdates.getPrevious("b", true, 2000, 70000));
+        assertEquals(1, traceUpdates.getExpiredCount());
+        assertEquals(1, traceUpdates.size());
+    }
+
+    @Test
+    public void shouldTreatNewAndActiveEntriesAsChanged() {
+        TraceUpdates.Emitted emitted = new TraceUpdates.Emitted(1000, 0, null, 5,
+                new int[] {0, 3}, 0, 0, null, null);
+
+        assertTrue(emitted.isChanged(0));
+        assertFalse(emitted.isChanged(1));
+        assertTrue(emitted.isChanged(3));
+        assertTrue(emitted.isChanged(5));
+    }
+
+    @Test
+    public void shouldRejectSecondDeltaAgainstSameBase() {
+        TraceUpdates traceUpdates = new TraceUpdates(10, 60000, 100);
+        traceUpdates.written("abc", true, createEmitted(1000), 0);
+
+        // two updates of the trace that are both queued before either is written
+        TraceUpdates.Emitted base = traceUpdates.getPrevious("abc", true, 2000, 0);
+        assertSame(base, traceUpdates.getPrevious("abc", true, 3000, 0));
+        TraceUpdates.Emitted first = createEmitted(2000, base.captureTime());
+        TraceUpdates.Emitted second = createEmitted(3000, base.captureTime());
+        traceUpdates.written("abc", true, first, 0);
+        traceUpdates.written("abc", true, second, 0);
+
+        // a consumer rejects the second one, so the next update is written against the first
+        assertEquals(1, traceUpdates.getRejectedCount());
+        assertSame(first, traceUpdates.getPrevious("abc", true, 4000, 0));
+
+        // the same when the later of the two is written first
+        TraceUpdates.Emitted third = createEmitted(4000, first.captureTime());
+        TraceUpdates.Emitted fourth = createEmitted(5000, first.captureTime());
+        traceUpdates.written("abc", true, fourth, 0);
+        traceUpdates.written("abc", true, third, 0);
+        assertSame(fourth, traceUpdates.getPrevious("abc", true, 6000, 0));
+        assertEquals(2, traceUpdates.getRejectedCount());
+
+        // a full snapshot is always applied
+        TraceUpdates.Emitted full = createEmitted(6000);
+        traceUpdates.written("abc", true, full, 0);
+        assertSame(full, traceUpdates.getPrevious("abc", true, 7000, 0));
+        assertEquals(2, traceUpdates.getRejectedCount());
+    }
+
+    private static TraceUpdates.Emitted createEmitted(long captureTime) {
+        return createEmitted(captureTime, 0);
+    }
+
+    private static TraceUpdates.Emitted createEmitted(long captureTime, long baseCaptureTime) {
+        return new TraceUpdates.Emitted(captureTime, baseCaptureTime, null, 0, new int[0], 0, 0,
+                null, null);
+    }
+}
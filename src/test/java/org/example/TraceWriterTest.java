@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.Test;
+
+import org.glowroot.agent.shaded.com.google.common.collect.ImmutableList;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.agent.shaded.org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceWriterTest {
+
+    @Test
+    public void shouldCutEntriesAndProfileNodesWithinSubtree() throws Exception {
+        Map<String, Object> trace = write(false, 0, 3, 2);
+
+        assertEquals(Arrays.asList("0 a", "1 b", "2 c"), flattenEntries(trace));
+        assertEquals(Arrays.asList("0 Foo.run(Foo.java:0)", "1 Bar.call(Foo.java:0)"),
+                flattenProfile(trace));
+        Map<?, ?> truncated = (Map<?, ?>) trace.get("truncated");
+        assertEquals(3, ((Number) truncated.get("entries")).intValue());
+        assertEquals(3, ((Number) truncated.get("profileNodes")).intValue());
+    }
+
+    @Test
+    public void shouldCutStreamedEntriesAndProfileNodesWithinSubtree() throws Exception {
+        Map<String, Object> trace = write(true, 0, 3, 2);
+
+        assertEquals(Arrays.asList("0 a", "1 b", "2 c"), flattenEntries(trace));
+        assertEquals(Arrays.asList("0 Foo.run(Foo.java:0)", "1 Bar.call(Foo.java:0)"),
+                flattenProfile(trace));
+        Map<?, ?> truncated = (Map<?, ?>) trace.get("truncated");
+        assertEquals(3, ((Number) truncated.get("entries")).intValue());
+        assertEquals(3, ((Number) truncated.get("profileNodes")).intValue());
+    }
+
+    @Test
+    public void shouldStopAtMaxBytesWithinSubtree() throws Exception {
+        List<Trace.Entry> entries = createEntries();
+        for (boolean streaming : new boolean[] {false, true}) {
+            // enough for the first few entries only
+            Map<String, Object> trace = write(streaming, 250, 0, 0);
+
+            List<String> written = flattenEntries(trace);
+            assertTrue(!written.isEmpty() && written.size() < entries.size());
+            assertEquals(flatten(entries).subList(0, written.size()), written);
+            assertTrue(flattenProfile(trace).isEmpty());
+            Map<?, ?> truncated = (Map<?, ?>) trace.get("truncated");
+            assertEquals(true, truncated.get("maxBytesExceeded"));
+            assertEquals(entries.size() - written.size(),
+                    ((Number) truncated.get("entries")).intValue());
+            assertEquals(5, ((Number) truncated.get("profileNodes")).intValue());
+        }
+    }
+
+    // parses what is written, which fails unless it is a single well formed document
+    private static Map<String, Object> write(boolean streaming, long maxBytes, int maxEntries,
+            int maxProfileNodes) throws Exception {
+        OutputBuffer outputBuffer = OutputBuffer.get();
+        JsonGenerator jg = outputBuffer.startJson();
+        TraceWriter traceWriter = new TraceWriter(jg, new StackFrameCache(100), null);
+        traceWriter.applyBudget(
+                new TraceBudget(maxBytes, maxEntries, maxProfileNodes, 0, 0, outputBuffer));
+        Trace.Header header = Trace.Header.newBuilder()
+                .setCaptureTime(1000)
+                .setDurationNanos(2000)
+                .setTransactionType("Web")
+                .setTransactionName("/abc")
+                .setHeadline("/abc")
+                .build();
+        List<Trace.Entry> entries = createEntries();
+        List<Aggregate.Query> queries = ImmutableList.of();
+        List<String> sharedQueryTexts = ImmutableList.of();
+        Profile profile = createProfile();
+        if (streaming) {
+            traceWriter.writeStreamingStart();
+            for (Trace.Entry entry : entries) {
+                traceWriter.writeStreamingEntry(entry);
+            }
+            traceWriter.writeStreamingEnd(header, queries, sharedQueryTexts, profile, null);
+        } else {
+            traceWriter.write(header, entries, queries, sharedQueryTexts, profile, null);
+        }
+        JsonParser parser = new JsonFactory().createParser(outputBuffer.toByteArray());
+        parser.nextToken();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> trace = (Map<String, Object>) read(parser);
+        assertNull(parser.nextToken());
+        return trace;
+    }
+
+    private static Object read(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                map.put(name, read(parser));
+            }
+            return map;
+        }
+        if (token == JsonToken.START_ARRAY) {
+            List<Object> list = new ArrayList<Object>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                list.add(read(parser));
+            }
+            return list;
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+            return parser.getNumberValue();
+        }
+        if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+            return parser.getBooleanValue();
+        }
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        throw new IllegalStateException("Unexpected token: " + token);
+    }
+
+    // the pre-order "<depth> <message>" of the nested entries
+    private static List<String> flattenEntries(Map<String, Object> trace) {
+        List<String> flattened = new ArrayList<String>();
+        List<?> entries = (List<?>) trace.get("entries");
+        if (entries != null) {
+            flattenNested(entries, 0, "message", "childEntries", flattened);
+        }
+        return flattened;
+    }
+
+    private static List<String> flattenProfile(Map<String, Object> trace) {
+        List<String> flattened = new ArrayList<String>();
+        flattenNested((List<?>) trace.get("mainThreadProfile"), 0, "stackTraceElement",
+                "childNodes", flattened);
+        return flattened;
+    }
+
+    private static void flattenNested(List<?> items, int depth, String valueName,
+            String childrenName, List<String> flattened) {
+        for (Object item : items) {
+            Map<?, ?> map = (Map<?, ?>) item;
+            flattened.add(depth + " " + map.get(valueName));
+            List<?> children = (List<?>) map.get(childrenName);
+            if (children != null) {
+                // an array that is opened for the next level down is never left empty
+                assertTrue(!children.isEmpty());
+                flattenNested(children, depth + 1, valueName, childrenName, flattened);
+            }
+        }
+    }
+
+    private static List<String> flatten(List<Trace.Entry> entries) {
+        List<String> flattened = new ArrayList<String>();
+        for (Trace.Entry entry : entries) {
+            flattened.add(entry.getDepth() + " " + entry.getMessage());
+        }
+        return flattened;
+    }
+
+    // a > b > c, then d (under b), e (under a), and f
+    private static List<Trace.Entry> createEntries() {
+        return Arrays.asList(createEntry(0, "a"), createEntry(1, "b"), createEntry(2, "c"),
+                createEntry(2, "d"), createEntry(1, "e"), createEntry(0, "f"));
+    }
+
+    // Foo.run > Bar.call > Baz.get, then Foo.idle (under Foo.run), and Qux.main
+    private static Profile createProfile() {
+        return Profile.newBuilder()
+                .addClassName("Foo")
+                .addClassName("Bar")
+                .addClassName("Baz")
+                .addClassName("Qux")
+                .addMethodName("run")
+                .addMethodName("call")
+                .addMethodName("get")
+                .addMethodName("idle")
+                .addMethodName("main")
+                .addFileName("Foo.java")
+                .addNode(createNode(0, 0, 0, 10))
+                .addNode(createNode(1, 1, 1, 6))
+                .addNode(createNode(2, 2, 2, 5))
+                .addNode(createNode(1, 0, 3, 1))
+                .addNode(createNode(0, 3, 4, 2))
+                .build();
+    }
+
+    private static Trace.Entry createEntry(int depth, String message) {
+        return Trace.Entry.newBuilder()
+                .setDepth(depth)
+                .setStartOffsetNanos(depth * 100)
+                .setDurationNanos(1000)
+                .setMessage(message)
+                .build();
+    }
+
+    private static ProfileNode createNode(int depth, int classNameIndex, int methodNameIndex,
+            int sampleCount) {
+        return ProfileNode.newBuilder()
+                .setDepth(depth)
+                .setClassNameIndex(classNameIndex)
+                .setMethodNameIndex(methodNameIndex)
+                .setFileNameIndex(0)
+                .setSampleCount(sampleCount)
+                .build();
+    }
+}